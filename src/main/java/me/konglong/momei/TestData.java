@@ -36,4 +36,67 @@ public @interface TestData {
 
     boolean cleanup() default true;
 
+    /**
+     * Script files of helper functions shared by several test classes, resolved against the
+     * package of the test class, or against the class path root if starting with a {@literal /}.
+     * Their helper functions are registered once per test JVM, as are those of the test class's
+     * own script file. Only taken into account on the test class.
+     */
+    String[] include() default {};
+
+    /**
+     * Whether the prepare function of the next test method starts in the background while a
+     * test method runs, so that preparing data overlaps with running tests. Only for test
+     * classes whose test methods prepare data in separate collections: a prefetched prepare
+     * function runs alongside the test method before it and the cleanup function of that test
+     * method. Test methods that declare {@link #documents()} are not prefetched, nor are any
+     * while prepare functions are recorded. Only taken into account on the test class.
+     */
+    boolean prefetch() default false;
+
+    /**
+     * Whether cleanup functions run in the background instead of before the next prepare
+     * function. A test method waits for the cleanups still running on the collections it
+     * touches, as told by its {@link #documents()} and the code of its prepare and cleanup
+     * functions, or for all of them if that cannot be told. All cleanups are waited for when
+     * the test class finishes. Only taken into account on the test class.
+     */
+    boolean backgroundCleanup() default false;
+
+    /**
+     * Collections to load documents into before the prepare function of the test method runs.
+     * The documents of collection {@code books} are read from the fixture file
+     * {@code <TestClass>.books.bson}, {@code <TestClass>.books.jsonl},
+     * {@code <TestClass>.books.json} or {@code <TestClass>.books.csv} in the package of the
+     * test class,
+     * see {@link me.konglong.momei.mongodb.fixture.FixtureLoader}. A test method
+     * needing no prepare or cleanup function besides sets {@link #prepare()} and
+     * {@link #cleanup()} to {@literal false}.
+     */
+    String[] documents() default {};
+
+    /**
+     * Arguments the prepare and cleanup functions of the test method are called with, each a
+     * JSON value such as {@code 100} or {@code "{ status: 'sold' }"}.
+     */
+    String[] args() default {};
+
+    /**
+     * Whether the prepare and cleanup functions run without taking the global write lock.
+     * Set on the test class, it applies to all its test methods.
+     */
+    boolean nolock() default false;
+
+    /**
+     * Time limit passed to the server for each prepare and cleanup function, {@literal 0} for
+     * none. Set on the test class, it applies to test methods that set none.
+     */
+    long maxTimeMillis() default 0;
+
+    /**
+     * Time after which a prepare or cleanup function still running is killed on the server,
+     * {@literal 0} for none. Set on the test class, it applies to test methods that set none.
+     */
+    long deadlineMillis() default 0;
+
 }
\ No newline at end of file
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.junit.mongoext;
+
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+import me.konglong.momei.mongodb.core.ExecutionOptions;
+import me.konglong.momei.mongodb.core.MongoScriptExecutor;
+import me.konglong.momei.mongodb.script.NamedMongoScript;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Cleanup scripts running in the background, each fenced by the collections it touches.
+ *
+ * <p>A {@linkplain #fence(Set) fence} only waits for the cleanups on the given collections.
+ * A cleanup whose collections cannot be told from its code, see
+ * {@link MongoScriptExecutor#collectionsTouchedBy(NamedMongoScript)}, is fenced by all
+ * collections. A failing cleanup is reported by the fence or {@linkplain #drain() drain}
+ * waiting for it.
+ *
+ * @author chenlong
+ */
+final class BackgroundCleanups {
+
+    private static final Logger logger = Loggers.getLogger(BackgroundCleanups.class);
+
+    private final MongoScriptExecutor executor;
+    private final List<Cleanup> pending = new ArrayList<>();
+
+    BackgroundCleanups(MongoScriptExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Starts the given cleanup script in the background, after waiting for the cleanups
+     * before it on the same collections. These are usually done, as the test method being
+     * cleaned up has been fenced by its collections when it started.
+     *
+     * @param testMethod the test method the script cleans up after, for reporting.
+     */
+    synchronized void submit(NamedMongoScript script, ExecutionOptions options, String testMethod) {
+        Set<String> collectionNames = executor.collectionsTouchedBy(script);
+        fence(collectionNames);
+        add(script.getName(), testMethod, collectionNames, executor.executeAsync(script, options));
+    }
+
+    /**
+     * Adds a cleanup already started, to be waited for by the fences on its collections.
+     *
+     * @param collectionNames {@literal null} if the collections cannot be told.
+     */
+    synchronized void add(String scriptName, String testMethod, Set<String> collectionNames, Future<Object> future) {
+        pending.add(new Cleanup(scriptName, testMethod, collectionNames, future));
+    }
+
+    synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Waits for the cleanups touching any of the given collections.
+     *
+     * @param collectionNames {@literal null} to wait for all cleanups.
+     * @throws IllegalStateException if one of them failed.
+     */
+    synchronized void fence(Set<String> collectionNames) {
+        List<Cleanup> cleanups = overlapping(collectionNames);
+        pending.removeAll(cleanups);
+        awaitAll(cleanups);
+    }
+
+    /**
+     * Waits for all cleanups.
+     *
+     * @throws IllegalStateException if one of them failed.
+     */
+    synchronized void drain() {
+        fence(null);
+    }
+
+    private List<Cleanup> overlapping(Set<String> collectionNames) {
+        List<Cleanup> cleanups = new ArrayList<>();
+        for (Cleanup cleanup : pending) {
+            if (collectionNames == null || cleanup.collectionNames == null
+                    || !Collections.disjoint(collectionNames, cleanup.collectionNames)) {
+                cleanups.add(cleanup);
+            }
+        }
+        return cleanups;
+    }
+
+    private static void awaitAll(List<Cleanup> cleanups) {
+        IllegalStateException failure = null;
+        for (Cleanup cleanup : cleanups) {
+            try {
+                cleanup.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for cleaning-up scripts", e);
+            } catch (ExecutionException e) {
+                String message = String.format("Failed to execute cleaning-up script %s for test method %s",
+                        cleanup.scriptName, cleanup.testMethod);
+                if (failure == null) {
+                    failure = new IllegalStateException(message, e.getCause());
+                } else {
+                    logger.warn(message, e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static final class Cleanup {
+
+        private final String scriptName;
+        private final String testMethod;
+        private final Set<String> collectionNames;
+        private final Future<Object> future;
+
+        private Cleanup(String scriptName, String testMethod, Set<String> collectionNames, Future<Object> future) {
+            this.scriptName = scriptName;
+            this.testMethod = testMethod;
+            this.collectionNames = collectionNames;
+            this.future = future;
+        }
+    }
+}
@@ -16,18 +16,38 @@
 
 package me.konglong.momei.junit.mongoext;
 
+import com.mongodb.util.JSON;
 import me.konglong.momei.TestData;
 import me.konglong.momei.base.Optional;
 import me.konglong.momei.diagnostics.logging.Logger;
 import me.konglong.momei.diagnostics.logging.Loggers;
+import me.konglong.momei.mongodb.core.ExecutionGroup;
+import me.konglong.momei.mongodb.core.ExecutionOptions;
+import me.konglong.momei.mongodb.core.MongoScriptExecutor;
+import me.konglong.momei.mongodb.fixture.FixtureLoader;
 import me.konglong.momei.mongodb.script.NamedMongoScript;
 import me.konglong.momei.util.Assert;
+import me.konglong.momei.util.ClassPathResource;
 import org.junit.rules.TestWatcher;
 import org.junit.runner.Description;
 
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 /**
  * Prepares mongo data for test method and cleans up the data after test method executes.
  *
+ * <p>A cleanup is deferred until the next test method starts, so that it is executed along
+ * with the next preparation in a single server round trip. It is executed on its own if the
+ * next test method prepares no data, and at the latest when the test class finishes.
+ *
+ * <p>For a test class that {@linkplain TestData#prefetch() prefetches}, the prepare script of
+ * the next test method starts in the background once a test method has been prepared, and is
+ * waited for when the next test method starts. For a test class that cleans up
+ * {@linkplain TestData#backgroundCleanup() in the background}, a cleanup script starts right
+ * away instead, and a test method starting waits for those on the collections it touches.
+ *
  * @author chenlong
  */
 public class DataAttendantForTestMethod extends TestWatcher {
@@ -39,15 +59,29 @@ public class DataAttendantForTestMethod extends TestWatcher {
         super.starting(description);
 
         Optional<TestData> testDataAnn = findTestDataAnnOnTestMethod(description);
-        if (testDataAnn.isPresent() && testDataAnn.get().prepare()) {
+        if (ScriptExecutionContext.hasBackgroundCleanups()) {
+            ScriptExecutionContext.fenceBackgroundCleanups(collectionsTouchedBy(description, testDataAnn));
+        }
+        boolean prefetched = ScriptExecutionContext.awaitPrefetchedPrepare(description);
+        if (testDataAnn.isPresent() && testDataAnn.get().documents().length > 0) {
+            // The cleanup of the last test method must not remove the documents
+            ScriptExecutionContext.executePendingCleanup();
+            loadDocuments(description, testDataAnn.get().documents());
+        }
+        if (prefetched) {
+            ScriptExecutionContext.executePendingCleanup();
+            logger.info("Executed prefetched preparing script for test method %s", description.getDisplayName());
+        } else if (testDataAnn.isPresent() && testDataAnn.get().prepare()) {
             NamedMongoScript prepareScript = ScriptExecutionContext.getPrepareScript(description);
             Assert.state((prepareScript != null),
-                    "Not found preparing script {} for test method {}",
-                    prepareScript.getName(), description.getDisplayName());
-            ScriptExecutionContext.scriptExecutor().execute(prepareScript);
-            logger.info("Executed preparing script {} for test method {}",
+                    "Not found preparing script for test method %s", description.getDisplayName());
+            ScriptExecutionContext.executeAfterPendingCleanup(prepareScript, optionsOf(description, testDataAnn.get()));
+            logger.info("Executed preparing script %s for test method %s",
                     prepareScript.getName(), description.getDisplayName());
+        } else {
+            ScriptExecutionContext.executePendingCleanup();
         }
+        prefetchNextPrepare(description);
     }
 
     @Override
@@ -59,21 +93,137 @@ public class DataAttendantForTestMethod extends TestWatcher {
             NamedMongoScript cleanupScript = ScriptExecutionContext.getCleanupScript(description);
 
             Assert.state((cleanupScript != null),
-                    "Not found cleaning-up script {} for test method {}",
-                    cleanupScript.getName(), description.getDisplayName());
-            ScriptExecutionContext.scriptExecutor().execute(cleanupScript);
-            logger.info("Executed cleaning-up script {} for test method {}",
-                    cleanupScript.getName(), description.getDisplayName());
+                    "Not found cleaning-up script for test method %s", description.getDisplayName());
+            TestData classAnn = description.getTestClass().getAnnotation(TestData.class);
+            if (classAnn != null && classAnn.backgroundCleanup()) {
+                ScriptExecutionContext.cleanupInBackground(cleanupScript, optionsOf(description, testDataHelp.get()), description);
+                logger.debug(String.format("Started cleaning-up script %s for test method %s in the background",
+                        cleanupScript.getName(), description.getDisplayName()));
+                return;
+            }
+            ScriptExecutionContext.deferCleanup(cleanupScript, optionsOf(description, testDataHelp.get()), description);
+            logger.debug(String.format("Deferred cleaning-up script %s for test method %s",
+                    cleanupScript.getName(), description.getDisplayName()));
         }
     }
 
-    private Optional<TestData> findTestDataAnnOnTestMethod(Description desc) {
+    /**
+     * Returns the collections the given test method touches, as told by its documents and
+     * the code of its prepare and cleanup scripts.
+     *
+     * @return {@literal null} if that cannot be told.
+     */
+    private static Set<String> collectionsTouchedBy(Description description, Optional<TestData> testDataAnn) {
+        if (!testDataAnn.isPresent()) {
+            return null;
+        }
+        Set<String> collectionNames = new TreeSet<>(Arrays.asList(testDataAnn.get().documents()));
+        List<NamedMongoScript> scripts = new ArrayList<>(2);
+        if (testDataAnn.get().prepare()) {
+            scripts.add(ScriptExecutionContext.getPrepareScript(description));
+        }
+        if (testDataAnn.get().cleanup()) {
+            scripts.add(ScriptExecutionContext.getCleanupScript(description));
+        }
+        for (NamedMongoScript script : scripts) {
+            // A missing script is reported below
+            Set<String> scriptCollectionNames = (script == null) ? null
+                    : ScriptExecutionContext.scriptExecutor().collectionsTouchedBy(script);
+            if (scriptCollectionNames == null) {
+                return null;
+            }
+            collectionNames.addAll(scriptCollectionNames);
+        }
+        return collectionNames;
+    }
+
+    /**
+     * Starts the prepare script of the test method after the given one in the background if
+     * the test class {@linkplain TestData#prefetch() prefetches} and that test method declares
+     * no documents.
+     */
+    private static void prefetchNextPrepare(Description description) {
+        TestData classAnn = description.getTestClass().getAnnotation(TestData.class);
+        if (classAnn == null || !classAnn.prefetch() || ScriptExecutionContext.scriptExecutor().recordsFixtures()) {
+            return;
+        }
+        Description next = ScriptExecutionContext.nextTestMethodOf(description);
+        TestData nextAnn = (next == null) ? null : next.getAnnotation(TestData.class);
+        if (nextAnn == null || !nextAnn.prepare() || nextAnn.documents().length > 0) {
+            return;
+        }
+        NamedMongoScript prepareScript = ScriptExecutionContext.getPrepareScript(next);
+        if (prepareScript != null) {
+            // A missing script is reported once the test method starts
+            ScriptExecutionContext.prefetchPrepare(next, prepareScript, optionsOf(next, nextAnn));
+        }
+    }
+
+    /**
+     * Loads the fixture files of the given collections, concurrently if there are several.
+     */
+    private static void loadDocuments(Description description, String[] collectionNames) {
+        MongoScriptExecutor executor = ScriptExecutionContext.scriptExecutor();
+        if (collectionNames.length == 1) {
+            ClassPathResource fixtureFile = fixtureFileOf(description, collectionNames[0]);
+            long count = executor.loadDocuments(collectionNames[0], fixtureFile);
+            logger.info("Loaded %s documents of %s for test method %s",
+                    count, fixtureFile.getName(), description.getDisplayName());
+            return;
+        }
+
+        ExecutionGroup group = new ExecutionGroup();
+        Map<String, Future<Long>> counts = new LinkedHashMap<>();
+        for (String collectionName : collectionNames) {
+            ClassPathResource fixtureFile = fixtureFileOf(description, collectionName);
+            counts.put(fixtureFile.getName(), group.add(executor.loadDocumentsAsync(collectionName, fixtureFile)));
+        }
+        group.await();
+        for (Map.Entry<String, Future<Long>> count : counts.entrySet()) {
+            logger.info("Loaded %s documents of %s for test method %s",
+                    doneValueOf(count.getValue()), count.getKey(), description.getDisplayName());
+        }
+    }
+
+    private static ClassPathResource fixtureFileOf(Description description, String collectionName) {
+        ClassPathResource fixtureFile = FixtureLoader.fixtureFileOf(description.getTestClass(), collectionName);
+        Assert.state((fixtureFile != null), "Not found fixture file of collection %s for test method %s",
+                collectionName, description.getDisplayName());
+        return fixtureFile;
+    }
+
+    private static <T> T doneValueOf(Future<T> future) {
         try {
-            TestData testData = desc.getTestClass()
-                    .getMethod(desc.getMethodName()).getAnnotation(TestData.class);
-            return Optional.fromNullable(testData);
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException("Method not found: " + desc.getMethodName(), e);
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Execution is not done", e);
         }
     }
+
+    /**
+     * Returns the execution options given by the annotation of the test method, falling back
+     * to those of the test class.
+     */
+    private static ExecutionOptions optionsOf(Description desc, TestData methodAnn) {
+        TestData classAnn = desc.getTestClass().getAnnotation(TestData.class);
+        if (classAnn == null) {
+            classAnn = methodAnn;
+        }
+
+        Object[] args = new Object[methodAnn.args().length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = JSON.parse(methodAnn.args()[i]);
+        }
+        return ExecutionOptions.builder()
+                .setArgs(args)
+                .setNolock(methodAnn.nolock() || classAnn.nolock())
+                .setMaxTimeMillis(methodAnn.maxTimeMillis() > 0 ? methodAnn.maxTimeMillis() : classAnn.maxTimeMillis())
+                .setDeadlineMillis(methodAnn.deadlineMillis() > 0 ? methodAnn.deadlineMillis() : classAnn.deadlineMillis())
+                .build();
+    }
+
+    private Optional<TestData> findTestDataAnnOnTestMethod(Description desc) {
+        // The runner puts the annotations of the test method on its description
+        return Optional.fromNullable(desc.getAnnotation(TestData.class));
+    }
 }
@@ -19,12 +19,15 @@ package me.konglong.momei.junit.mongoext;
 import me.konglong.momei.TestData;
 import me.konglong.momei.mongodb.script.MongoScriptReader;
 import me.konglong.momei.mongodb.script.NamedMongoScript;
+import me.konglong.momei.mongodb.script.ScriptConstants;
+import me.konglong.momei.mongodb.script.ScriptTable;
+import org.junit.Ignore;
 import org.junit.rules.TestWatcher;
 import org.junit.runner.Description;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Prepares mongo scripts for test class and cleans up the scripts after test class executes
@@ -33,6 +36,9 @@ import java.util.List;
  */
 public class ScriptAttendantForTestClass extends TestWatcher {
 
+    private static final String[] FIXTURE_PREFIXES = {
+            ScriptConstants.PREPARE_FUNC_NAME_PREFIX, ScriptConstants.CLEANUP_FUNC_NAME_PREFIX};
+
     @Override
     protected void starting(Description description) {
         super.starting(description);
@@ -41,19 +47,75 @@ public class ScriptAttendantForTestClass extends TestWatcher {
             return;
         }
 
-        List<NamedMongoScript> scripts = MongoScriptReader.readScriptWith(description.getTestClass());
-        HashMap<String, NamedMongoScript> scriptsMap = new HashMap<>(scripts.size());
-        for (NamedMongoScript script : scripts) {
-            scriptsMap.put(script.getName(), script);
+        ScriptTable scriptTable = MongoScriptReader.readScriptTableWith(description.getTestClass());
+        ScriptExecutionContext.putScriptTableForTestClass(description.getTestClass(), scriptTable);
+        registerHelpers(description, scriptTable);
+        if (ScriptExecutionContext.scriptExecutor().callsScriptsByName()) {
+            registerFixtures(description, scriptTable);
+        }
+        if (description.getAnnotation(TestData.class).prefetch()) {
+            ScriptExecutionContext.putTestMethodsForTestClass(description.getTestClass(), testMethodsOf(description));
         }
-        ScriptExecutionContext.putScriptsMapForTestClass(
-                description.getTestClass(), Collections.unmodifiableMap(scriptsMap));
     }
 
     @Override
     protected void finished(Description description) {
         super.finished(description);
-        ScriptExecutionContext.removeScriptsMapForTestClass(description.getTestClass());
+        ScriptExecutionContext.awaitPrefetchedPrepare(null);
+        ScriptExecutionContext.executePendingCleanup();
+        ScriptExecutionContext.drainBackgroundCleanups();
+        ScriptExecutionContext.removeTestMethodsForTestClass(description.getTestClass());
+        ScriptExecutionContext.removeScriptTableForTestClass(description.getTestClass());
+    }
+
+    /**
+     * Registers the helper functions of the test class's script file and included libraries,
+     * which are only uploaded if they are new or have changed.
+     */
+    private void registerHelpers(Description description, ScriptTable scriptTable) {
+        List<NamedMongoScript> helpers = new ArrayList<>(scriptTable.helpers());
+        for (String libraryName : description.getAnnotation(TestData.class).include()) {
+            helpers.addAll(MongoScriptReader.readLibraryWith(description.getTestClass(), libraryName));
+        }
+
+        if (!helpers.isEmpty()) {
+            ScriptExecutionContext.scriptExecutor().registerAll(helpers);
+        }
+    }
+
+    /**
+     * Registers the prepare and cleanup functions of the test methods about to run at once, so
+     * that executing them does not look them up one by one. Functions of other test methods
+     * are left unread, as a lazily indexed script table only reads the functions asked for.
+     */
+    private void registerFixtures(Description description, ScriptTable scriptTable) {
+        Set<String> names = scriptTable.names();
+        List<NamedMongoScript> fixtures = new ArrayList<>();
+        for (Description testMethod : testMethodsOf(description)) {
+            for (String prefix : FIXTURE_PREFIXES) {
+                String name = prefix + testMethod.getMethodName();
+                if (names.contains(name)) {
+                    fixtures.add(scriptTable.get(name));
+                }
+            }
+        }
+        if (!fixtures.isEmpty()) {
+            ScriptExecutionContext.scriptExecutor().registerByContent(fixtures);
+        }
+    }
+
+    /**
+     * Returns the test methods of the test class in the order the runner runs them, leaving
+     * out ignored ones.
+     */
+    private List<Description> testMethodsOf(Description description) {
+        List<Description> testMethods = new ArrayList<>();
+        for (Description child : description.getChildren()) {
+            if (child.isTest() && child.getAnnotation(Ignore.class) == null) {
+                testMethods.add(child);
+            }
+        }
+        return testMethods;
     }
 
     private boolean needToReadScriptFile(Description description) {
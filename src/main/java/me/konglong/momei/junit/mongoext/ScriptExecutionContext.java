@@ -16,19 +16,32 @@
 
 package me.konglong.momei.junit.mongoext;
 
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+import me.konglong.momei.mongodb.core.ExecutionGroup;
+import me.konglong.momei.mongodb.core.ExecutionOptions;
 import me.konglong.momei.mongodb.core.MongoScriptExecutor;
+import me.konglong.momei.mongodb.core.ScriptResult;
 import me.konglong.momei.mongodb.script.NamedMongoScript;
 import me.konglong.momei.mongodb.script.ScriptConstants;
+import me.konglong.momei.mongodb.script.ScriptTable;
+import me.konglong.momei.util.Assert;
 import org.junit.runner.Description;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
  * @author chenlong
  */
 abstract class ScriptExecutionContext {
 
+    private static final Logger logger = Loggers.getLogger(ScriptExecutionContext.class);
+
     private static final MongoScriptExecutor mongoScriptExecutor;
 
     static {
@@ -37,6 +50,13 @@ abstract class ScriptExecutionContext {
         final Thread shutdownHook = new Thread() {
             @Override
             public void run() {
+                try {
+                    if (backgroundCleanups != null) {
+                        backgroundCleanups.drain();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
                 try {
                     mongoScriptExecutor.destroy();
                 } catch (Exception e) {
@@ -47,28 +67,180 @@ abstract class ScriptExecutionContext {
         Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
 
-    private static final Map<String, Map<String, NamedMongoScript>>
-            testClassToScriptsMap = new HashMap<>();
+    private static final Map<String, ScriptTable> testClassToScriptTable = new HashMap<>();
+
+    // Cleanups of test classes that clean up in the background, see TestData#backgroundCleanup()
+    private static final BackgroundCleanups backgroundCleanups = new BackgroundCleanups(mongoScriptExecutor);
+
+    // Cleanup of the last test method, executed along with the next script to save a round trip
+    private static NamedMongoScript pendingCleanupScript;
+    private static ExecutionOptions pendingCleanupOptions;
+    // Display name of the test method the pending cleanup belongs to, for reporting
+    private static String pendingCleanupTestMethod;
+
+    // Test methods of each test class in the order they run, see TestData#prefetch()
+    private static final Map<String, List<Description>> testClassToTestMethods = new HashMap<>();
+    // Prepare script of the next test method, running in the background
+    private static Description prefetchedTestMethod;
+    private static Future<Object> prefetchedPrepare;
+
+    static void putScriptTableForTestClass(Class<?> testClass, ScriptTable scriptTable) {
+        testClassToScriptTable.put(testClass.getSimpleName(), scriptTable);
+    }
+
+    static void removeScriptTableForTestClass(Class<?> testClass) {
+        testClassToScriptTable.remove(testClass.getSimpleName());
+    }
+
+    static void putTestMethodsForTestClass(Class<?> testClass, List<Description> testMethods) {
+        testClassToTestMethods.put(testClass.getSimpleName(), testMethods);
+    }
+
+    static void removeTestMethodsForTestClass(Class<?> testClass) {
+        testClassToTestMethods.remove(testClass.getSimpleName());
+    }
+
+    /**
+     * Returns the test method that runs after the given one, or {@literal null} if it is the
+     * last or the order of its test class is unknown.
+     */
+    static Description nextTestMethodOf(Description desc) {
+        List<Description> testMethods = testClassToTestMethods.get(testClassSimpleName(desc));
+        int index = (testMethods == null) ? -1 : testMethods.indexOf(desc);
+        return (index == -1 || index + 1 == testMethods.size()) ? null : testMethods.get(index + 1);
+    }
 
-    static void putScriptsMapForTestClass(Class<?> testClass, Map<String, NamedMongoScript> scriptsMap) {
-        testClassToScriptsMap.put(testClass.getSimpleName(), scriptsMap);
+    /**
+     * Starts executing the prepare script of the given test method in the background, see
+     * {@link #awaitPrefetchedPrepare(Description)}.
+     */
+    static void prefetchPrepare(Description testMethod, NamedMongoScript script, ExecutionOptions options) {
+        Assert.state(prefetchedPrepare == null, "Prepare script of %s is prefetched already", prefetchedTestMethod);
+        prefetchedPrepare = mongoScriptExecutor.executeAsync(script, options);
+        prefetchedTestMethod = testMethod;
+        logger.debug(String.format("Prefetching preparing script %s for test method %s",
+                script.getName(), testMethod.getDisplayName()));
     }
 
-    static void removeScriptsMapForTestClass(Class<?> testClass) {
-        testClassToScriptsMap.remove(testClass.getSimpleName());
+    /**
+     * Waits for the prefetched prepare script, if any.
+     *
+     * @param desc the test method starting, or {@literal null} if none.
+     * @return whether the prepare script of the given test method was prefetched and executed.
+     */
+    static boolean awaitPrefetchedPrepare(Description desc) {
+        if (prefetchedPrepare == null) {
+            return false;
+        }
+        Description testMethod = prefetchedTestMethod;
+        ExecutionGroup group = new ExecutionGroup();
+        group.add(prefetchedPrepare);
+        prefetchedPrepare = null;
+        prefetchedTestMethod = null;
+
+        if (testMethod.equals(desc)) {
+            group.await();
+            return true;
+        }
+        // Such as a test method skipped by a failing assumption of a rule before this one
+        try {
+            group.await();
+            logger.warn("Prefetched preparing script for test method %s, which did not start", testMethod.getDisplayName());
+        } catch (RuntimeException e) {
+            logger.warn(String.format("Prefetched preparing script for test method %s failed", testMethod.getDisplayName()), e);
+        }
+        return false;
     }
 
     static MongoScriptExecutor scriptExecutor() {
         return mongoScriptExecutor;
     }
 
+    /**
+     * Defers the given cleanup script until the next script is executed or
+     * {@link #executePendingCleanup()} is called. A failure of the cleanup is reported with
+     * the test method it cleans up after, though it surfaces in a later one.
+     */
+    static void deferCleanup(NamedMongoScript cleanupScript, ExecutionOptions options, Description desc) {
+        executePendingCleanup();
+        pendingCleanupScript = cleanupScript;
+        pendingCleanupOptions = options;
+        pendingCleanupTestMethod = desc.getDisplayName();
+    }
+
+    /**
+     * Executes the pending cleanup script, if any, and then the given prepare script, in a
+     * single server round trip unless either has non-default options or prepare scripts are
+     * {@linkplain MongoScriptExecutor#recordsFixtures() recorded}.
+     */
+    static void executeAfterPendingCleanup(NamedMongoScript script, ExecutionOptions options) {
+        if (mongoScriptExecutor.recordsFixtures()) {
+            executePendingCleanup();
+            mongoScriptExecutor.executeRecorded(script, options);
+            return;
+        }
+        if (pendingCleanupScript == null || !pendingCleanupOptions.isDefault() || !options.isDefault()) {
+            executePendingCleanup();
+            mongoScriptExecutor.execute(script, options);
+            return;
+        }
+
+        List<NamedMongoScript> scripts = new ArrayList<>(2);
+        scripts.add(pendingCleanupScript);
+        scripts.add(script);
+        pendingCleanupScript = null;
+
+        List<ScriptResult> results = mongoScriptExecutor.executeAll(scripts);
+        ScriptResult cleanupResult = results.get(0);
+        Assert.state(cleanupResult.isOk(), "Failed to execute cleaning-up script %s for test method %s: %s",
+                cleanupResult.getName(), pendingCleanupTestMethod, cleanupResult.getError());
+        ScriptResult prepareResult = results.get(1);
+        Assert.state(prepareResult.isOk(), "Failed to execute script %s: %s", prepareResult.getName(), prepareResult.getError());
+    }
+
+    static void executePendingCleanup() {
+        if (pendingCleanupScript != null) {
+            NamedMongoScript cleanupScript = pendingCleanupScript;
+            pendingCleanupScript = null;
+            try {
+                mongoScriptExecutor.execute(cleanupScript, pendingCleanupOptions);
+            } catch (RuntimeException e) {
+                throw new IllegalStateException(String.format("Failed to execute cleaning-up script %s for test method %s",
+                        cleanupScript.getName(), pendingCleanupTestMethod), e);
+            }
+        }
+    }
+
+    /**
+     * Starts the given cleanup script in the background, see {@link BackgroundCleanups}.
+     */
+    static void cleanupInBackground(NamedMongoScript cleanupScript, ExecutionOptions options, Description desc) {
+        backgroundCleanups.submit(cleanupScript, options, desc.getDisplayName());
+    }
+
+    static boolean hasBackgroundCleanups() {
+        return !backgroundCleanups.isEmpty();
+    }
+
+    /**
+     * Waits for the background cleanups touching any of the given collections, or for all
+     * of them if {@literal null}.
+     */
+    static void fenceBackgroundCleanups(Set<String> collectionNames) {
+        backgroundCleanups.fence(collectionNames);
+    }
+
+    static void drainBackgroundCleanups() {
+        backgroundCleanups.drain();
+    }
+
     static NamedMongoScript getPrepareScript(Description desc) {
-        return testClassToScriptsMap.get(testClassSimpleName(desc))
+        return testClassToScriptTable.get(testClassSimpleName(desc))
                 .get(ScriptConstants.PREPARE_FUNC_NAME_PREFIX + testMethodName(desc));
     }
 
     static NamedMongoScript getCleanupScript(Description desc) {
-        return testClassToScriptsMap.get(testClassSimpleName(desc))
+        return testClassToScriptTable.get(testClassSimpleName(desc))
                 .get(ScriptConstants.CLEANUP_FUNC_NAME_PREFIX + testMethodName(desc));
     }
 
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.bulk;
+
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+import me.konglong.momei.mongodb.script.NamedMongoScript;
+import me.konglong.momei.util.Assert;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles scripts that only write plain documents, such as {@code for} loops of
+ * {@code db.coll.insert({...})} and {@code db.coll.remove(filter)} calls, into
+ * {@link CompiledScript}s executed as bulk writes through the driver instead of
+ * server-side {@literal JavaScript}. The supported subset is described in {@link JsParser}.
+ *
+ * <p>Compiled scripts, and scripts found not to compile, are cached by their code in a
+ * bounded LRU map.
+ *
+ * @author chenlong
+ */
+public final class BulkScriptCompiler {
+
+    private static final Logger logger = Loggers.getLogger(BulkScriptCompiler.class);
+
+    // Compared by identity, an empty function compiles to another empty list
+    private static final List<Statement> NOT_COMPILABLE = new ArrayList<>(0);
+
+    private final Map<String, List<Statement>> codeToStatements;
+
+    /**
+     * @param capacity the maximum number of scripts whose compilation is cached, must be positive.
+     */
+    public BulkScriptCompiler(final int capacity) {
+        Assert.isTrue(capacity > 0, "Capacity must be positive!");
+        this.codeToStatements = new LinkedHashMap<String, List<Statement>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Statement>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Compiles the given script.
+     *
+     * @return {@literal null} if the script uses more than the supported subset.
+     */
+    public CompiledScript compile(NamedMongoScript script) {
+        Assert.notNull(script, "Script must not be null!");
+        List<Statement> statements;
+        synchronized (codeToStatements) {
+            statements = codeToStatements.get(script.getCode());
+        }
+
+        if (statements == null) {
+            try {
+                statements = JsParser.parse(script.getCode());
+                logger.debug(String.format("Compiled script %s into bulk writes", script.getName()));
+            } catch (UnsupportedScriptException | IllegalArgumentException e) {
+                statements = NOT_COMPILABLE;
+                logger.debug(String.format("Script %s is left to eval: %s", script.getName(), e.getMessage()));
+            }
+            synchronized (codeToStatements) {
+                codeToStatements.put(script.getCode(), statements);
+            }
+        }
+        return (statements == NOT_COMPILABLE) ? null : new CompiledScript(script.getName(), statements);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.bulk;
+
+import com.mongodb.DBObject;
+import me.konglong.momei.base.Optional;
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+
+import java.util.List;
+
+/**
+ * A script compiled by {@link BulkScriptCompiler}, executed as bulk writes through the driver.
+ *
+ * @author chenlong
+ */
+public final class CompiledScript {
+
+    private static final Logger logger = Loggers.getLogger(CompiledScript.class);
+
+    private final String name;
+    private final List<Statement> statements;
+
+    CompiledScript(String name, List<Statement> statements) {
+        this.name = name;
+        this.statements = statements;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Evaluates the script into bulk writes and executes them. The script is evaluated in full
+     * before anything is written, so if it turns out to need more than was compiled, e.g. adds
+     * values of unsupported types, nothing is written.
+     *
+     * @return the numbers of inserted, removed, matched and upserted documents, or absent if
+     * the script has to be executed by {@literal db.eval} instead.
+     */
+    public Optional<DBObject> tryExecute(WriteEngine engine) {
+        WritePlan plan = new WritePlan();
+        try {
+            Scope scope = new Scope();
+            for (Statement statement : statements) {
+                statement.execute(scope, plan);
+            }
+        } catch (UnsupportedScriptException | IllegalArgumentException e) {
+            logger.debug(String.format("Could not evaluate compiled script %s: %s", name, e.getMessage()));
+            return Optional.absent();
+        }
+        return Optional.of(plan.execute(engine));
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.bulk;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.util.JSON;
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+import me.konglong.momei.mongodb.script.NamedMongoScript;
+import me.konglong.momei.util.Assert;
+
+import javax.script.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs scripts in a {@literal JavaScript} engine inside the JVM instead of by {@literal db.eval}
+ * on the server. Scripts see a {@code db} object and the shell helpers {@code ObjectId},
+ * {@code ISODate}, {@code NumberInt}, {@code NumberLong}, {@code print} and {@code printjson};
+ * the {@code insert}, {@code remove} and {@code update} calls on collections of {@code db}
+ * are buffered and sent as bulk writes of the configured batch size, see {@link ShellBridge};
+ * {@code find}, {@code findOne} and {@code count} read the collection once its writes are sent.
+ *
+ * <p>The engine is looked up through {@link ScriptEngineManager}, so one has to be on the
+ * class path: Nashorn ships with Java 8 to 14, later Java needs
+ * {@code org.openjdk.nashorn:nashorn-core}. Each script runs in a fresh global scope holding
+ * the helper functions it was given; an engine runs one script at a time.
+ *
+ * @author chenlong
+ */
+public final class EmbeddedScriptRunner {
+
+    private static final Logger logger = Loggers.getLogger(EmbeddedScriptRunner.class);
+
+    private static final String[] ENGINE_NAMES = {"nashorn", "rhino", "graal.js", "javascript"};
+    private static final String SHELL_RESOURCE = "shell.js";
+    private static final String BRIDGE_NAME = "__momei";
+    private static final String RUN_TEMPLATE = "JSON.stringify((%s).apply(null, JSON.parse(%s.args(), __momeiRevive)))";
+    private static final Pattern COLLECTION_PATH = Pattern.compile("\\bdb((?:\\.[A-Za-z_$][\\w$]*)+)");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ScriptEngine engine;
+    private final int batchSize;
+    // The shell compiled once if the engine can compile, evaluated into each fresh scope
+    private final javax.script.CompiledScript compiledShell;
+    private final String shell;
+
+    private EmbeddedScriptRunner(ScriptEngine engine, int batchSize, String shell) throws ScriptException {
+        this.engine = engine;
+        this.batchSize = batchSize;
+        this.shell = shell;
+        this.compiledShell = (engine instanceof Compilable) ? ((Compilable) engine).compile(shell) : null;
+    }
+
+    /**
+     * Creates a runner on the first {@literal JavaScript} engine found on the class path.
+     *
+     * @param batchSize the maximum number of writes to a collection sent in one bulk write,
+     *                  must be positive.
+     * @throws IllegalStateException if there is no {@literal JavaScript} engine.
+     */
+    public static EmbeddedScriptRunner create(int batchSize) {
+        Assert.isTrue(batchSize > 0, "Batch size must be positive!");
+        ScriptEngineManager manager = new ScriptEngineManager(EmbeddedScriptRunner.class.getClassLoader());
+        for (String engineName : ENGINE_NAMES) {
+            ScriptEngine engine = manager.getEngineByName(engineName);
+            if (engine != null) {
+                logger.info("Running scripts in the embedded %s engine", engine.getFactory().getEngineName());
+                try {
+                    return new EmbeddedScriptRunner(engine, batchSize, readShell());
+                } catch (ScriptException e) {
+                    throw new IllegalStateException("Could not compile " + SHELL_RESOURCE, e);
+                }
+            }
+        }
+        throw new IllegalStateException("No JavaScript engine found on the class path, "
+                + "add org.openjdk.nashorn:nashorn-core to run scripts embedded on Java 15 or later");
+    }
+
+    /**
+     * Runs the given script with the given arguments, then sends the writes still buffered.
+     * The writes a failing script made before it failed are sent as well, as by
+     * {@literal db.eval}.
+     *
+     * @param helpers     functions the script may call by name.
+     * @param args        BSON values passed to the function of the script.
+     * @param writeEngine executes the writes and reads of the script.
+     * @return what the function of the script returns, as a BSON value.
+     * @throws MongoException if the script fails.
+     */
+    public synchronized Object run(NamedMongoScript script, Collection<NamedMongoScript> helpers,
+                                   List<Object> args, WriteEngine writeEngine) {
+        Assert.notNull(script, "Script must not be null!");
+        Assert.notNull(helpers, "Helpers must not be null!");
+        Assert.notNull(args, "Args must not be null!");
+
+        ShellBridge bridge = new ShellBridge(writeEngine, batchSize, args);
+        Object json;
+        try {
+            Bindings bindings = engine.createBindings();
+            bindings.put(BRIDGE_NAME, bridge);
+            if (compiledShell != null) {
+                compiledShell.eval(bindings);
+            } else {
+                engine.eval(shell, bindings);
+            }
+            json = engine.eval(programOf(script, helpers), bindings);
+        } catch (ScriptException e) {
+            bridge.flush();
+            throw new MongoException(String.format("Script %s failed: %s", script.getName(), e.getMessage()), e);
+        }
+
+        DBObject writes = bridge.flush();
+        logger.debug(String.format("Ran script %s embedded with writes %s", script.getName(), writes));
+        return (json == null) ? null : ShellBridge.toBson(String.valueOf(json));
+    }
+
+    private static String programOf(NamedMongoScript script, Collection<NamedMongoScript> helpers) {
+        StringBuilder program = new StringBuilder();
+        Set<String> collectionPaths = new LinkedHashSet<>();
+        for (NamedMongoScript helper : helpers) {
+            program.append("var ").append(helper.getName()).append(" = ").append(helper.getCode()).append(";\n");
+            addCollectionPaths(collectionPaths, helper.getCode());
+        }
+        addCollectionPaths(collectionPaths, script.getCode());
+
+        program.append("__momeiDefineCollections(").append(JSON.serialize(collectionPaths)).append(");\n");
+        program.append(String.format(RUN_TEMPLATE, script.getCode(), BRIDGE_NAME));
+        return program.toString();
+    }
+
+    private static void addCollectionPaths(Set<String> collectionPaths, String code) {
+        Matcher matcher = COLLECTION_PATH.matcher(code);
+        while (matcher.find()) {
+            collectionPaths.add(matcher.group(1).substring(1));
+        }
+    }
+
+    private static String readShell() {
+        InputStream inputStream = EmbeddedScriptRunner.class.getResourceAsStream(SHELL_RESOURCE);
+        Assert.state(inputStream != null, "%s not found", SHELL_RESOURCE);
+
+        try (Reader reader = new InputStreamReader(inputStream, UTF_8)) {
+            StringBuilder shell = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                shell.append(buffer, 0, read);
+            }
+            return shell.toString();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read " + SHELL_RESOURCE, e);
+        }
+    }
+}
@@ -0,0 +1,694 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.bulk;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.BSON;
+import org.bson.types.ObjectId;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static me.konglong.momei.mongodb.bulk.JsTokenizer.Token;
+import static me.konglong.momei.mongodb.bulk.JsTokenizer.Type;
+
+/**
+ * Recursive descent parser of the {@literal JavaScript} subset {@link BulkScriptCompiler}
+ * compiles: a function without parameters whose body holds {@code var} declarations, blocks,
+ * {@code for} loops and calls of {@code insert}, {@code remove} and {@code update} on
+ * collections of {@code db}. Expressions are literals, object and array literals, variables,
+ * arithmetic and comparisons, and the constructors {@code ObjectId}, {@code ISODate},
+ * {@code Date}, {@code NumberInt} and {@code NumberLong}.
+ *
+ * @author chenlong
+ */
+final class JsParser {
+
+    private static final String[] DATE_PATTERNS = {
+            "yyyy-MM-dd'T'HH:mm:ss.SSSXXX", "yyyy-MM-dd'T'HH:mm:ssXXX", "yyyy-MM-dd'T'HH:mm:ss.SSS",
+            "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd"
+    };
+
+    private final List<Token> tokens;
+    private final Set<String> variables = new HashSet<>();
+    private int index;
+
+    private JsParser(List<Token> tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * Parses the code of a script into the statements of its function body.
+     *
+     * @throws UnsupportedScriptException if the code is not in the supported subset.
+     */
+    static List<Statement> parse(String code) {
+        JsParser parser = new JsParser(JsTokenizer.tokenize(code));
+        parser.expect("function");
+        parser.expect("(");
+        parser.expect(")");
+        List<Statement> statements = parser.block();
+        if (parser.peek().type != Type.END) {
+            throw parser.unsupported();
+        }
+        return statements;
+    }
+
+    private List<Statement> block() {
+        expect("{");
+        List<Statement> statements = new ArrayList<>();
+        while (!peek().is("}")) {
+            Statement statement = statement();
+            if (statement != null) {
+                statements.add(statement);
+            }
+        }
+        expect("}");
+        return statements;
+    }
+
+    private Statement statement() {
+        Token token = peek();
+        if (token.is(";")) {
+            index++;
+            return null;
+        }
+        if (token.is("{")) {
+            return sequence(block());
+        }
+        if (token.is("for")) {
+            return forLoop();
+        }
+        if (token.is("var")) {
+            Statement declaration = declaration();
+            skip(";");
+            return declaration;
+        }
+        if (token.is("db")) {
+            Statement write = write();
+            skip(";");
+            return write;
+        }
+        throw unsupported();
+    }
+
+    private Statement declaration() {
+        expect("var");
+        List<Statement> assignments = new ArrayList<>();
+        do {
+            assignments.add(assignment(identifier()));
+        } while (skip(","));
+        return sequence(assignments);
+    }
+
+    private Statement assignment(final String name) {
+        expect("=");
+        final Expression value = expression();
+        variables.add(name);
+        return new Statement() {
+            @Override
+            public void execute(Scope scope, WritePlan plan) {
+                scope.set(name, value.evaluate(scope));
+            }
+        };
+    }
+
+    private Statement forLoop() {
+        expect("for");
+        expect("(");
+        skip("var");
+        final Statement init = assignment(identifier());
+        expect(";");
+        final Expression condition = expression();
+        expect(";");
+        final Statement update = loopUpdate();
+        expect(")");
+        final Statement body = peek().is("{") ? sequence(block()) : statement();
+
+        return new Statement() {
+            @Override
+            public void execute(Scope scope, WritePlan plan) {
+                for (init.execute(scope, plan); truthy(condition.evaluate(scope)); update.execute(scope, plan)) {
+                    if (body != null) {
+                        body.execute(scope, plan);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Parses {@code i++}, {@code ++i}, {@code i--}, {@code --i}, {@code i += n},
+     * {@code i -= n} and {@code i = expr}.
+     */
+    private Statement loopUpdate() {
+        String operator;
+        final String name;
+        if (peek().is("++") || peek().is("--")) {
+            operator = next().text;
+            name = variable();
+        } else {
+            name = variable();
+            operator = next().text;
+        }
+
+        final Expression delta;
+        switch (operator) {
+            case "++":
+            case "--":
+                delta = constant(operator.equals("++") ? 1.0 : -1.0);
+                break;
+            case "+=":
+            case "-=":
+                final Expression operand = expression();
+                final boolean negate = operator.equals("-=");
+                delta = new Expression() {
+                    @Override
+                    public Object evaluate(Scope scope) {
+                        double value = JsValues.toNumber(operand.evaluate(scope));
+                        return negate ? -value : value;
+                    }
+                };
+                break;
+            case "=":
+                index--;
+                return assignment(name);
+            default:
+                throw unsupported();
+        }
+
+        return new Statement() {
+            @Override
+            public void execute(Scope scope, WritePlan plan) {
+                scope.set(name, JsValues.add(scope.get(name), delta.evaluate(scope)));
+            }
+        };
+    }
+
+    /**
+     * Parses {@code db.coll.method(...)} or {@code db.getCollection(name).method(...)}.
+     */
+    private Statement write() {
+        expect("db");
+        expect(".");
+
+        final Expression collectionName;
+        String method;
+        if (peek().is("getCollection")) {
+            index++;
+            expect("(");
+            collectionName = expression();
+            expect(")");
+            expect(".");
+            method = identifier();
+        } else {
+            StringBuilder name = new StringBuilder(identifier());
+            expect(".");
+            method = identifier();
+            while (skip(".")) {
+                name.append('.').append(method);
+                method = identifier();
+            }
+            collectionName = constant(name.toString());
+        }
+
+        final List<Expression> args = arguments();
+        switch (method) {
+            case "insert":
+                return insert(collectionName, args);
+            case "remove":
+                return remove(collectionName, args);
+            case "update":
+                return update(collectionName, args);
+            default:
+                throw unsupported();
+        }
+    }
+
+    private Statement insert(final Expression collectionName, final List<Expression> args) {
+        checkArgCount(args, 1, 1);
+        return new Statement() {
+            @Override
+            public void execute(Scope scope, WritePlan plan) {
+                String name = collectionNameOf(collectionName, scope);
+                Object documents = args.get(0).evaluate(scope);
+                if (documents instanceof BasicDBList) {
+                    for (Object document : (BasicDBList) documents) {
+                        plan.insert(name, toDocument(document));
+                    }
+                } else {
+                    plan.insert(name, toDocument(documents));
+                }
+            }
+        };
+    }
+
+    private Statement remove(final Expression collectionName, final List<Expression> args) {
+        checkArgCount(args, 0, 2);
+        return new Statement() {
+            @Override
+            public void execute(Scope scope, WritePlan plan) {
+                DBObject query = args.isEmpty() ? new BasicDBObject() : toDocument(args.get(0).evaluate(scope));
+                boolean justOne = (args.size() == 2) && truthy(args.get(1).evaluate(scope));
+                plan.remove(collectionNameOf(collectionName, scope), query, justOne);
+            }
+        };
+    }
+
+    private Statement update(final Expression collectionName, final List<Expression> args) {
+        checkArgCount(args, 2, 4);
+        return new Statement() {
+            @Override
+            public void execute(Scope scope, WritePlan plan) {
+                DBObject query = toDocument(args.get(0).evaluate(scope));
+                DBObject update = toDocument(args.get(1).evaluate(scope));
+                boolean upsert = false;
+                boolean multi = false;
+
+                if (args.size() >= 3) {
+                    Object third = args.get(2).evaluate(scope);
+                    if (third instanceof DBObject) {
+                        DBObject options = (DBObject) third;
+                        upsert = truthy(options.get("upsert"));
+                        multi = truthy(options.get("multi"));
+                    } else {
+                        upsert = truthy(third);
+                        multi = (args.size() == 4) && truthy(args.get(3).evaluate(scope));
+                    }
+                }
+                plan.update(collectionNameOf(collectionName, scope), query, update, upsert, multi);
+            }
+        };
+    }
+
+    private Expression expression() {
+        return equality();
+    }
+
+    private Expression equality() {
+        Expression left = relational();
+        while (peek().is("==") || peek().is("===") || peek().is("!=") || peek().is("!==")) {
+            left = comparison(next().text, left, relational());
+        }
+        return left;
+    }
+
+    private Expression relational() {
+        Expression left = additive();
+        while (peek().is("<") || peek().is("<=") || peek().is(">") || peek().is(">=")) {
+            left = comparison(next().text, left, additive());
+        }
+        return left;
+    }
+
+    private Expression additive() {
+        Expression left = multiplicative();
+        while (peek().is("+") || peek().is("-")) {
+            final String operator = next().text;
+            final Expression l = left;
+            final Expression r = multiplicative();
+            left = new Expression() {
+                @Override
+                public Object evaluate(Scope scope) {
+                    Object leftValue = l.evaluate(scope);
+                    Object rightValue = r.evaluate(scope);
+                    return operator.equals("+")
+                            ? JsValues.add(leftValue, rightValue)
+                            : JsValues.arithmetic(operator, leftValue, rightValue);
+                }
+            };
+        }
+        return left;
+    }
+
+    private Expression multiplicative() {
+        Expression left = unary();
+        while (peek().is("*") || peek().is("/") || peek().is("%")) {
+            final String operator = next().text;
+            final Expression l = left;
+            final Expression r = unary();
+            left = new Expression() {
+                @Override
+                public Object evaluate(Scope scope) {
+                    return JsValues.arithmetic(operator, l.evaluate(scope), r.evaluate(scope));
+                }
+            };
+        }
+        return left;
+    }
+
+    private Expression unary() {
+        if (peek().is("-") || peek().is("+")) {
+            final boolean negate = next().is("-");
+            final Expression operand = unary();
+            return new Expression() {
+                @Override
+                public Object evaluate(Scope scope) {
+                    double value = JsValues.toNumber(operand.evaluate(scope));
+                    return negate ? -value : value;
+                }
+            };
+        }
+        return primary();
+    }
+
+    private Expression primary() {
+        Token token = next();
+        switch (token.type) {
+            case NUMBER:
+                return constant(parseNumber(token.text));
+            case STRING:
+                return constant(token.text);
+            case REGEX:
+                return regex(token);
+            case IDENTIFIER:
+                return identifierExpression(token);
+            case PUNCTUATOR:
+                if (token.is("(")) {
+                    Expression expression = expression();
+                    expect(")");
+                    return expression;
+                }
+                if (token.is("{")) {
+                    return objectLiteral();
+                }
+                if (token.is("[")) {
+                    return arrayLiteral();
+                }
+                throw unsupported();
+            default:
+                throw unsupported();
+        }
+    }
+
+    private Expression identifierExpression(Token token) {
+        switch (token.text) {
+            case "true":
+                return constant(Boolean.TRUE);
+            case "false":
+                return constant(Boolean.FALSE);
+            case "null":
+                return constant(null);
+            case "new":
+                return constructor(identifier(), true);
+            case "ObjectId":
+            case "ISODate":
+            case "Date":
+            case "NumberInt":
+            case "NumberLong":
+                return constructor(token.text, false);
+            default:
+                break;
+        }
+
+        final String name = token.text;
+        if (!variables.contains(name)) {
+            throw unsupported(token);
+        }
+        return new Expression() {
+            @Override
+            public Object evaluate(Scope scope) {
+                return scope.get(name);
+            }
+        };
+    }
+
+    private Expression constructor(String name, boolean isNew) {
+        final List<Expression> args = arguments();
+        switch (name) {
+            case "ObjectId":
+                checkArgCount(args, 0, 1);
+                return new Expression() {
+                    @Override
+                    public Object evaluate(Scope scope) {
+                        return args.isEmpty() ? new ObjectId() : toObjectId(args.get(0).evaluate(scope));
+                    }
+                };
+            case "ISODate":
+            case "Date":
+                // Date() without new returns a string in JavaScript
+                if (name.equals("Date") && !isNew) {
+                    throw unsupported();
+                }
+                checkArgCount(args, 0, 1);
+                return new Expression() {
+                    @Override
+                    public Object evaluate(Scope scope) {
+                        return args.isEmpty() ? new Date() : toDate(args.get(0).evaluate(scope));
+                    }
+                };
+            case "NumberInt":
+            case "NumberLong":
+                checkArgCount(args, 1, 1);
+                final boolean isInt = name.equals("NumberInt");
+                return new Expression() {
+                    @Override
+                    public Object evaluate(Scope scope) {
+                        Object value = args.get(0).evaluate(scope);
+                        double number = (value instanceof String) ? Double.parseDouble((String) value) : JsValues.toNumber(value);
+                        return isInt ? (Object) (int) number : (Object) (long) number;
+                    }
+                };
+            default:
+                throw unsupported();
+        }
+    }
+
+    private Expression objectLiteral() {
+        final Map<String, Expression> fields = new LinkedHashMap<>();
+        while (!peek().is("}")) {
+            Token key = next();
+            if (key.type != Type.IDENTIFIER && key.type != Type.STRING && key.type != Type.NUMBER) {
+                throw unsupported(key);
+            }
+            expect(":");
+            fields.put(key.type == Type.NUMBER ? JsValues.toJsString(parseNumber(key.text)) : key.text, expression());
+            if (!skip(",")) {
+                break;
+            }
+        }
+        expect("}");
+
+        return new Expression() {
+            @Override
+            public Object evaluate(Scope scope) {
+                BasicDBObject document = new BasicDBObject();
+                for (Map.Entry<String, Expression> field : fields.entrySet()) {
+                    document.put(field.getKey(), field.getValue().evaluate(scope));
+                }
+                return document;
+            }
+        };
+    }
+
+    private Expression arrayLiteral() {
+        final List<Expression> elements = new ArrayList<>();
+        while (!peek().is("]")) {
+            elements.add(expression());
+            if (!skip(",")) {
+                break;
+            }
+        }
+        expect("]");
+
+        return new Expression() {
+            @Override
+            public Object evaluate(Scope scope) {
+                BasicDBList list = new BasicDBList();
+                for (Expression element : elements) {
+                    list.add(element.evaluate(scope));
+                }
+                return list;
+            }
+        };
+    }
+
+    private Expression regex(Token token) {
+        if (token.flags.indexOf('g') != -1 || token.flags.indexOf('y') != -1) {
+            throw unsupported(token);
+        }
+        final Pattern pattern = Pattern.compile(token.text, BSON.regexFlags(token.flags));
+        return constant(pattern);
+    }
+
+    private Expression comparison(final String operator, final Expression left, final Expression right) {
+        return new Expression() {
+            @Override
+            public Object evaluate(Scope scope) {
+                return JsValues.compare(operator, left.evaluate(scope), right.evaluate(scope));
+            }
+        };
+    }
+
+    private List<Expression> arguments() {
+        expect("(");
+        List<Expression> args = new ArrayList<>();
+        while (!peek().is(")")) {
+            args.add(expression());
+            if (!skip(",")) {
+                break;
+            }
+        }
+        expect(")");
+        return args;
+    }
+
+    private static Expression constant(final Object value) {
+        return new Expression() {
+            @Override
+            public Object evaluate(Scope scope) {
+                return value;
+            }
+        };
+    }
+
+    private static Statement sequence(final List<Statement> statements) {
+        return new Statement() {
+            @Override
+            public void execute(Scope scope, WritePlan plan) {
+                for (Statement statement : statements) {
+                    statement.execute(scope, plan);
+                }
+            }
+        };
+    }
+
+    private static String collectionNameOf(Expression collectionName, Scope scope) {
+        Object name = collectionName.evaluate(scope);
+        if (!(name instanceof String)) {
+            throw new UnsupportedScriptException("Not a collection name: " + name);
+        }
+        return (String) name;
+    }
+
+    private static DBObject toDocument(Object value) {
+        if (!(value instanceof DBObject) || value instanceof BasicDBList) {
+            throw new UnsupportedScriptException("Not a document: " + value);
+        }
+        return (DBObject) value;
+    }
+
+    private static boolean truthy(Object value) {
+        if (value == null) {
+            return false;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value instanceof Double) {
+            double number = (Double) value;
+            return number != 0 && !Double.isNaN(number);
+        }
+        if (value instanceof String) {
+            return !((String) value).isEmpty();
+        }
+        return true;
+    }
+
+    private static ObjectId toObjectId(Object value) {
+        if (!(value instanceof String) || !ObjectId.isValid((String) value)) {
+            throw new UnsupportedScriptException("Not an object id: " + value);
+        }
+        return new ObjectId((String) value);
+    }
+
+    static Date toDate(Object value) {
+        if (value instanceof Double) {
+            return new Date(((Double) value).longValue());
+        }
+        if (!(value instanceof String)) {
+            throw new UnsupportedScriptException("Not a date: " + value);
+        }
+
+        for (String datePattern : DATE_PATTERNS) {
+            SimpleDateFormat format = new SimpleDateFormat(datePattern);
+            // Dates without zone are UTC, as in the mongo shell
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            try {
+                return format.parse((String) value);
+            } catch (ParseException e) {
+                // Try the next pattern
+            }
+        }
+        throw new UnsupportedScriptException("Not a date: " + value);
+    }
+
+    private static Double parseNumber(String text) {
+        return Double.valueOf(text);
+    }
+
+    private void checkArgCount(List<Expression> args, int min, int max) {
+        if (args.size() < min || args.size() > max) {
+            throw unsupported();
+        }
+    }
+
+    private String identifier() {
+        Token token = next();
+        if (token.type != Type.IDENTIFIER) {
+            throw unsupported(token);
+        }
+        return token.text;
+    }
+
+    private String variable() {
+        String name = identifier();
+        if (!variables.contains(name)) {
+            throw new UnsupportedScriptException("Undefined variable " + name);
+        }
+        return name;
+    }
+
+    private Token peek() {
+        return tokens.get(index);
+    }
+
+    private Token next() {
+        Token token = tokens.get(index);
+        if (token.type != Type.END) {
+            index++;
+        }
+        return token;
+    }
+
+    private void expect(String text) {
+        Token token = next();
+        if (!token.is(text)) {
+            throw unsupported(token);
+        }
+    }
+
+    private boolean skip(String text) {
+        if (peek().is(text)) {
+            index++;
+            return true;
+        }
+        return false;
+    }
+
+    private UnsupportedScriptException unsupported() {
+        return unsupported(tokens.get(Math.max(index - 1, 0)));
+    }
+
+    private static UnsupportedScriptException unsupported(Token token) {
+        return new UnsupportedScriptException("Unsupported token: " + token);
+    }
+}
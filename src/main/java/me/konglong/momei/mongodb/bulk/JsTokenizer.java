@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.bulk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the code of a script into the tokens {@link JsParser} works on.
+ *
+ * @author chenlong
+ */
+final class JsTokenizer {
+
+    enum Type {
+        IDENTIFIER, NUMBER, STRING, REGEX, PUNCTUATOR, END
+    }
+
+    /**
+     * Punctuators of more than one char, longest first.
+     */
+    private static final String[] MULTI_CHAR_PUNCTUATORS = {
+            "===", "!==", "<=", ">=", "==", "!=", "++", "--", "+=", "-=", "&&", "||"
+    };
+
+    private final String source;
+    private int pos;
+
+    private JsTokenizer(String source) {
+        this.source = source;
+    }
+
+    static List<Token> tokenize(String source) {
+        JsTokenizer tokenizer = new JsTokenizer(source);
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = tokenizer.next(tokens.isEmpty() ? null : tokens.get(tokens.size() - 1));
+            tokens.add(token);
+        } while (token.type != Type.END);
+        return tokens;
+    }
+
+    private Token next(Token previous) {
+        while (pos < source.length() && Character.isWhitespace(source.charAt(pos))) {
+            pos++;
+        }
+        if (pos == source.length()) {
+            return new Token(Type.END, "", null);
+        }
+
+        char c = source.charAt(pos);
+        if (Character.isJavaIdentifierStart(c)) {
+            int start = pos;
+            while (pos < source.length() && Character.isJavaIdentifierPart(source.charAt(pos))) {
+                pos++;
+            }
+            return new Token(Type.IDENTIFIER, source.substring(start, pos), null);
+        }
+        if (Character.isDigit(c) || (c == '.' && pos + 1 < source.length() && Character.isDigit(source.charAt(pos + 1)))) {
+            return number();
+        }
+        if (c == '"' || c == '\'') {
+            return string(c);
+        }
+        if (c == '/' && regexAllowedAfter(previous)) {
+            return regex();
+        }
+
+        for (String punctuator : MULTI_CHAR_PUNCTUATORS) {
+            if (source.startsWith(punctuator, pos)) {
+                pos += punctuator.length();
+                return new Token(Type.PUNCTUATOR, punctuator, null);
+            }
+        }
+        pos++;
+        return new Token(Type.PUNCTUATOR, String.valueOf(c), null);
+    }
+
+    private Token number() {
+        int start = pos;
+        if (source.startsWith("0x", pos) || source.startsWith("0X", pos)) {
+            pos += 2;
+            while (pos < source.length() && Character.digit(source.charAt(pos), 16) != -1) {
+                pos++;
+            }
+            return new Token(Type.NUMBER, String.valueOf(Long.parseLong(source.substring(start + 2, pos), 16)), null);
+        }
+
+        while (pos < source.length()) {
+            char c = source.charAt(pos);
+            boolean isSign = (c == '+' || c == '-') && (source.charAt(pos - 1) == 'e' || source.charAt(pos - 1) == 'E');
+            if (!Character.isDigit(c) && c != '.' && c != 'e' && c != 'E' && !isSign) {
+                break;
+            }
+            pos++;
+        }
+        return new Token(Type.NUMBER, source.substring(start, pos), null);
+    }
+
+    private Token string(char quote) {
+        StringBuilder value = new StringBuilder();
+        pos++;
+        while (true) {
+            if (pos >= source.length()) {
+                throw new UnsupportedScriptException("Unterminated string");
+            }
+            char c = source.charAt(pos++);
+            if (c == quote) {
+                return new Token(Type.STRING, value.toString(), null);
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (pos >= source.length()) {
+                throw new UnsupportedScriptException("Unterminated string");
+            }
+
+            char escaped = source.charAt(pos++);
+            switch (escaped) {
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case '0':
+                    value.append('\0');
+                    break;
+                case 'u':
+                    value.append((char) Integer.parseInt(hex(4), 16));
+                    break;
+                case 'x':
+                    value.append((char) Integer.parseInt(hex(2), 16));
+                    break;
+                default:
+                    value.append(escaped);
+                    break;
+            }
+        }
+    }
+
+    private String hex(int length) {
+        if (pos + length > source.length()) {
+            throw new UnsupportedScriptException("Malformed escape sequence");
+        }
+        String hex = source.substring(pos, pos + length);
+        pos += length;
+        return hex;
+    }
+
+    private Token regex() {
+        int start = ++pos;
+        boolean escaped = false;
+        boolean inCharClass = false;
+        while (true) {
+            if (pos >= source.length()) {
+                throw new UnsupportedScriptException("Unterminated regex");
+            }
+            char c = source.charAt(pos++);
+            if (escaped) {
+                escaped = false;
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (inCharClass) {
+                inCharClass = (c != ']');
+            } else if (c == '[') {
+                inCharClass = true;
+            } else if (c == '/') {
+                break;
+            }
+        }
+
+        String pattern = source.substring(start, pos - 1);
+        int flagsStart = pos;
+        while (pos < source.length() && Character.isLetter(source.charAt(pos))) {
+            pos++;
+        }
+        return new Token(Type.REGEX, pattern, source.substring(flagsStart, pos));
+    }
+
+    private static boolean regexAllowedAfter(Token previous) {
+        if (previous == null) {
+            return true;
+        }
+        switch (previous.type) {
+            case PUNCTUATOR:
+                return !previous.is(")") && !previous.is("]") && !previous.is("}");
+            case IDENTIFIER:
+                return previous.is("return") || previous.is("typeof");
+            default:
+                return false;
+        }
+    }
+
+    static final class Token {
+
+        final Type type;
+        final String text;
+        // Flags of a regex
+        final String flags;
+
+        private Token(Type type, String text, String flags) {
+            this.type = type;
+            this.text = text;
+            this.flags = flags;
+        }
+
+        boolean is(String punctuatorOrIdentifier) {
+            return (type == Type.PUNCTUATOR || type == Type.IDENTIFIER) && text.equals(punctuatorOrIdentifier);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.bulk;
+
+/**
+ * Operators on values as {@literal JavaScript} applies them, for the values a compiled script
+ * deals with. Numbers are {@link Double}s, as they are in the server-side {@literal JavaScript}.
+ *
+ * @author chenlong
+ */
+final class JsValues {
+
+    private static final double MAX_PLAIN_INTEGER = 1e21;
+
+    private JsValues() {
+    }
+
+    static Object add(Object left, Object right) {
+        if (left instanceof String || right instanceof String) {
+            return toJsString(left) + toJsString(right);
+        }
+        return toNumber(left) + toNumber(right);
+    }
+
+    static Object arithmetic(String operator, Object left, Object right) {
+        double l = toNumber(left);
+        double r = toNumber(right);
+        switch (operator) {
+            case "-":
+                return l - r;
+            case "*":
+                return l * r;
+            case "/":
+                return l / r;
+            case "%":
+                return l % r;
+            default:
+                throw new UnsupportedScriptException("Unsupported operator " + operator);
+        }
+    }
+
+    static boolean compare(String operator, Object left, Object right) {
+        switch (operator) {
+            case "==":
+            case "===":
+                return strictEquals(left, right);
+            case "!=":
+            case "!==":
+                return !strictEquals(left, right);
+            default:
+                break;
+        }
+
+        double l = toNumber(left);
+        double r = toNumber(right);
+        switch (operator) {
+            case "<":
+                return l < r;
+            case "<=":
+                return l <= r;
+            case ">":
+                return l > r;
+            case ">=":
+                return l >= r;
+            default:
+                throw new UnsupportedScriptException("Unsupported operator " + operator);
+        }
+    }
+
+    static double toNumber(Object value) {
+        if (value instanceof Double) {
+            return (Double) value;
+        }
+        throw new UnsupportedScriptException("Not a number: " + value);
+    }
+
+    static String toJsString(Object value) {
+        if (value == null) {
+            return "null";
+        }
+        if (value instanceof String || value instanceof Boolean) {
+            return value.toString();
+        }
+        if (value instanceof Double) {
+            double number = (Double) value;
+            if (number == Math.rint(number) && Math.abs(number) < MAX_PLAIN_INTEGER) {
+                return String.valueOf((long) number);
+            }
+            return Double.isNaN(number) ? "NaN" : Double.toString(number);
+        }
+        throw new UnsupportedScriptException("Cannot convert to string: " + value);
+    }
+
+    private static boolean strictEquals(Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return ((Double) left).doubleValue() == ((Double) right).doubleValue();
+        }
+        if ((left == null || left instanceof String || left instanceof Boolean)
+                && (right == null || right instanceof String || right instanceof Boolean)) {
+            return (left == null) ? right == null : left.equals(right);
+        }
+        throw new UnsupportedScriptException("Cannot compare " + left + " and " + right);
+    }
+}
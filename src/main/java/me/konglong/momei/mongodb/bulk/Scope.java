@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.bulk;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Variables of a compiled script while it is evaluated.
+ *
+ * @author chenlong
+ */
+final class Scope {
+
+    private final Map<String, Object> variables = new HashMap<>();
+
+    Object get(String name) {
+        if (!variables.containsKey(name)) {
+            throw new UnsupportedScriptException("Undefined variable " + name);
+        }
+        return variables.get(name);
+    }
+
+    void set(String name, Object value) {
+        variables.put(name, value);
+    }
+}
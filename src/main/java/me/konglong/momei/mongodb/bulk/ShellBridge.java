@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.bulk;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+import org.bson.types.ObjectId;
+
+import java.util.List;
+
+/**
+ * The Java side of the {@code db} object of scripts run by {@link EmbeddedScriptRunner}.
+ * Documents arrive as extended JSON, and writes are buffered in a {@link WritePlan} whose
+ * writes to a collection are flushed as bulk writes once they reach the batch size, or before
+ * the collection is read.
+ *
+ * <p>Public only so that script engines can call it; its methods are meant for the shim.
+ *
+ * @author chenlong
+ */
+public final class ShellBridge {
+
+    private static final Logger logger = Loggers.getLogger(ShellBridge.class);
+
+    // Wrappers of NumberInt and NumberLong, see shell.js
+    private static final String INT_KEY = "$momeiInt";
+    private static final String LONG_KEY = "$momeiLong";
+
+    private final WriteEngine engine;
+    private final int batchSize;
+    private final List<Object> args;
+    private final WritePlan plan = new WritePlan();
+
+    ShellBridge(WriteEngine engine, int batchSize, List<Object> args) {
+        this.engine = engine;
+        this.batchSize = batchSize;
+        this.args = args;
+    }
+
+    public String args() {
+        return JSON.serialize(args);
+    }
+
+    public String dbName() {
+        return engine.getDatabaseName();
+    }
+
+    public String newObjectId() {
+        return new ObjectId().toHexString();
+    }
+
+    public double parseDate(String value) {
+        return JsParser.toDate(value).getTime();
+    }
+
+    public void print(String message) {
+        logger.info(message);
+    }
+
+    public void insert(String collectionName, String document) {
+        plan.insert(collectionName, toDocument(document));
+        flushIfFull(collectionName);
+    }
+
+    public void remove(String collectionName, String query, boolean justOne) {
+        plan.remove(collectionName, toDocument(query), justOne);
+        flushIfFull(collectionName);
+    }
+
+    public void update(String collectionName, String query, String update, boolean upsert, boolean multi) {
+        plan.update(collectionName, toDocument(query), toDocument(update), upsert, multi);
+        flushIfFull(collectionName);
+    }
+
+    public double count(String collectionName, String query) {
+        plan.flush(engine, collectionName);
+        return engine.count(collectionName, toDocument(query));
+    }
+
+    public String findOne(String collectionName, String query) {
+        plan.flush(engine, collectionName);
+        DBObject document = engine.findOne(collectionName, toDocument(query));
+        return (document == null) ? null : JSON.serialize(document);
+    }
+
+    public String find(String collectionName, String query, String projection, String sort, int skip, int limit) {
+        plan.flush(engine, collectionName);
+        List<DBObject> documents = engine.find(collectionName, toDocument(query),
+                (projection == null) ? null : toDocument(projection), (sort == null) ? null : toDocument(sort),
+                skip, limit);
+        return JSON.serialize(documents);
+    }
+
+    public void drop(String collectionName) {
+        plan.flush(engine, collectionName);
+        engine.drop(collectionName);
+    }
+
+    /**
+     * Executes the writes not flushed yet.
+     *
+     * @return the numbers of inserted, removed, matched and upserted documents.
+     */
+    DBObject flush() {
+        return plan.execute(engine);
+    }
+
+    /**
+     * Converts extended JSON written by the shim into BSON values, with numbers as doubles
+     * as in the mongo shell unless wrapped by {@code NumberInt} or {@code NumberLong}.
+     */
+    static Object toBson(String json) {
+        return normalize(JSON.parse(json));
+    }
+
+    private void flushIfFull(String collectionName) {
+        if (plan.pendingCount(collectionName) >= batchSize) {
+            plan.flush(engine, collectionName);
+        }
+    }
+
+    private static DBObject toDocument(String json) {
+        Object value = toBson(json);
+        if (!(value instanceof DBObject) || value instanceof BasicDBList) {
+            throw new IllegalArgumentException("Not a document: " + json);
+        }
+        return (DBObject) value;
+    }
+
+    private static Object normalize(Object value) {
+        if (value instanceof Integer || value instanceof Long) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof BasicDBList) {
+            BasicDBList list = (BasicDBList) value;
+            for (int i = 0; i < list.size(); i++) {
+                list.set(i, normalize(list.get(i)));
+            }
+            return list;
+        }
+        if (value instanceof BasicDBObject) {
+            BasicDBObject document = (BasicDBObject) value;
+            if (document.size() == 1 && document.containsField(INT_KEY)) {
+                return ((Number) document.get(INT_KEY)).intValue();
+            }
+            if (document.size() == 1 && document.containsField(LONG_KEY)) {
+                return Long.valueOf(String.valueOf(document.get(LONG_KEY)));
+            }
+            for (String key : document.keySet()) {
+                document.put(key, normalize(document.get(key)));
+            }
+            return document;
+        }
+        return value;
+    }
+}
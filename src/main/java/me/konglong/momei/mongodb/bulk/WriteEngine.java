@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.bulk;
+
+import com.mongodb.*;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.*;
+import me.konglong.momei.util.Assert;
+import org.bson.BsonDocumentWrapper;
+import org.bson.codecs.Encoder;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Executes the writes and reads of compiled scripts and of scripts run embedded through one of
+ * the APIs of the driver: the {@linkplain #legacy(DB) legacy} {@code DB}/{@code DBCollection}
+ * API, or the {@linkplain #of(MongoDatabase) MongoDatabase} API, which encodes documents
+ * straight onto the wire with the {@link com.mongodb.DBObjectCodec} and sends each run of writes
+ * as a single {@code bulkWrite}.
+ *
+ * @author chenlong
+ */
+public abstract class WriteEngine {
+
+    WriteEngine() {
+    }
+
+    /**
+     * Returns the engine on the legacy {@code DB}/{@code DBCollection} API.
+     */
+    public static WriteEngine legacy(DB db) {
+        Assert.notNull(db, "DB must not be null!");
+        return new LegacyEngine(db);
+    }
+
+    /**
+     * Returns the engine on the {@code MongoDatabase}/{@code MongoCollection} API.
+     */
+    public static WriteEngine of(MongoDatabase database) {
+        Assert.notNull(database, "Database must not be null!");
+        return new DatabaseEngine(database);
+    }
+
+    /**
+     * Returns the name of the engine, for reporting.
+     */
+    public abstract String getName();
+
+    abstract String getDatabaseName();
+
+    /**
+     * Executes the given run of writes as a single bulk write, unordered unless it updates.
+     */
+    abstract void execute(String collectionName, WritePlan.Run run, WritePlan.Totals totals);
+
+    abstract long count(String collectionName, DBObject query);
+
+    abstract DBObject findOne(String collectionName, DBObject query);
+
+    /**
+     * Returns the documents matching the given query.
+     *
+     * @param projection the fields to return, {@literal null} for all.
+     * @param sort       the order to return them in, {@literal null} for natural order.
+     * @param limit      the maximum number of documents to return, {@literal 0} for no limit.
+     */
+    abstract List<DBObject> find(String collectionName, DBObject query, DBObject projection, DBObject sort,
+                                 int skip, int limit);
+
+    abstract void drop(String collectionName);
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    private static final class LegacyEngine extends WriteEngine {
+
+        private final DB db;
+
+        private LegacyEngine(DB db) {
+            this.db = db;
+        }
+
+        @Override
+        public String getName() {
+            return "legacy";
+        }
+
+        @Override
+        String getDatabaseName() {
+            return db.getName();
+        }
+
+        @Override
+        void execute(String collectionName, WritePlan.Run run, WritePlan.Totals totals) {
+            DBCollection collection = db.getCollection(collectionName);
+            BulkWriteOperation bulk = (run.kind == WritePlan.Kind.UPDATE)
+                    ? collection.initializeOrderedBulkOperation()
+                    : collection.initializeUnorderedBulkOperation();
+
+            for (WritePlan.Write write : run.writes) {
+                switch (run.kind) {
+                    case INSERT:
+                        bulk.insert(write.document);
+                        break;
+                    case REMOVE:
+                        if (write.multi) {
+                            bulk.find(write.document).remove();
+                        } else {
+                            bulk.find(write.document).removeOne();
+                        }
+                        break;
+                    case UPDATE:
+                        addUpdate(bulk, write);
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown kind: " + run.kind);
+                }
+            }
+
+            BulkWriteResult result = bulk.execute();
+            totals.add(result.getInsertedCount(), result.getRemovedCount(),
+                    result.getMatchedCount(), result.getUpserts().size());
+        }
+
+        @Override
+        long count(String collectionName, DBObject query) {
+            return db.getCollection(collectionName).count(query);
+        }
+
+        @Override
+        DBObject findOne(String collectionName, DBObject query) {
+            return db.getCollection(collectionName).findOne(query);
+        }
+
+        @Override
+        List<DBObject> find(String collectionName, DBObject query, DBObject projection, DBObject sort,
+                            int skip, int limit) {
+            DBCursor cursor = db.getCollection(collectionName).find(query, projection).skip(skip).limit(limit);
+            if (sort != null) {
+                cursor.sort(sort);
+            }
+            try {
+                return cursor.toArray();
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        void drop(String collectionName) {
+            db.getCollection(collectionName).drop();
+        }
+
+        private static void addUpdate(BulkWriteOperation bulk, WritePlan.Write write) {
+            BulkWriteRequestBuilder request = bulk.find(write.document);
+            boolean replacement = write.isReplacement();
+
+            if (write.upsert) {
+                BulkUpdateRequestBuilder upsert = request.upsert();
+                if (replacement) {
+                    upsert.replaceOne(write.update);
+                } else if (write.multi) {
+                    upsert.update(write.update);
+                } else {
+                    upsert.updateOne(write.update);
+                }
+            } else if (replacement) {
+                request.replaceOne(write.update);
+            } else if (write.multi) {
+                request.update(write.update);
+            } else {
+                request.updateOne(write.update);
+            }
+        }
+    }
+
+    private static final class DatabaseEngine extends WriteEngine {
+
+        private final MongoDatabase database;
+        private final Encoder<DBObject> encoder;
+
+        private DatabaseEngine(MongoDatabase database) {
+            this.database = database;
+            this.encoder = database.getCodecRegistry().get(DBObject.class);
+        }
+
+        @Override
+        public String getName() {
+            return "database";
+        }
+
+        @Override
+        String getDatabaseName() {
+            return database.getName();
+        }
+
+        @Override
+        void execute(String collectionName, WritePlan.Run run, WritePlan.Totals totals) {
+            List<WriteModel<DBObject>> requests = new ArrayList<>(run.writes.size());
+            for (WritePlan.Write write : run.writes) {
+                switch (run.kind) {
+                    case INSERT:
+                        requests.add(new InsertOneModel<>(write.document));
+                        break;
+                    case REMOVE:
+                        requests.add(write.multi
+                                ? new DeleteManyModel<DBObject>(toBson(write.document))
+                                : new DeleteOneModel<DBObject>(toBson(write.document)));
+                        break;
+                    case UPDATE:
+                        requests.add(updateOf(write));
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown kind: " + run.kind);
+                }
+            }
+
+            com.mongodb.bulk.BulkWriteResult result = collectionOf(collectionName).bulkWrite(requests,
+                    new BulkWriteOptions().ordered(run.kind == WritePlan.Kind.UPDATE));
+            totals.add(result.getInsertedCount(), result.getDeletedCount(),
+                    result.getMatchedCount(), result.getUpserts().size());
+        }
+
+        @Override
+        long count(String collectionName, DBObject query) {
+            return collectionOf(collectionName).count(toBson(query));
+        }
+
+        @Override
+        DBObject findOne(String collectionName, DBObject query) {
+            return collectionOf(collectionName).find(toBson(query)).first();
+        }
+
+        @Override
+        List<DBObject> find(String collectionName, DBObject query, DBObject projection, DBObject sort,
+                            int skip, int limit) {
+            FindIterable<DBObject> documents = collectionOf(collectionName).find(toBson(query)).skip(skip).limit(limit);
+            if (projection != null) {
+                documents.projection(toBson(projection));
+            }
+            if (sort != null) {
+                documents.sort(toBson(sort));
+            }
+            return documents.into(new ArrayList<DBObject>());
+        }
+
+        @Override
+        void drop(String collectionName) {
+            collectionOf(collectionName).drop();
+        }
+
+        private WriteModel<DBObject> updateOf(WritePlan.Write write) {
+            UpdateOptions options = new UpdateOptions().upsert(write.upsert);
+            if (write.isReplacement()) {
+                return new ReplaceOneModel<>(toBson(write.document), write.update, options);
+            }
+            return write.multi
+                    ? new UpdateManyModel<DBObject>(toBson(write.document), toBson(write.update), options)
+                    : new UpdateOneModel<DBObject>(toBson(write.document), toBson(write.update), options);
+        }
+
+        private MongoCollection<DBObject> collectionOf(String collectionName) {
+            return database.getCollection(collectionName, DBObject.class);
+        }
+
+        // Encoded by the codec when the command is written, without an intermediate document
+        private Bson toBson(DBObject document) {
+            return new BsonDocumentWrapper<>(document, encoder);
+        }
+    }
+}
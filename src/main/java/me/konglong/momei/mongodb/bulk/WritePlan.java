@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.bulk;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The writes a compiled script makes, grouped into bulk write operations.
+ *
+ * <p>Writes to different collections do not affect each other, so the writes are grouped by
+ * collection, and within a collection consecutive writes of the same kind form a run. A run of
+ * inserts or removes is executed as an unordered bulk write, as they give the same result in
+ * any order; a run of updates is executed as an ordered one.
+ *
+ * <p>The writes of a collection can be flushed before the others, when they reach a batch size
+ * or before the collection is read. The runs are executed by a {@link WriteEngine}.
+ *
+ * @author chenlong
+ */
+final class WritePlan {
+
+    /**
+     * Scripts making more unflushed writes than this are left to {@literal db.eval}, so that a
+     * plan never takes up too much memory.
+     */
+    private static final int MAX_WRITES = 1000000;
+
+    enum Kind {
+        INSERT, REMOVE, UPDATE
+    }
+
+    private final Map<String, List<Run>> collectionToRuns = new LinkedHashMap<>();
+    private final Map<String, Integer> collectionToPendingCount = new HashMap<>();
+    private final Totals totals = new Totals();
+    private int pendingCount;
+
+    void insert(String collectionName, DBObject document) {
+        add(collectionName, Kind.INSERT, new Write(document, null, false, false));
+    }
+
+    void remove(String collectionName, DBObject query, boolean justOne) {
+        add(collectionName, Kind.REMOVE, new Write(query, null, false, !justOne));
+    }
+
+    void update(String collectionName, DBObject query, DBObject update, boolean upsert, boolean multi) {
+        add(collectionName, Kind.UPDATE, new Write(query, update, upsert, multi));
+    }
+
+    /**
+     * Returns the number of writes to the given collection not flushed yet.
+     */
+    int pendingCount(String collectionName) {
+        Integer count = collectionToPendingCount.get(collectionName);
+        return (count == null) ? 0 : count;
+    }
+
+    /**
+     * Executes the writes to the given collection not flushed yet, one bulk write operation
+     * per run.
+     */
+    void flush(WriteEngine engine, String collectionName) {
+        List<Run> runs = collectionToRuns.remove(collectionName);
+        if (runs == null) {
+            return;
+        }
+        pendingCount -= pendingCount(collectionName);
+        collectionToPendingCount.remove(collectionName);
+
+        for (Run run : runs) {
+            engine.execute(collectionName, run, totals);
+        }
+    }
+
+    /**
+     * Executes the writes not flushed yet, one bulk write operation per run.
+     *
+     * @return the numbers of inserted, removed, matched and upserted documents of all the
+     * writes, flushed before or now.
+     */
+    DBObject execute(WriteEngine engine) {
+        for (String collectionName : new ArrayList<>(collectionToRuns.keySet())) {
+            flush(engine, collectionName);
+        }
+
+        return new BasicDBObject("inserted", totals.inserted)
+                .append("removed", totals.removed)
+                .append("matched", totals.matched)
+                .append("upserted", totals.upserted);
+    }
+
+    private void add(String collectionName, Kind kind, Write write) {
+        if (++pendingCount > MAX_WRITES) {
+            throw new UnsupportedScriptException("More than " + MAX_WRITES + " writes");
+        }
+        collectionToPendingCount.put(collectionName, pendingCount(collectionName) + 1);
+
+        List<Run> runs = collectionToRuns.get(collectionName);
+        if (runs == null) {
+            runs = new ArrayList<>();
+            collectionToRuns.put(collectionName, runs);
+        }
+        Run lastRun = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+        if (lastRun == null || lastRun.kind != kind) {
+            lastRun = new Run(kind);
+            runs.add(lastRun);
+        }
+        lastRun.writes.add(write);
+    }
+
+    /**
+     * Consecutive writes of the same kind to a collection.
+     */
+    static final class Run {
+
+        final Kind kind;
+        final List<Write> writes = new ArrayList<>();
+
+        private Run(Kind kind) {
+            this.kind = kind;
+        }
+    }
+
+    static final class Write {
+
+        // Document to insert, or query of a remove or update
+        final DBObject document;
+        final DBObject update;
+        final boolean upsert;
+        final boolean multi;
+
+        private Write(DBObject document, DBObject update, boolean upsert, boolean multi) {
+            this.document = document;
+            this.update = update;
+            this.upsert = upsert;
+            this.multi = multi;
+        }
+
+        /**
+         * Whether the update replaces the whole document rather than applying operators.
+         */
+        boolean isReplacement() {
+            for (String key : update.keySet()) {
+                if (key.startsWith("$")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Running totals of the documents the executed runs affected.
+     */
+    static final class Totals {
+
+        private int inserted;
+        private int removed;
+        private int matched;
+        private int upserted;
+
+        void add(int inserted, int removed, int matched, int upserted) {
+            this.inserted += inserted;
+            this.removed += removed;
+            this.matched += matched;
+            this.upserted += upserted;
+        }
+    }
+}
@@ -38,12 +38,29 @@ public final class MongoConfig {
     private static final String SERVERS_KEY = "mongo.servers";
     private static final String CREDENTIALS_KEY = "mongo.credentials";
     private static final String DB_KEY = "mongo.db";
+    private static final String CALL_SCRIPTS_BY_NAME_KEY = "mongo.script.callByName";
+    private static final String COMPILE_SCRIPTS_KEY = "mongo.script.compile";
+    private static final String SCRIPT_RUNNER_KEY = "mongo.script.runner";
+    private static final String SCRIPT_BATCH_SIZE_KEY = "mongo.script.batchSize";
+    private static final String ASYNC_THREADS_KEY = "mongo.async.threads";
+    private static final String SCRIPT_ENGINE_KEY = "mongo.script.engine";
+
+    private static final String EVAL_RUNNER = "eval";
+    private static final String EMBEDDED_RUNNER = "embedded";
+    private static final String LEGACY_ENGINE = "legacy";
+    private static final String DATABASE_ENGINE = "database";
 
     private final String host;
     private final Integer port;
     private final String servers;
     private final String credentials;
     private final String db;
+    private final boolean callScriptsByName;
+    private final boolean compileScripts;
+    private final boolean runScriptsEmbedded;
+    private final Integer scriptBatchSize;
+    private final Integer asyncThreads;
+    private final boolean useDatabaseEngine;
 
     private MongoConfig(Properties properties) {
         this.host = getStringValFrom(properties, HOST_KEY);
@@ -51,6 +68,12 @@ public final class MongoConfig {
         this.servers = getStringValFrom(properties, SERVERS_KEY);
         this.credentials = getStringValFrom(properties, CREDENTIALS_KEY);
         this.db = getStringValFrom(properties, DB_KEY);
+        this.callScriptsByName = Boolean.parseBoolean(getStringValFrom(properties, CALL_SCRIPTS_BY_NAME_KEY));
+        this.compileScripts = Boolean.parseBoolean(getStringValFrom(properties, COMPILE_SCRIPTS_KEY));
+        this.runScriptsEmbedded = isEmbeddedRunner(getStringValFrom(properties, SCRIPT_RUNNER_KEY));
+        this.scriptBatchSize = getIntValFrom(properties, SCRIPT_BATCH_SIZE_KEY);
+        this.asyncThreads = getIntValFrom(properties, ASYNC_THREADS_KEY);
+        this.useDatabaseEngine = isDatabaseEngine(getStringValFrom(properties, SCRIPT_ENGINE_KEY));
 
         checkState();
     }
@@ -93,6 +116,77 @@ public final class MongoConfig {
         return db;
     }
 
+    /**
+     * Whether scripts are saved to {@literal system.js} once and then called by name,
+     * instead of having their code sent on every execution.
+     */
+    public boolean callScriptsByName() {
+        return callScriptsByName;
+    }
+
+    /**
+     * Whether scripts that only insert, remove or update plain documents are executed as
+     * bulk writes through the driver rather than by {@literal db.eval}.
+     */
+    public boolean compileScripts() {
+        return compileScripts;
+    }
+
+    /**
+     * Whether scripts are run in a {@literal JavaScript} engine inside the JVM rather than by
+     * {@literal db.eval}, i.e. {@code mongo.script.runner} is {@code embedded} instead of
+     * {@code eval}.
+     */
+    public boolean runScriptsEmbedded() {
+        return runScriptsEmbedded;
+    }
+
+    /**
+     * The maximum number of writes to a collection sent in one bulk write by scripts run
+     * embedded and when loading fixture files.
+     */
+    public Optional<Integer> scriptBatchSize() {
+        return Optional.fromNullable(scriptBatchSize);
+    }
+
+    /**
+     * The number of threads running asynchronous executions and fixture loads.
+     */
+    public Optional<Integer> asyncThreads() {
+        return Optional.fromNullable(asyncThreads);
+    }
+
+    /**
+     * Whether compiled scripts and scripts run embedded write through the {@code MongoDatabase}
+     * API rather than the legacy {@code DB} API, i.e. {@code mongo.script.engine} is
+     * {@code database} instead of {@code legacy}.
+     */
+    public boolean useDatabaseEngine() {
+        return useDatabaseEngine;
+    }
+
+    private static boolean isDatabaseEngine(String engine) {
+        if (engine == null || LEGACY_ENGINE.equalsIgnoreCase(engine)) {
+            return false;
+        }
+        if (DATABASE_ENGINE.equalsIgnoreCase(engine)) {
+            return true;
+        }
+        throw new RuntimeException(String.format("Value for key (%s) must be %s or %s: %s",
+                SCRIPT_ENGINE_KEY, LEGACY_ENGINE, DATABASE_ENGINE, engine));
+    }
+
+    private static boolean isEmbeddedRunner(String runner) {
+        if (runner == null || EVAL_RUNNER.equalsIgnoreCase(runner)) {
+            return false;
+        }
+        if (EMBEDDED_RUNNER.equalsIgnoreCase(runner)) {
+            return true;
+        }
+        throw new RuntimeException(String.format("Value for key (%s) must be %s or %s: %s",
+                SCRIPT_RUNNER_KEY, EVAL_RUNNER, EMBEDDED_RUNNER, runner));
+    }
+
     private String getStringValFrom(Properties props, String key) {
         return StringUtils.trimWhitespace(props.getProperty(key));
     }
@@ -114,6 +208,12 @@ public final class MongoConfig {
         if (!StringUtils.hasText(db)) {
             throw new IllegalStateException("mongo.db must be given");
         }
+        if (scriptBatchSize != null && scriptBatchSize <= 0) {
+            throw new IllegalStateException("mongo.script.batchSize must be positive");
+        }
+        if (asyncThreads != null && asyncThreads <= 0) {
+            throw new IllegalStateException("mongo.async.threads must be positive");
+        }
     }
 }
 
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.core;
+
+import me.konglong.momei.util.Assert;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of daemon threads running asynchronous executions. Tasks wait in a bounded
+ * queue; once it is full, the submitting thread runs the task itself, which holds back a test
+ * that submits faster than the server keeps up.
+ *
+ * <p>A task given a timeout fails with a {@link TimeoutException} once the timeout passes,
+ * whether it is still queued or running; a running task is interrupted. Tasks submitted after
+ * {@linkplain #shutdown() shutdown}, or still queued then, are cancelled, so no returned future
+ * is left incomplete.
+ *
+ * @author chenlong
+ */
+final class AsyncWorkers {
+
+    private static final int QUEUED_TASKS_PER_THREAD = 64;
+
+    private final ThreadPoolExecutor pool;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            daemonThreads("momei-async-timer"));
+
+    /**
+     * @param threads the maximum number of tasks running at once, must be positive.
+     */
+    AsyncWorkers(int threads) {
+        Assert.isTrue(threads > 0, "Threads must be positive!");
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUED_TASKS_PER_THREAD),
+                daemonThreads("momei-async"), new CallerRunsUnlessShutdown());
+    }
+
+    /**
+     * Submits the task, failing it once the given timeout passes.
+     *
+     * @param timeoutMillis {@literal 0} for no timeout.
+     */
+    <T> Future<T> submit(Callable<T> task, final long timeoutMillis) {
+        Assert.notNull(task, "Task must not be null!");
+        Assert.isTrue(timeoutMillis >= 0, "Timeout must not be negative!");
+        final TimedTask<T> timedTask = new TimedTask<>(task);
+        if (timeoutMillis > 0) {
+            final ScheduledFuture<?> timeout;
+            try {
+                timeout = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        timedTask.timeOut(timeoutMillis);
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shut down
+                timedTask.cancel(false);
+                return timedTask;
+            }
+            timedTask.onDone(timeout);
+        }
+        pool.execute(timedTask);
+        return timedTask;
+    }
+
+    /**
+     * Interrupts the running tasks and cancels the queued ones.
+     */
+    void shutdown() {
+        timer.shutdownNow();
+        for (Runnable queued : pool.shutdownNow()) {
+            ((Future<?>) queued).cancel(false);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String namePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, namePrefix + '-' + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Runs a task the full queue has no room for in the submitting thread, or cancels it
+     * once the pool is shut down.
+     */
+    private static final class CallerRunsUnlessShutdown implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor pool) {
+            if (pool.isShutdown()) {
+                ((Future<?>) task).cancel(false);
+            } else {
+                task.run();
+            }
+        }
+    }
+
+    private static final class TimedTask<T> extends FutureTask<T> {
+
+        private Thread runner;
+        private boolean interrupted;
+        private volatile ScheduledFuture<?> timeout;
+
+        private TimedTask(Callable<T> task) {
+            super(task);
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                runner = Thread.currentThread();
+            }
+            try {
+                super.run();
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    // Keeps the interrupt from reaching whatever the thread runs next
+                    if (interrupted) {
+                        Thread.interrupted();
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void done() {
+            ScheduledFuture<?> timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+
+        private void onDone(ScheduledFuture<?> timeout) {
+            this.timeout = timeout;
+            if (isDone()) {
+                timeout.cancel(false);
+            }
+        }
+
+        private void timeOut(long timeoutMillis) {
+            if (isDone()) {
+                return;
+            }
+            setException(new TimeoutException(String.format("Timed out after %d ms", timeoutMillis)));
+            synchronized (this) {
+                if (runner != null) {
+                    interrupted = true;
+                    runner.interrupt();
+                }
+            }
+        }
+    }
+}
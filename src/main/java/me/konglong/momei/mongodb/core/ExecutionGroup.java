@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.core;
+
+import me.konglong.momei.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A group of asynchronous executions, such as fixture loads of independent collections, that
+ * a test joins before its body starts:
+ *
+ * <pre>
+ * ExecutionGroup group = new ExecutionGroup();
+ * group.add(executor.loadDocumentsAsync("books", booksFile));
+ * group.add(executor.executeAsync(prepareAuthors));
+ * group.await(30, TimeUnit.SECONDS);
+ * </pre>
+ *
+ * <p>Not thread-safe; a group is meant to be filled and joined by one thread.
+ *
+ * @author chenlong
+ */
+public final class ExecutionGroup {
+
+    private final List<Future<?>> futures = new ArrayList<>();
+
+    /**
+     * Adds the given execution to the group.
+     *
+     * @return the given future.
+     */
+    public <T> Future<T> add(Future<T> future) {
+        Assert.notNull(future, "Future must not be null!");
+        futures.add(future);
+        return future;
+    }
+
+    public int size() {
+        return futures.size();
+    }
+
+    /**
+     * Waits for all executions of the group, without time limit, see {@link #await(long, TimeUnit)}.
+     */
+    public void await() {
+        await(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits for all executions of the group to finish, in the order they were added. The first
+     * of them found failing cancels the others, and so does the group running past the
+     * timeout; a failure is thus only noticed once the executions added before it finished.
+     * The group is empty afterwards.
+     *
+     * @param timeout the time to wait for the whole group, {@literal 0} for no limit.
+     * @throws RuntimeException the failure of an execution, or an {@link IllegalStateException}
+     *                          wrapping it if it is checked, such as the {@link TimeoutException} of
+     *                          an execution given a timeout of its own.
+     * @throws IllegalStateException if the group runs past the timeout, or the waiting thread is
+     *                               interrupted.
+     */
+    public void await(long timeout, TimeUnit unit) {
+        Assert.isTrue(timeout >= 0, "Timeout must not be negative!");
+        Assert.notNull(unit, "Unit must not be null!");
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean joined = false;
+        try {
+            for (Future<?> future : futures) {
+                if (timeout == 0) {
+                    future.get();
+                } else {
+                    future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+            }
+            joined = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for executions", e);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(String.format("%d executions did not finish within %d %s",
+                    futures.size(), timeout, unit), e);
+        } catch (CancellationException e) {
+            throw new IllegalStateException("Execution was cancelled", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Execution failed", cause);
+        } finally {
+            if (!joined) {
+                for (Future<?> future : futures) {
+                    future.cancel(true);
+                }
+            }
+            futures.clear();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.core;
+
+import me.konglong.momei.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Options for executing a script through {@link MongoScriptExecutor#execute(me.konglong.momei.mongodb.script.NamedMongoScript, ExecutionOptions)}.
+ *
+ * @author chenlong
+ */
+public final class ExecutionOptions {
+
+    private static final ExecutionOptions DEFAULTS = builder().build();
+
+    private List<Object> args = Collections.emptyList();
+    private boolean nolock;
+    private long maxTimeMillis;
+    private long deadlineMillis;
+    private long timeoutMillis;
+
+    private ExecutionOptions() {
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns options that execute a script without arguments, with the default locking and
+     * without time limit.
+     */
+    public static ExecutionOptions defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * Returns the arguments the script function is called with, sent as BSON values.
+     */
+    public List<Object> args() {
+        return args;
+    }
+
+    /**
+     * Whether the script runs without taking the global write lock.
+     */
+    public boolean nolock() {
+        return nolock;
+    }
+
+    /**
+     * Returns the time limit passed to the server, {@literal 0} if none.
+     */
+    public long maxTimeMillis() {
+        return maxTimeMillis;
+    }
+
+    /**
+     * Returns the time after which the client kills the script on the server, {@literal 0} if none.
+     */
+    public long deadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * Returns the time after which an {@linkplain MongoScriptExecutor#executeAsync(me.konglong.momei.mongodb.script.NamedMongoScript, ExecutionOptions)
+     * asynchronous execution} fails with a {@link java.util.concurrent.TimeoutException}, {@literal 0} if none.
+     * Blocking executions ignore it.
+     */
+    public long timeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Whether a blocking execution with these options is the same as one without, i.e. no
+     * option but the timeout is set.
+     */
+    public boolean isDefault() {
+        return args.isEmpty() && !nolock && maxTimeMillis == 0 && deadlineMillis == 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ExecutionOptions{args=%s, nolock=%s, maxTimeMillis=%d, deadlineMillis=%d, timeoutMillis=%d}",
+                args, nolock, maxTimeMillis, deadlineMillis, timeoutMillis);
+    }
+
+    public static final class Builder {
+
+        private final ExecutionOptions options;
+
+        private Builder() {
+            this.options = new ExecutionOptions();
+        }
+
+        public ExecutionOptions build() {
+            return this.options;
+        }
+
+        /**
+         * @param args BSON values such as {@link String}, {@link Number} or {@link com.mongodb.DBObject}.
+         */
+        public Builder setArgs(Object... args) {
+            Assert.notNull(args, "Args must not be null!");
+            this.options.args = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(args)));
+            return this;
+        }
+
+        public Builder setNolock(boolean nolock) {
+            this.options.nolock = nolock;
+            return this;
+        }
+
+        public Builder setMaxTimeMillis(long maxTimeMillis) {
+            Assert.isTrue(maxTimeMillis >= 0, "Max time must not be negative!");
+            this.options.maxTimeMillis = maxTimeMillis;
+            return this;
+        }
+
+        public Builder setDeadlineMillis(long deadlineMillis) {
+            Assert.isTrue(deadlineMillis >= 0, "Deadline must not be negative!");
+            this.options.deadlineMillis = deadlineMillis;
+            return this;
+        }
+
+        public Builder setTimeoutMillis(long timeoutMillis) {
+            Assert.isTrue(timeoutMillis >= 0, "Timeout must not be negative!");
+            this.options.timeoutMillis = timeoutMillis;
+            return this;
+        }
+    }
+}
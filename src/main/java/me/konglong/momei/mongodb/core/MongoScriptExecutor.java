@@ -20,10 +20,32 @@ import com.mongodb.*;
 import me.konglong.momei.base.Optional;
 import me.konglong.momei.diagnostics.logging.Logger;
 import me.konglong.momei.diagnostics.logging.Loggers;
+import me.konglong.momei.mongodb.bulk.BulkScriptCompiler;
+import me.konglong.momei.mongodb.bulk.CompiledScript;
+import me.konglong.momei.mongodb.bulk.EmbeddedScriptRunner;
+import me.konglong.momei.mongodb.bulk.WriteEngine;
 import me.konglong.momei.mongodb.config.MongoConfig;
+import me.konglong.momei.mongodb.fixture.FixtureLoader;
+import me.konglong.momei.mongodb.fixture.FixtureRecorder;
+import me.konglong.momei.mongodb.fixture.ScriptFootprint;
+import me.konglong.momei.mongodb.script.MongoScriptReader;
 import me.konglong.momei.mongodb.script.NamedMongoScript;
 import me.konglong.momei.mongodb.script.convert.Converter;
+import me.konglong.momei.mongodb.stream.Publisher;
 import me.konglong.momei.util.Assert;
+import me.konglong.momei.util.ClassPathResource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static me.konglong.momei.mongodb.script.convert.NamedMongoScriptConverters.DBObjectToNamedMongoScriptCoverter;
 import static me.konglong.momei.mongodb.script.convert.NamedMongoScriptConverters.NamedMongoScriptToDBObjectConverter;
@@ -31,6 +53,10 @@ import static me.konglong.momei.mongodb.script.convert.NamedMongoScriptConverter
 /**
  * An executor that executes the given mongodb javascript.
  *
+ * <p>Besides the blocking methods, the {@code *Async} methods run executions on a bounded pool
+ * of {@linkplain MongoConfig#asyncThreads() threads}, so that independent fixtures are prepared
+ * concurrently; join them with an {@link ExecutionGroup}.
+ *
  * @author chenlong
  */
 public final class MongoScriptExecutor implements Disposable {
@@ -38,14 +64,58 @@ public final class MongoScriptExecutor implements Disposable {
     private static final Logger logger = Loggers.getLogger(MongoScriptExecutor.class);
 
     private static final String ID_FIELD = "_id";
+    private static final String VERSION_FIELD = "version";
     private static final String SCRIPT_COLLECTION_NAME = "system.js";
+    private static final String CONTENT_NAME_PREFIX = "momei_";
+
+    private static final String VALUE_FIELD = "value";
+    private static final String ERROR_FIELD = "error";
+    /**
+     * Calls each function of the array in turn, catching what it throws.
+     */
+    private static final String BATCH_TEMPLATE = "function() {"
+            + "var fns = [%s], results = [];"
+            + "for (var i = 0; i < fns.length; i++) {"
+            + "try { results.push({ " + VALUE_FIELD + ": fns[i]() }); }"
+            + "catch (e) { results.push({ " + ERROR_FIELD + ": String(e) }); }"
+            + "}"
+            + "return results;}";
+    /**
+     * Calls a registered function with the arguments of the eval.
+     */
+    private static final String CALL_TEMPLATE = "function() { return %s.apply(this, arguments); }";
+    /**
+     * Wraps a function so that its eval operation can be found by the marker.
+     */
+    private static final String MARKED_TEMPLATE = "function() { /* %s */ return (%s).apply(this, arguments); }";
+    private static final String MARKER_PREFIX = "momei-op-";
+    private static final Pattern NOT_DEFINED = Pattern.compile("([A-Za-z_$][\\w$]*) is not defined");
+    // Error codes of an operation killed by killOp, or by the server shutting down
+    private static final int INTERRUPTED_CODE = 11601;
+    private static final int INTERRUPTED_AT_SHUTDOWN_CODE = 11600;
+    private static final int COMPILER_CACHE_CAPACITY = 1024;
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     private final MongoClientFactory mongoClientFactory;
     private final DB db;
+    private final boolean callScriptsByName;
+    private final OperationKiller operationKiller;
+    private final BulkScriptCompiler compiler;
+    private final WriteEngine writeEngine;
+    private final EmbeddedScriptRunner embeddedRunner;
+    private final FixtureLoader fixtureLoader;
+    private final FixtureRecorder fixtureRecorder;
+    private final AsyncWorkers asyncWorkers;
 
     private final Converter<NamedMongoScript, DBObject> scriptToDBObjConverter;
     private final Converter<DBObject, NamedMongoScript> dbObjToScriptConverter;
 
+    // Versions of the scripts known to be in system.js, by script name
+    private final ConcurrentMap<String, String> registeredVersions = new ConcurrentHashMap<>();
+    // Helper functions registered by name, given to scripts run embedded and hashed into recordings
+    private final ConcurrentMap<String, NamedMongoScript> helpers = new ConcurrentHashMap<>();
+
     public MongoScriptExecutor() {
         MongoConfig mongoConfig = MongoConfig.loadFromFile();
         this.mongoClientFactory = MongoClientFactory.builder()
@@ -55,6 +125,18 @@ public final class MongoScriptExecutor implements Disposable {
                 .setCredentials(mongoConfig.credentials())
                 .build();
         this.db = this.mongoClientFactory.getInstance().getDB(mongoConfig.db());
+        int batchSize = mongoConfig.scriptBatchSize().or(DEFAULT_BATCH_SIZE);
+        this.embeddedRunner = mongoConfig.runScriptsEmbedded() ? EmbeddedScriptRunner.create(batchSize) : null;
+        this.fixtureLoader = new FixtureLoader(this.mongoClientFactory.getInstance(), mongoConfig.db(), batchSize);
+        this.fixtureRecorder = FixtureRecorder.fromSystemProperty(
+                this.mongoClientFactory.getInstance().getDatabase(mongoConfig.db()), this.fixtureLoader);
+        this.callScriptsByName = mongoConfig.callScriptsByName() && this.embeddedRunner == null;
+        this.operationKiller = new OperationKiller(this.db);
+        this.compiler = mongoConfig.compileScripts() ? new BulkScriptCompiler(COMPILER_CACHE_CAPACITY) : null;
+        this.writeEngine = mongoConfig.useDatabaseEngine()
+                ? WriteEngine.of(this.mongoClientFactory.getInstance().getDatabase(mongoConfig.db()))
+                : WriteEngine.legacy(this.db);
+        this.asyncWorkers = new AsyncWorkers(mongoConfig.asyncThreads().or(Runtime.getRuntime().availableProcessors()));
 
         this.scriptToDBObjConverter = NamedMongoScriptToDBObjectConverter.INSTANCE;
         this.dbObjToScriptConverter = DBObjectToNamedMongoScriptCoverter.INSTANCE;
@@ -62,19 +144,166 @@ public final class MongoScriptExecutor implements Disposable {
 
     @Override
     public void destroy() throws Exception {
+        this.asyncWorkers.shutdown();
+        this.operationKiller.shutdown();
+        this.fixtureLoader.shutdown();
         this.mongoClientFactory.destroy();
         logger.info("Destroyed MongoScriptExecutor successfully!");
     }
 
+    /**
+     * Saves the script to {@literal system.js}, stamped with the version of its code.
+     */
     public NamedMongoScript register(NamedMongoScript script) {
         Assert.notNull(script, "Script must not be null!");
-        save(script, SCRIPT_COLLECTION_NAME);
+        String version = versionOf(script);
+        DBObject dbDoc = scriptToDBObjConverter.convert(script);
+        dbDoc.put(VERSION_FIELD, version);
+        saveDBObject(SCRIPT_COLLECTION_NAME, dbDoc, Optional.<WriteConcern>absent());
+        registeredVersions.put(script.getName(), version);
         return script;
     }
 
+    /**
+     * Registers the scripts that are not in {@literal system.js} yet or whose code has changed.
+     * The versions in {@literal system.js} are looked up in one query, and scripts registered
+     * by this executor before are not looked up again. Scripts {@linkplain MongoConfig#runScriptsEmbedded()
+     * run embedded} find the scripts in the executor instead, so nothing is saved.
+     *
+     * @return the scripts actually registered.
+     */
+    public List<NamedMongoScript> registerAll(Collection<NamedMongoScript> scripts) {
+        Assert.notNull(scripts, "Scripts must not be null!");
+        if (embeddedRunner != null) {
+            return registerEmbedded(scripts);
+        }
+        for (NamedMongoScript script : scripts) {
+            helpers.put(script.getName(), script);
+        }
+        return saveToSystemJs(scripts);
+    }
+
+    /**
+     * Saves the scripts that are not in {@literal system.js} yet or whose code has changed,
+     * without making them helpers of other scripts.
+     *
+     * @return the scripts actually saved.
+     */
+    private List<NamedMongoScript> saveToSystemJs(Collection<NamedMongoScript> scripts) {
+        final Map<String, NamedMongoScript> unknownScripts = new LinkedHashMap<>();
+        for (NamedMongoScript script : scripts) {
+            if (!versionOf(script).equals(registeredVersions.get(script.getName()))) {
+                unknownScripts.put(script.getName(), script);
+            }
+        }
+        if (unknownScripts.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Map<String, String> storedVersions = execute(SCRIPT_COLLECTION_NAME, new CollectionCallback<Map<String, String>>() {
+            @Override
+            public Map<String, String> doInCollection(DBCollection collection) throws MongoException {
+                DBObject query = new BasicDBObject(ID_FIELD, new BasicDBObject("$in", unknownScripts.keySet()));
+                DBCursor cursor = collection.find(query, new BasicDBObject(VERSION_FIELD, 1));
+                try {
+                    Map<String, String> versions = new HashMap<>();
+                    for (DBObject dbDoc : cursor) {
+                        versions.put(String.valueOf(dbDoc.get(ID_FIELD)), String.valueOf(dbDoc.get(VERSION_FIELD)));
+                    }
+                    return versions;
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+
+        List<NamedMongoScript> registered = new ArrayList<>();
+        for (NamedMongoScript script : unknownScripts.values()) {
+            String version = versionOf(script);
+            if (version.equals(storedVersions.get(script.getName()))) {
+                registeredVersions.put(script.getName(), version);
+            } else {
+                registered.add(register(script));
+            }
+        }
+        logger.info("Registered %s of %s scripts to %s", registered.size(), unknownScripts.size(), SCRIPT_COLLECTION_NAME);
+        return registered;
+    }
+
+    /**
+     * Registers each of the given scripts under a name derived from its code, skipping those
+     * already in {@literal system.js}, see {@link #registerAll(Collection)}. Unlike those of
+     * {@link #registerAll(Collection)}, the scripts are not helpers of other scripts, and
+     * nothing is registered for scripts {@linkplain MongoConfig#runScriptsEmbedded() run embedded},
+     * which are never called by name.
+     *
+     * @return the scripts under the names they are registered with.
+     */
+    public List<NamedMongoScript> registerByContent(Collection<NamedMongoScript> scripts) {
+        Assert.notNull(scripts, "Scripts must not be null!");
+        Map<String, NamedMongoScript> contentNamedScripts = new LinkedHashMap<>();
+        for (NamedMongoScript script : scripts) {
+            NamedMongoScript contentNamedScript = contentNamed(script);
+            contentNamedScripts.put(contentNamedScript.getName(), contentNamedScript);
+        }
+
+        if (embeddedRunner == null) {
+            saveToSystemJs(contentNamedScripts.values());
+        }
+        return new ArrayList<>(contentNamedScripts.values());
+    }
+
+    /**
+     * Whether {@link #execute(NamedMongoScript)} calls scripts by name,
+     * see {@link MongoConfig#callScriptsByName()}.
+     */
+    public boolean callsScriptsByName() {
+        return callScriptsByName;
+    }
+
+    /**
+     * Executes the script. A script that only writes plain documents is executed as bulk writes
+     * if {@linkplain MongoConfig#compileScripts() turned on}, see {@link BulkScriptCompiler}.
+     * Any other is run in the embedded engine if scripts {@linkplain MongoConfig#runScriptsEmbedded()
+     * run embedded}, see {@link EmbeddedScriptRunner}, or else evaluated on the server, either
+     * by sending its code or, if scripts are {@linkplain #callsScriptsByName() called by name},
+     * by calling it under a name derived from its code, registering it first if needed.
+     */
     public Object execute(final NamedMongoScript script) {
         Assert.notNull(script, "Script must not be null!");
 
+        Optional<DBObject> bulkResult = tryExecuteCompiled(script);
+        if (bulkResult.isPresent()) {
+            return bulkResult.get();
+        }
+
+        if (embeddedRunner != null) {
+            return runEmbedded(script, Collections.emptyList());
+        }
+
+        NamedMongoScript contentNamedScript = null;
+        if (callScriptsByName) {
+            contentNamedScript = contentNamed(script);
+            if (!registeredVersions.containsKey(contentNamedScript.getName())) {
+                saveToSystemJs(Collections.singletonList(contentNamedScript));
+            }
+        }
+
+        try {
+            return evalOrCall(script, contentNamedScript);
+        } catch (MongoException e) {
+            if (!forgetSystemJsIfNotDefined(e.getMessage())) {
+                throw e;
+            }
+            saveAgainToSystemJs(contentNamedScript);
+            return evalOrCall(script, contentNamedScript);
+        }
+    }
+
+    private Object evalOrCall(final NamedMongoScript script, NamedMongoScript contentNamedScript) {
+        if (contentNamedScript != null) {
+            return call(contentNamedScript.getName());
+        }
         return this.execute(new DbCallback<Object>() {
             @Override
             public Object doInDB(DB db) throws MongoException {
@@ -83,6 +312,212 @@ public final class MongoScriptExecutor implements Disposable {
         });
     }
 
+    /**
+     * Executes the script with the given options. The script is called with the arguments of
+     * the options, and killed on the server if it runs past their deadline. A script run
+     * embedded only takes the arguments, as it holds no server lock and runs in this JVM.
+     *
+     * @throws IllegalStateException if the script failed after running past its deadline, i.e. was killed.
+     */
+    public Object execute(final NamedMongoScript script, final ExecutionOptions options) {
+        Assert.notNull(script, "Script must not be null!");
+        Assert.notNull(options, "Options must not be null!");
+        if (options.isDefault()) {
+            return execute(script);
+        }
+        if (embeddedRunner != null) {
+            return runEmbedded(script, options.args());
+        }
+
+        String code = script.getCode();
+        NamedMongoScript contentNamedScript = null;
+        if (callScriptsByName) {
+            contentNamedScript = contentNamed(script);
+            if (!registeredVersions.containsKey(contentNamedScript.getName())) {
+                saveToSystemJs(Collections.singletonList(contentNamedScript));
+            }
+            code = String.format(CALL_TEMPLATE, contentNamedScript.getName());
+        }
+
+        String marker = null;
+        if (options.deadlineMillis() > 0) {
+            marker = MARKER_PREFIX + UUID.randomUUID();
+            code = String.format(MARKED_TEMPLATE, marker, code);
+        }
+
+        final BasicDBObject command = new BasicDBObject("$eval", code).append("args", options.args());
+        if (options.nolock()) {
+            command.append("nolock", true);
+        }
+        if (options.maxTimeMillis() > 0) {
+            command.append("maxTimeMS", options.maxTimeMillis());
+        }
+
+        OperationKiller.Deadline deadline = (marker == null) ? null
+                : operationKiller.schedule(marker, options.deadlineMillis());
+        CommandResult result;
+        try {
+            result = evalCommand(command);
+            if (!result.ok() && forgetSystemJsIfNotDefined(result.getErrorMessage())) {
+                saveAgainToSystemJs(contentNamedScript);
+                result = evalCommand(command);
+            }
+        } catch (MongoException e) {
+            if (deadline != null && deadline.cancel() && isInterruption(e)) {
+                throw pastDeadline(script, options, e);
+            }
+            throw e;
+        }
+
+        // A script finishing just as its deadline passes has not been killed
+        if (deadline != null && deadline.cancel() && !result.ok() && isInterruption(result.getException())) {
+            throw pastDeadline(script, options, result.getException());
+        }
+        result.throwOnError();
+        return result.get("retval");
+    }
+
+    /**
+     * Returns the names of the collections the script touches, directly or through registered
+     * helper functions, see {@link ScriptFootprint}.
+     *
+     * @return {@literal null} if that cannot be told from its code.
+     */
+    public Set<String> collectionsTouchedBy(NamedMongoScript script) {
+        Assert.notNull(script, "Script must not be null!");
+        return ScriptFootprint.collectionsOf(script, helpers.values());
+    }
+
+    /**
+     * Whether prepare scripts are recorded and replayed, see {@link #executeRecorded(NamedMongoScript, ExecutionOptions)}.
+     */
+    public boolean recordsFixtures() {
+        return fixtureRecorder != null;
+    }
+
+    /**
+     * Executes the prepare script with the given options, or replays the documents it produced
+     * when it was recorded before, if recording is {@linkplain FixtureRecorder#RECORD_DIR_PROPERTY
+     * turned on}. A script executed into empty collections is recorded afterwards, see
+     * {@link FixtureRecorder}.
+     *
+     * @return the result of the script, or {@literal null} if it was replayed.
+     */
+    public Object executeRecorded(NamedMongoScript script, ExecutionOptions options) {
+        Assert.notNull(script, "Script must not be null!");
+        Assert.notNull(options, "Options must not be null!");
+        FixtureRecorder.Recording recording = (fixtureRecorder == null) ? null
+                : fixtureRecorder.recordingOf(script, helpers.values(), options.args());
+        if (recording == null) {
+            return execute(script, options);
+        }
+
+        if (fixtureRecorder.replay(recording)) {
+            return null;
+        }
+        boolean recordable = fixtureRecorder.collectionsEmpty(recording);
+        Object result = execute(script, options);
+        if (recordable) {
+            fixtureRecorder.record(recording);
+        }
+        return result;
+    }
+
+    /**
+     * Executes the scripts in the given order in a single server round trip, or one by one if
+     * all of them compile or scripts run embedded, see {@link #execute(NamedMongoScript)}. A failing script does not
+     * stop the scripts after it; its error is reported in its result instead.
+     *
+     * @return the result of each script, in the order of the scripts.
+     */
+    public List<ScriptResult> executeAll(final List<NamedMongoScript> scripts) {
+        Assert.notNull(scripts, "Scripts must not be null!");
+        if (scripts.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (embeddedRunner != null || compilesAll(scripts)) {
+            return executeEach(scripts);
+        }
+
+        StringBuilder functions = new StringBuilder();
+        if (callScriptsByName) {
+            registerByContent(scripts);
+            for (NamedMongoScript script : scripts) {
+                functionsAppend(functions, contentNamed(script).getName());
+            }
+        } else {
+            for (NamedMongoScript script : scripts) {
+                functionsAppend(functions, script.getCode());
+            }
+        }
+
+        final String batch = String.format(BATCH_TEMPLATE, functions);
+        DbCallback<Object> evalBatch = new DbCallback<Object>() {
+            @Override
+            public Object doInDB(DB db) throws MongoException {
+                return db.eval(batch);
+            }
+        };
+        Object rawResults;
+        try {
+            rawResults = this.execute(evalBatch);
+        } catch (MongoException e) {
+            // Naming a function no longer in system.js fails the batch before any script runs
+            if (!forgetSystemJsIfNotDefined(e.getMessage())) {
+                throw e;
+            }
+            saveAgainToSystemJs(null);
+            registerByContent(scripts);
+            rawResults = this.execute(evalBatch);
+        }
+
+        List<?> resultDocs = (List<?>) rawResults;
+        Assert.state(resultDocs.size() == scripts.size(),
+                "Expected %s script results but got %s", scripts.size(), resultDocs.size());
+        List<ScriptResult> results = new ArrayList<>(scripts.size());
+        for (int i = 0; i < scripts.size(); i++) {
+            DBObject resultDoc = (DBObject) resultDocs.get(i);
+            String name = scripts.get(i).getName();
+            if (resultDoc.containsField(ERROR_FIELD)) {
+                String error = String.valueOf(resultDoc.get(ERROR_FIELD));
+                if (forgetSystemJsIfNotDefined(error)) {
+                    // A helper function no longer in system.js
+                    saveAgainToSystemJs(null);
+                    results.addAll(executeEach(scripts.subList(i, i + 1)));
+                } else {
+                    results.add(ScriptResult.failure(name, error));
+                }
+            } else {
+                results.add(ScriptResult.success(name, resultDoc.get(VALUE_FIELD)));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Inserts the documents of the given fixture file into the given collection,
+     * see {@link FixtureLoader}.
+     *
+     * @return the number of inserted documents.
+     */
+    public long loadDocuments(String collectionName, ClassPathResource file) {
+        try {
+            return fixtureLoader.load(file, collectionName);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Could not read fixture file %s", file), e);
+        }
+    }
+
+    /**
+     * Inserts the documents of the given publisher into the given collection, asking for more
+     * only as bulk inserts are acknowledged, see {@link FixtureLoader#load(Publisher, String)}.
+     *
+     * @return the number of inserted documents.
+     */
+    public long loadDocuments(String collectionName, Publisher<? extends DBObject> source) {
+        return fixtureLoader.load(source, collectionName);
+    }
+
     public Object call(final String scriptName) {
         Assert.hasText(scriptName, "ScriptName must not be null or empty!");
 
@@ -94,13 +529,78 @@ public final class MongoScriptExecutor implements Disposable {
         });
     }
 
-    private void save(NamedMongoScript scriptToSave, String collectionName) {
-        Assert.notNull(scriptToSave);
-        Assert.hasText(collectionName);
+    /**
+     * Executes the script on the pool of asynchronous executions, see {@link #execute(NamedMongoScript)}.
+     */
+    public Future<Object> executeAsync(final NamedMongoScript script) {
+        Assert.notNull(script, "Script must not be null!");
+        return asyncWorkers.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return execute(script);
+            }
+        }, 0);
+    }
+
+    /**
+     * Executes the script with the given options on the pool of asynchronous executions, see
+     * {@link #execute(NamedMongoScript, ExecutionOptions)}. The returned future fails with a
+     * {@link java.util.concurrent.TimeoutException} once the {@linkplain ExecutionOptions#timeoutMillis()
+     * timeout} passes, interrupting the execution; set a deadline as well to kill the script
+     * on the server.
+     */
+    public Future<Object> executeAsync(final NamedMongoScript script, final ExecutionOptions options) {
+        Assert.notNull(script, "Script must not be null!");
+        Assert.notNull(options, "Options must not be null!");
+        return asyncWorkers.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return execute(script, options);
+            }
+        }, options.timeoutMillis());
+    }
+
+    /**
+     * Calls the registered script on the pool of asynchronous executions, see {@link #call(String)}.
+     */
+    public Future<Object> callAsync(final String scriptName) {
+        Assert.hasText(scriptName, "ScriptName must not be null or empty!");
+        return asyncWorkers.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return MongoScriptExecutor.this.call(scriptName);
+            }
+        }, 0);
+    }
 
-        saveDBObject(collectionName,
-                scriptToDBObjConverter.convert(scriptToSave),
-                Optional.<WriteConcern>absent());
+    /**
+     * Loads the fixture file on the pool of asynchronous executions, see
+     * {@link #loadDocuments(String, ClassPathResource)}.
+     */
+    public Future<Long> loadDocumentsAsync(final String collectionName, final ClassPathResource file) {
+        Assert.hasText(collectionName, "Collection name must not be null or empty!");
+        Assert.notNull(file, "File must not be null!");
+        return asyncWorkers.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return loadDocuments(collectionName, file);
+            }
+        }, 0);
+    }
+
+    /**
+     * Streams the documents of the publisher on the pool of asynchronous executions, see
+     * {@link #loadDocuments(String, Publisher)}.
+     */
+    public Future<Long> loadDocumentsAsync(final String collectionName, final Publisher<? extends DBObject> source) {
+        Assert.hasText(collectionName, "Collection name must not be null or empty!");
+        Assert.notNull(source, "Source must not be null!");
+        return asyncWorkers.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return loadDocuments(collectionName, source);
+            }
+        }, 0);
     }
 
     private Object saveDBObject(final String collectionName,
@@ -118,6 +618,133 @@ public final class MongoScriptExecutor implements Disposable {
         });
     }
 
+    private List<NamedMongoScript> registerEmbedded(Collection<NamedMongoScript> scripts) {
+        List<NamedMongoScript> registered = new ArrayList<>();
+        for (NamedMongoScript script : scripts) {
+            NamedMongoScript previous = helpers.put(script.getName(), script);
+            if (previous == null || !previous.getCode().equals(script.getCode())) {
+                registered.add(script);
+            }
+        }
+        return registered;
+    }
+
+    private Optional<DBObject> tryExecuteCompiled(NamedMongoScript script) {
+        CompiledScript compiled = (compiler == null) ? null : compiler.compile(script);
+        if (compiled == null) {
+            return Optional.absent();
+        }
+        long start = System.nanoTime();
+        Optional<DBObject> result = compiled.tryExecute(writeEngine);
+        if (result.isPresent()) {
+            logger.debug(String.format("Executed compiled script %s with the %s engine in %d ms",
+                    script.getName(), writeEngine, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        }
+        return result;
+    }
+
+    private Object runEmbedded(NamedMongoScript script, List<Object> args) {
+        long start = System.nanoTime();
+        Object result = embeddedRunner.run(script, helpers.values(), args, writeEngine);
+        logger.debug(String.format("Ran script %s embedded with the %s engine in %d ms",
+                script.getName(), writeEngine, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        return result;
+    }
+
+    private boolean compilesAll(List<NamedMongoScript> scripts) {
+        if (compiler == null) {
+            return false;
+        }
+        for (NamedMongoScript script : scripts) {
+            if (compiler.compile(script) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<ScriptResult> executeEach(List<NamedMongoScript> scripts) {
+        List<ScriptResult> results = new ArrayList<>(scripts.size());
+        for (NamedMongoScript script : scripts) {
+            try {
+                results.add(ScriptResult.success(script.getName(), execute(script)));
+            } catch (MongoException e) {
+                results.add(ScriptResult.failure(script.getName(), e.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    private CommandResult evalCommand(final DBObject command) {
+        return this.execute(new DbCallback<CommandResult>() {
+            @Override
+            public CommandResult doInDB(DB db) throws MongoException {
+                return db.command(command);
+            }
+        });
+    }
+
+    /**
+     * Whether the given error says that a function this executor saved to {@literal system.js}
+     * is not defined on the server any more, as after a cleanup script dropped the database or
+     * emptied {@literal system.js}. If so, the versions known to be saved are all forgotten,
+     * so that the functions are looked up and saved again.
+     */
+    private boolean forgetSystemJsIfNotDefined(String errorMessage) {
+        Matcher matcher = (errorMessage == null) ? null : NOT_DEFINED.matcher(errorMessage);
+        if (matcher == null || !matcher.find() || !registeredVersions.containsKey(matcher.group(1))) {
+            return false;
+        }
+        logger.info("Function %s is no longer in %s, saving functions again", matcher.group(1), SCRIPT_COLLECTION_NAME);
+        registeredVersions.clear();
+        return true;
+    }
+
+    /**
+     * Saves the helper functions, and the given content-named script if any, to
+     * {@literal system.js} again after they were {@linkplain #forgetSystemJsIfNotDefined(String) forgotten}.
+     */
+    private void saveAgainToSystemJs(NamedMongoScript contentNamedScript) {
+        List<NamedMongoScript> scripts = new ArrayList<>(helpers.values());
+        if (contentNamedScript != null) {
+            scripts.add(contentNamedScript);
+        }
+        saveToSystemJs(scripts);
+    }
+
+    /**
+     * Whether the given error is that of an operation killed on the server, rather than a
+     * failure of its own, such as a duplicate key, that happened past its deadline.
+     */
+    private static boolean isInterruption(MongoException e) {
+        if (e.getCode() == INTERRUPTED_CODE || e.getCode() == INTERRUPTED_AT_SHUTDOWN_CODE) {
+            return true;
+        }
+        String message = e.getMessage();
+        return message != null && message.toLowerCase(Locale.ENGLISH).contains("interrupted");
+    }
+
+    private static IllegalStateException pastDeadline(NamedMongoScript script, ExecutionOptions options,
+                                                      Exception cause) {
+        return new IllegalStateException(String.format("Script %s was killed past its deadline of %d ms",
+                script.getName(), options.deadlineMillis()), cause);
+    }
+
+    private static void functionsAppend(StringBuilder functions, String function) {
+        if (functions.length() > 0) {
+            functions.append(',');
+        }
+        functions.append(function);
+    }
+
+    private static NamedMongoScript contentNamed(NamedMongoScript script) {
+        return new NamedMongoScript(CONTENT_NAME_PREFIX + versionOf(script), script.getScript());
+    }
+
+    private static String versionOf(NamedMongoScript script) {
+        return MongoScriptReader.contentHashOf(ByteBuffer.wrap(script.getCode().getBytes(UTF_8)));
+    }
+
     private <T> T execute(DbCallback<T> action) {
         Assert.notNull(action);
         DB db = this.getDb();
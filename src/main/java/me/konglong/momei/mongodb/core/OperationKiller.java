@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.core;
+
+import com.mongodb.*;
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Kills server-side operations whose client-side deadline has passed. An operation is found
+ * through {@literal currentOp} by a marker it carries in its {@literal $eval} code.
+ *
+ * @author chenlong
+ */
+final class OperationKiller {
+
+    private static final Logger logger = Loggers.getLogger(OperationKiller.class);
+
+    private static final String ADMIN_DB_NAME = "admin";
+
+    private final DB adminDb;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "momei-operation-killer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    OperationKiller(DB db) {
+        this.adminDb = db.getSisterDB(ADMIN_DB_NAME);
+    }
+
+    /**
+     * Schedules killing the operation carrying the given marker once the deadline passes.
+     * Cancelling the returned deadline before then leaves the operation alone.
+     */
+    Deadline schedule(final String marker, long deadlineMillis) {
+        final AtomicBoolean expired = new AtomicBoolean();
+        ScheduledFuture<?> future = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expired.set(true);
+                kill(marker);
+            }
+        }, deadlineMillis, TimeUnit.MILLISECONDS);
+        return new Deadline(future, expired);
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void kill(String marker) {
+        try {
+            for (Object op : currentOps(marker)) {
+                Object opId = ((DBObject) op).get("opid");
+                killOp(opId);
+                logger.warn(String.format("Killed operation %s past its deadline", opId));
+            }
+        } catch (MongoException e) {
+            logger.warn(String.format("Could not kill operation %s past its deadline", marker), e);
+        }
+    }
+
+    private List<?> currentOps(String marker) {
+        Pattern markerPattern = Pattern.compile(Pattern.quote(marker));
+        BasicDBList filters = new BasicDBList();
+        // Servers before 3.2 report the command under "query"
+        filters.add(new BasicDBObject("command.$eval", markerPattern));
+        filters.add(new BasicDBObject("query.$eval", markerPattern));
+
+        CommandResult result = adminDb.command(new BasicDBObject("currentOp", 1).append("$or", filters));
+        DBObject inprog = result.ok() ? result
+                : adminDb.getCollection("$cmd.sys.inprog").findOne(new BasicDBObject("$or", filters));
+        if (inprog == null || !(inprog.get("inprog") instanceof List)) {
+            return Collections.emptyList();
+        }
+        return (List<?>) inprog.get("inprog");
+    }
+
+    private void killOp(Object opId) {
+        CommandResult result = adminDb.command(new BasicDBObject("killOp", 1).append("op", opId));
+        if (!result.ok()) {
+            adminDb.getCollection("$cmd.sys.killop").findOne(new BasicDBObject("op", opId));
+        }
+    }
+
+    static final class Deadline {
+
+        private final ScheduledFuture<?> future;
+        private final AtomicBoolean expired;
+
+        private Deadline(ScheduledFuture<?> future, AtomicBoolean expired) {
+            this.future = future;
+            this.expired = expired;
+        }
+
+        /**
+         * Cancels the deadline.
+         *
+         * @return whether it had already passed.
+         */
+        boolean cancel() {
+            future.cancel(false);
+            return expired.get();
+        }
+    }
+}
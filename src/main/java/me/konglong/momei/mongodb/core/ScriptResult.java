@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.core;
+
+import me.konglong.momei.util.Assert;
+
+/**
+ * The outcome of one script of a batch executed by {@link MongoScriptExecutor#executeAll(java.util.List)}.
+ *
+ * @author chenlong
+ */
+public final class ScriptResult {
+
+    private final String name;
+    private final Object value;
+    private final String error;
+
+    private ScriptResult(String name, Object value, String error) {
+        Assert.hasText(name, "Name must not be null or empty!");
+        this.name = name;
+        this.value = value;
+        this.error = error;
+    }
+
+    static ScriptResult success(String name, Object value) {
+        return new ScriptResult(name, value, null);
+    }
+
+    static ScriptResult failure(String name, String error) {
+        return new ScriptResult(name, null, error);
+    }
+
+    /**
+     * Returns the name of the script.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns what the script returned, {@literal null} if it failed.
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the error thrown by the script, {@literal null} if it succeeded.
+     */
+    public String getError() {
+        return error;
+    }
+
+    public boolean isOk() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return isOk() ? String.format("%s: %s", name, value) : String.format("%s failed: %s", name, error);
+    }
+}
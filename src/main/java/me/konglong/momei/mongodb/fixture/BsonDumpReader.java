@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import org.bson.RawBsonDocument;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Slices the concatenated BSON documents of a {@literal mongodump} file into raw documents
+ * without decoding them. Each document starts with its length as a little-endian int32 and
+ * ends with a zero byte, which is all that is checked.
+ *
+ * @author chenlong
+ */
+final class BsonDumpReader {
+
+    private static final int MIN_DOCUMENT_LENGTH = 5;
+
+    private final ByteBuffer buffer;
+
+    /**
+     * @param buffer the content of the file, typically memory-mapped, read from its position.
+     */
+    BsonDumpReader(ByteBuffer buffer) {
+        this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns the next document, or {@literal null} if there are no more documents.
+     *
+     * @throws IllegalArgumentException if the file is truncated or malformed.
+     */
+    RawBsonDocument next() {
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+
+        int offset = buffer.position();
+        if (buffer.remaining() < MIN_DOCUMENT_LENGTH) {
+            throw new IllegalArgumentException(String.format("Truncated document at offset %d", offset));
+        }
+        int length = buffer.getInt(offset);
+        if (length < MIN_DOCUMENT_LENGTH || length > buffer.remaining() || buffer.get(offset + length - 1) != 0) {
+            throw new IllegalArgumentException(String.format("Malformed document of length %d at offset %d", length, offset));
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new RawBsonDocument(bytes);
+    }
+}
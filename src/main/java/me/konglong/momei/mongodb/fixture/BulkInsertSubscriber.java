@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import me.konglong.momei.mongodb.stream.Subscriber;
+import me.konglong.momei.mongodb.stream.Subscription;
+import org.bson.RawBsonDocument;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Inserts the documents of a publisher in unordered bulk inserts, asking for the next batch of
+ * documents only once the bulk insert of the previous batch is acknowledged, so that no more
+ * than a batch of documents is held at a time and the publisher goes as fast as the server
+ * takes the documents. Bulk inserts run on the thread that emits the documents.
+ *
+ * @author chenlong
+ */
+final class BulkInsertSubscriber implements Subscriber<DBObject> {
+
+    private final FixtureLoader.RawBatches batches;
+    private final int batchSize;
+    private final DefaultDBEncoder encoder = new DefaultDBEncoder();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private Subscription subscription;
+    // Documents requested but not received yet
+    private long outstanding;
+    private boolean terminated;
+    private volatile long count;
+    private volatile Throwable failure;
+
+    BulkInsertSubscriber(FixtureLoader.RawBatches batches, int batchSize) {
+        this.batches = batches;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        outstanding = batchSize;
+        subscription.request(batchSize);
+    }
+
+    @Override
+    public void onNext(DBObject document) {
+        if (document == null) {
+            throw new NullPointerException("Document must not be null");
+        }
+        if (terminated) {
+            return;
+        }
+        try {
+            batches.add(new RawBsonDocument(encoder.encode(document)));
+            if (--outstanding == 0) {
+                batches.flush();
+                outstanding = batchSize;
+                subscription.request(batchSize);
+            }
+        } catch (RuntimeException e) {
+            subscription.cancel();
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (!terminated) {
+            fail(t);
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        if (terminated) {
+            return;
+        }
+        terminated = true;
+        try {
+            count = batches.finish();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        done.countDown();
+    }
+
+    /**
+     * Waits until the publisher completes and the last documents are inserted.
+     *
+     * @return the number of inserted documents.
+     * @throws RuntimeException the failure of the publisher or of a bulk insert, wrapped in an
+     *                          {@link IllegalStateException} if checked.
+     */
+    long await() {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (subscription != null) {
+                subscription.cancel();
+            }
+            throw new IllegalStateException("Interrupted while loading documents", e);
+        }
+
+        Throwable failure = this.failure;
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new IllegalStateException("Document source failed", failure);
+        }
+        return count;
+    }
+
+    private void fail(Throwable t) {
+        terminated = true;
+        failure = t;
+        done.countDown();
+    }
+}
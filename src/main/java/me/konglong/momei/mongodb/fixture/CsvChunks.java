@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the content of a CSV file into byte ranges that each hold whole records, so that the
+ * ranges can be parsed independently. A range ends at a line feed outside double quotes, which
+ * one pass over the bytes tells apart by counting quotes: a doubled quote inside a quoted value
+ * keeps the count even.
+ *
+ * @author chenlong
+ */
+final class CsvChunks {
+
+    private CsvChunks() {
+    }
+
+    /**
+     * Returns the offset after the UTF-8 byte order mark at the start of the content, if any.
+     */
+    static int startOf(ByteBuffer content) {
+        boolean hasMark = content.limit() >= 3 && content.get(0) == (byte) 0xEF
+                && content.get(1) == (byte) 0xBB && content.get(2) == (byte) 0xBF;
+        return hasMark ? 3 : 0;
+    }
+
+    /**
+     * Returns the offset after the record starting at the given offset.
+     */
+    static int endOfRecord(ByteBuffer content, int from) {
+        boolean inQuotes = false;
+        for (int i = from; i < content.limit(); i++) {
+            byte b = content.get(i);
+            if (b == '"') {
+                inQuotes = !inQuotes;
+            } else if (b == '\n' && !inQuotes) {
+                return i + 1;
+            }
+        }
+        return content.limit();
+    }
+
+    /**
+     * Splits the content from the given offset into ranges of whole records, each at least
+     * the given size unless it is the last one.
+     *
+     * @return the start and end offsets of each range.
+     */
+    static List<int[]> split(ByteBuffer content, int from, int chunkSize) {
+        List<int[]> chunks = new ArrayList<>();
+        int limit = content.limit();
+        int start = from;
+        boolean inQuotes = false;
+
+        for (int i = from; i < limit; i++) {
+            byte b = content.get(i);
+            if (b == '"') {
+                inQuotes = !inQuotes;
+            } else if (b == '\n' && !inQuotes && i + 1 - start >= chunkSize) {
+                chunks.add(new int[]{start, i + 1});
+                start = i + 1;
+            }
+        }
+        if (start < limit) {
+            chunks.add(new int[]{start, limit});
+        }
+        return chunks;
+    }
+}
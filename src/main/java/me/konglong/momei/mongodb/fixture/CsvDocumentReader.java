@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import com.mongodb.DBObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader of the records of a CSV file as in RFC 4180: values are separated by
+ * commas, records by line breaks, and a value in double quotes may hold commas, line breaks
+ * and doubled double quotes. Blank lines are skipped.
+ *
+ * @author chenlong
+ */
+final class CsvDocumentReader implements DocumentReader {
+
+    private static final int EOF = -1;
+    private static final int NONE = -2;
+
+    private final Reader reader;
+    private final CsvSchema schema;
+    private final StringBuilder value = new StringBuilder();
+    private int pushedBack = NONE;
+    private long line = 1;
+
+    /**
+     * @param reader should be buffered, as it is read a char at a time.
+     * @param schema the columns of the records, or {@literal null} to only read records.
+     */
+    CsvDocumentReader(Reader reader, CsvSchema schema) {
+        this.reader = reader;
+        this.schema = schema;
+    }
+
+    @Override
+    public DBObject next() throws IOException {
+        long recordLine = line;
+        List<String> record = nextRecord();
+        return (record == null) ? null : schema.toDocument(record, recordLine);
+    }
+
+    /**
+     * Returns the values of the next record, {@literal null} for empty unquoted values, or
+     * {@literal null} if there are no more records.
+     */
+    List<String> nextRecord() throws IOException {
+        int c = read();
+        while (c == '\r' || c == '\n') {
+            c = read();
+        }
+        if (c == EOF) {
+            return null;
+        }
+
+        List<String> record = new ArrayList<>();
+        value.setLength(0);
+        boolean quoted = false;
+        while (true) {
+            if (c == '"' && value.length() == 0 && !quoted) {
+                quoted = true;
+                readQuoted();
+            } else if (c == ',' || c == '\r' || c == '\n' || c == EOF) {
+                record.add((value.length() == 0 && !quoted) ? null : value.toString());
+                value.setLength(0);
+                quoted = false;
+                if (c != ',') {
+                    if (c == '\r' && (c = read()) != '\n') {
+                        pushedBack = c;
+                    }
+                    return record;
+                }
+            } else {
+                value.append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void readQuoted() throws IOException {
+        long startLine = line;
+        while (true) {
+            int c = read();
+            if (c == EOF) {
+                throw new IllegalArgumentException(String.format("Unterminated quoted value at line %d", startLine));
+            }
+            if (c == '"') {
+                int next = read();
+                if (next != '"') {
+                    pushedBack = next;
+                    return;
+                }
+            }
+            value.append((char) c);
+        }
+    }
+
+    private int read() throws IOException {
+        int c;
+        if (pushedBack != NONE) {
+            c = pushedBack;
+            pushedBack = NONE;
+            // Counted when first read
+            return c;
+        }
+        c = reader.read();
+        if (c == '\n') {
+            line++;
+        }
+        return c;
+    }
+}
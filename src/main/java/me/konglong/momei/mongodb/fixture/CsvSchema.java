@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * The columns of a CSV fixture file, declared by its header. Each header field is the path of
+ * the document field the column goes to, with dots for nested documents, optionally followed
+ * by a colon and the type of the column, such as {@code _id:objectId,name,address.zip:int}.
+ * Columns are strings unless typed otherwise.
+ *
+ * <p>An empty unquoted value leaves the field out of the document; a quoted one is an empty
+ * string.
+ *
+ * @author chenlong
+ */
+final class CsvSchema {
+
+    private static final String[] DATE_PATTERNS = {
+            "yyyy-MM-dd'T'HH:mm:ss.SSSXXX", "yyyy-MM-dd'T'HH:mm:ssXXX", "yyyy-MM-dd'T'HH:mm:ss.SSS",
+            "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd"
+    };
+
+    private enum Type {
+        STRING, INT, LONG, DOUBLE, BOOLEAN, DATE, OBJECTID
+    }
+
+    private final List<String[]> paths;
+    private final List<Type> types;
+
+    private CsvSchema(List<String[]> paths, List<Type> types) {
+        this.paths = paths;
+        this.types = types;
+    }
+
+    /**
+     * Parses the fields of the header of a CSV fixture file.
+     *
+     * @throws IllegalArgumentException if a field has an empty path or an unknown type.
+     */
+    static CsvSchema of(List<String> header) {
+        List<String[]> paths = new ArrayList<>(header.size());
+        List<Type> types = new ArrayList<>(header.size());
+        for (String field : header) {
+            field = (field == null) ? "" : field.trim();
+            int colon = field.lastIndexOf(':');
+            String path = (colon == -1) ? field : field.substring(0, colon);
+            if (path.isEmpty()) {
+                throw new IllegalArgumentException("Empty field in CSV header: " + header);
+            }
+            paths.add(path.split("\\."));
+            types.add((colon == -1) ? Type.STRING : typeOf(field.substring(colon + 1)));
+        }
+        return new CsvSchema(paths, types);
+    }
+
+    /**
+     * Converts the values of a record into a document.
+     *
+     * @param line the line of the record, for error messages.
+     * @throws IllegalArgumentException if the record has more values than the header has
+     *                                  fields, or a value is not of the type of its column.
+     */
+    DBObject toDocument(List<String> values, long line) {
+        if (values.size() > paths.size()) {
+            throw new IllegalArgumentException(String.format(
+                    "Record at line %d has %d values but the header has %d fields", line, values.size(), paths.size()));
+        }
+
+        DBObject document = new BasicDBObject();
+        for (int i = 0; i < values.size(); i++) {
+            String value = values.get(i);
+            if (value == null) {
+                continue;
+            }
+            try {
+                put(document, paths.get(i), convert(value, types.get(i)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("Value '%s' at line %d is not of type %s",
+                        value, line, types.get(i).name().toLowerCase(Locale.ENGLISH)), e);
+            }
+        }
+        return document;
+    }
+
+    private static void put(DBObject document, String[] path, Object value) {
+        DBObject parent = document;
+        for (int i = 0; i < path.length - 1; i++) {
+            Object child = parent.get(path[i]);
+            if (!(child instanceof DBObject)) {
+                child = new BasicDBObject();
+                parent.put(path[i], child);
+            }
+            parent = (DBObject) child;
+        }
+        parent.put(path[path.length - 1], value);
+    }
+
+    private static Object convert(String value, Type type) {
+        switch (type) {
+            case STRING:
+                return value;
+            case INT:
+                return Integer.valueOf(value.trim());
+            case LONG:
+                return Long.valueOf(value.trim());
+            case DOUBLE:
+                return Double.valueOf(value.trim());
+            case BOOLEAN:
+                return toBoolean(value.trim());
+            case DATE:
+                return toDate(value.trim());
+            case OBJECTID:
+                return new ObjectId(value.trim());
+            default:
+                throw new IllegalStateException("Unknown type: " + type);
+        }
+    }
+
+    private static Type typeOf(String typeName) {
+        try {
+            return Type.valueOf(typeName.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown type in CSV header: " + typeName, e);
+        }
+    }
+
+    private static Boolean toBoolean(String value) {
+        if ("true".equalsIgnoreCase(value)) {
+            return Boolean.TRUE;
+        }
+        if ("false".equalsIgnoreCase(value)) {
+            return Boolean.FALSE;
+        }
+        throw new IllegalArgumentException("Not a boolean: " + value);
+    }
+
+    private static Date toDate(String value) {
+        for (String datePattern : DATE_PATTERNS) {
+            SimpleDateFormat format = new SimpleDateFormat(datePattern);
+            // Dates without zone are UTC, as in the mongo shell
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            format.setLenient(false);
+            try {
+                return format.parse(value);
+            } catch (ParseException e) {
+                // Try the next pattern
+            }
+        }
+        throw new IllegalArgumentException("Not a date: " + value);
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import com.mongodb.DBObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the documents of a fixture file one at a time, so that only the document being read
+ * is held in memory.
+ *
+ * @author chenlong
+ */
+interface DocumentReader extends Closeable {
+
+    /**
+     * Returns the next document, or {@literal null} if there are no more documents.
+     *
+     * @throws IllegalArgumentException if the file is malformed.
+     */
+    DBObject next() throws IOException;
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+import me.konglong.momei.util.Assert;
+import me.konglong.momei.util.ClassPathResource;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the documents of fixture files encoded as BSON in direct buffers outside the heap, so
+ * that loading a file again sends the encoded documents without parsing or encoding them.
+ *
+ * <p>The documents of a file are held in one or more segments, each laid out as a
+ * {@literal mongodump} file. Entries are only served while the file's modification time and
+ * length are unchanged, and the least recently used entries are evicted once the segments
+ * take up more than the capacity. The segments of a single load share the capacity as their
+ * budget, so a file too large to cache is given up as soon as that is known. The memory of an evicted entry is given back when its
+ * buffers are garbage collected.
+ *
+ * @author chenlong
+ */
+final class EncodedFixtureCache {
+
+    private static final Logger logger = Loggers.getLogger(EncodedFixtureCache.class);
+
+    /**
+     * System property giving the capacity in megabytes, {@literal 0} to disable the cache.
+     */
+    static final String CAPACITY_PROPERTY = "momei.fixture.cacheMegabytes";
+
+    private static final int DEFAULT_CAPACITY_MEGABYTES = 64;
+    private static final int INITIAL_SEGMENT_BYTES = 64 * 1024;
+
+    private final long capacityBytes;
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes;
+
+    EncodedFixtureCache(long capacityBytes) {
+        Assert.isTrue(capacityBytes > 0, "Capacity must be positive!");
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * Returns the cache configured by the system property {@value #CAPACITY_PROPERTY},
+     * or {@literal null} if it is disabled.
+     */
+    static EncodedFixtureCache fromSystemProperty() {
+        String capacity = System.getProperty(CAPACITY_PROPERTY);
+        long megabytes = DEFAULT_CAPACITY_MEGABYTES;
+        if (capacity != null && !capacity.trim().isEmpty()) {
+            try {
+                megabytes = Long.parseLong(capacity.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException(String.format("%s must be a number: %s", CAPACITY_PROPERTY, capacity), e);
+            }
+        }
+        return (megabytes <= 0) ? null : new EncodedFixtureCache(megabytes * 1024 * 1024);
+    }
+
+    /**
+     * Returns read-only views of the segments cached for the given file, or {@literal null}
+     * if they are not cached or the file has changed since.
+     */
+    synchronized List<ByteBuffer> get(ClassPathResource file) {
+        Entry entry = entries.get(file.getDescription());
+        if (entry == null || !entry.isFreshFor(file)) {
+            return null;
+        }
+
+        List<ByteBuffer> segments = new ArrayList<>(entry.segments.size());
+        for (ByteBuffer segment : entry.segments) {
+            segments.add(segment.asReadOnlyBuffer());
+        }
+        return segments;
+    }
+
+    /**
+     * Caches the segments of the given load for its file, unless the load gave up. The entry
+     * carries the modification time and length the file had when the load was created.
+     */
+    synchronized void put(Load load) {
+        ClassPathResource file = load.file;
+        List<ByteBuffer> buffers = load.finish();
+        if (buffers == null) {
+            return;
+        }
+        long entryBytes = load.reservedBytes();
+
+        Entry previous = entries.remove(file.getDescription());
+        if (previous != null) {
+            sizeBytes -= previous.sizeBytes;
+        }
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (sizeBytes + entryBytes > capacityBytes && eldest.hasNext()) {
+            sizeBytes -= eldest.next().sizeBytes;
+            eldest.remove();
+        }
+
+        entries.put(file.getDescription(), new Entry(load.lastModified, load.length, buffers, entryBytes));
+        sizeBytes += entryBytes;
+        logger.debug(String.format("Cached %d bytes of encoded documents of %s", entryBytes, file));
+    }
+
+    /**
+     * Returns a new load of the given file, whose segments together give up once they would
+     * take up more than the capacity. To be called before the file is read, so that a change
+     * while reading is noticed.
+     */
+    Load newLoad(ClassPathResource file) {
+        return new Load(file, capacityBytes);
+    }
+
+    /**
+     * The segments encoding one file, possibly filled in parallel, sharing one budget of direct
+     * memory. Every buffer a segment allocates is taken from the budget before it is allocated,
+     * and once the budget is exhausted all segments give up and drop their buffers.
+     */
+    static final class Load {
+
+        private final ClassPathResource file;
+        private final long lastModified;
+        private final long length;
+        private final long budgetBytes;
+        private final AtomicLong remainingBytes;
+        private final List<Segment> segments = new ArrayList<>();
+        private volatile boolean gaveUp;
+
+        private Load(ClassPathResource file, long budgetBytes) {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.length = file.contentLength();
+            this.budgetBytes = budgetBytes;
+            this.remainingBytes = new AtomicLong(budgetBytes);
+        }
+
+        synchronized Segment newSegment() {
+            Segment segment = new Segment(this);
+            segments.add(segment);
+            return segment;
+        }
+
+        boolean gaveUp() {
+            return gaveUp;
+        }
+
+        /**
+         * Takes the given number of bytes from the budget, or gives up if it is short of them.
+         */
+        private boolean reserve(long bytes) {
+            if (remainingBytes.addAndGet(-bytes) >= 0) {
+                return true;
+            }
+            gaveUp = true;
+            return false;
+        }
+
+        /**
+         * Takes the given number of bytes from the budget if it has them.
+         */
+        private boolean tryReserve(long bytes) {
+            long remaining;
+            do {
+                remaining = remainingBytes.get();
+                if (remaining < bytes) {
+                    return false;
+                }
+            } while (!remainingBytes.compareAndSet(remaining, remaining - bytes));
+            return true;
+        }
+
+        private void release(long bytes) {
+            remainingBytes.addAndGet(bytes);
+        }
+
+        private long remainingBytes() {
+            return Math.max(0, remainingBytes.get());
+        }
+
+        /**
+         * Returns the direct memory held by the buffers of the segments.
+         */
+        private long reservedBytes() {
+            return budgetBytes - remainingBytes.get();
+        }
+
+        /**
+         * Returns the appended documents of each segment, or {@literal null} if the load gave up.
+         */
+        private synchronized List<ByteBuffer> finish() {
+            if (gaveUp) {
+                return null;
+            }
+            List<ByteBuffer> buffers = new ArrayList<>(segments.size());
+            for (Segment segment : segments) {
+                buffers.add(segment.finish());
+            }
+            return buffers;
+        }
+    }
+
+    /**
+     * Encoded documents appended one after another into a direct buffer that grows as needed.
+     * A segment is filled by one thread at a time.
+     */
+    static final class Segment {
+
+        private final Load load;
+        private ByteBuffer buffer;
+
+        private Segment(Load load) {
+            this.load = load;
+        }
+
+        void append(byte[] document) {
+            if (load.gaveUp()) {
+                buffer = null;
+                return;
+            }
+            if (buffer == null || buffer.remaining() < document.length) {
+                int used = (buffer == null) ? 0 : buffer.position();
+                long needed = used + (long) document.length;
+                long wanted = Math.max(needed, Math.max(INITIAL_SEGMENT_BYTES, (buffer == null) ? 0 : buffer.capacity() * 2L));
+                // Leaves half of the budget for other segments and the final trimming copy
+                long capacity = Math.max(needed, Math.min(wanted, load.remainingBytes() / 2));
+                if (capacity > Integer.MAX_VALUE || !load.reserve(capacity)) {
+                    buffer = null;
+                    return;
+                }
+
+                ByteBuffer grown = ByteBuffer.allocateDirect((int) capacity);
+                if (buffer != null) {
+                    buffer.flip();
+                    grown.put(buffer);
+                    load.release(buffer.capacity());
+                }
+                buffer = grown;
+            }
+            buffer.put(document);
+        }
+
+        /**
+         * Returns the appended documents, trimmed to their size if the budget has room for
+         * the copy.
+         */
+        private ByteBuffer finish() {
+            if (buffer == null) {
+                return ByteBuffer.allocateDirect(0);
+            }
+            ByteBuffer documents = buffer.duplicate();
+            documents.flip();
+            if (documents.remaining() == buffer.capacity() || !load.tryReserve(documents.remaining())) {
+                return documents.slice();
+            }
+
+            ByteBuffer trimmed = ByteBuffer.allocateDirect(documents.remaining());
+            trimmed.put(documents);
+            trimmed.flip();
+            load.release(buffer.capacity());
+            buffer = trimmed;
+            return trimmed.duplicate();
+        }
+    }
+
+    private static final class Entry {
+
+        private final long lastModified;
+        private final long length;
+        private final List<ByteBuffer> segments;
+        private final long sizeBytes;
+
+        private Entry(long lastModified, long length, List<ByteBuffer> segments, long sizeBytes) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.segments = segments;
+            this.sizeBytes = sizeBytes;
+        }
+
+        private boolean isFreshFor(ClassPathResource file) {
+            return (lastModified == file.lastModified() && length == file.contentLength());
+        }
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+import me.konglong.momei.mongodb.stream.Publisher;
+import me.konglong.momei.util.Assert;
+import me.konglong.momei.util.ClassPathResource;
+import me.konglong.momei.util.ClassPathResources;
+import org.bson.RawBsonDocument;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the documents of fixture files into collections, streaming them from the file into
+ * unordered bulk inserts of at most the batch size, so that memory use does not grow with the
+ * size of the file.
+ *
+ * <p>The format of a file is told by its suffix: {@value #JSON_LINES_SUFFIX} and
+ * {@value #JSON_SUFFIX} files hold documents in extended JSON, see {@link JsonDocumentReader};
+ * {@value #BSON_SUFFIX} files are {@literal mongodump} output, memory-mapped and sent as raw
+ * documents without being decoded, see {@link BsonDumpReader}; {@value #CSV_SUFFIX} files hold
+ * records whose columns are declared by the header, see {@link CsvSchema}. A large CSV file is
+ * split into chunks of whole records, which are parsed and inserted in parallel.
+ *
+ * <p>Documents parsed from JSON and CSV files are encoded once and sent as raw documents.
+ * Unless disabled by the system property {@value EncodedFixtureCache#CAPACITY_PROPERTY}, the
+ * encoded documents are kept outside the heap, see {@link EncodedFixtureCache}, so that loading
+ * the same file again, e.g. for each method of a test class, neither parses nor encodes them.
+ *
+ * <p>Documents generated by code are streamed from a {@link Publisher} instead, see
+ * {@link #load(Publisher, String)}.
+ *
+ * @author chenlong
+ */
+public final class FixtureLoader {
+
+    private static final Logger logger = Loggers.getLogger(FixtureLoader.class);
+
+    public static final String JSON_LINES_SUFFIX = ".jsonl";
+    public static final String JSON_SUFFIX = ".json";
+    public static final String BSON_SUFFIX = ".bson";
+    public static final String CSV_SUFFIX = ".csv";
+
+    // In the order fixture files are looked up
+    private static final List<String> SUFFIXES = Collections.unmodifiableList(
+            Arrays.asList(BSON_SUFFIX, JSON_LINES_SUFFIX, JSON_SUFFIX, CSV_SUFFIX));
+
+    /**
+     * CSV files are split into chunks of about this many bytes, so that memory use is bounded
+     * by the number of loading threads rather than the size of the file.
+     */
+    private static final int CSV_CHUNK_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Raw documents are sent in batches of at most this many bytes, well below the maximum
+     * message size of the server.
+     */
+    private static final int MAX_BATCH_BYTES = 16 * 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MongoClient mongoClient;
+    private final String dbName;
+    private final int batchSize;
+    private final ExecutorService chunkLoaders;
+    private final EncodedFixtureCache encodedCache = EncodedFixtureCache.fromSystemProperty();
+
+    /**
+     * @param batchSize the maximum number of documents in one bulk insert, must be positive.
+     */
+    public FixtureLoader(final MongoClient mongoClient, final String dbName, final int batchSize) {
+        Assert.notNull(mongoClient, "MongoClient must not be null!");
+        Assert.hasText(dbName, "DbName must not be null or empty!");
+        Assert.isTrue(batchSize > 0, "Batch size must be positive!");
+        this.mongoClient = mongoClient;
+        this.dbName = dbName;
+        this.batchSize = batchSize;
+        this.chunkLoaders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "momei-fixture-loader-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Stops the threads loading chunks of CSV files.
+     */
+    public void shutdown() {
+        chunkLoaders.shutdownNow();
+    }
+
+    /**
+     * Returns the suffixes of the fixture file formats, in the order fixture files are
+     * looked up.
+     */
+    public static List<String> suffixes() {
+        return SUFFIXES;
+    }
+
+    /**
+     * Returns the fixture file of the given collection for the given test class, named
+     * {@code <TestClass>.<collection>} with the suffix of a known format and living in the
+     * package of the test class.
+     *
+     * @return {@literal null} if there is no such file.
+     */
+    public static ClassPathResource fixtureFileOf(Class<?> testClass, String collectionName) {
+        Assert.notNull(testClass, "Test class must not be null!");
+        Assert.hasText(collectionName, "Collection name must not be null or empty!");
+        for (String suffix : SUFFIXES) {
+            ClassPathResource file = ClassPathResources.resourceInSameDirWith(testClass,
+                    testClass.getSimpleName() + '.' + collectionName + suffix);
+            if (file.exists()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Inserts the documents of the given fixture file into the given collection.
+     *
+     * @return the number of inserted documents.
+     * @throws IllegalArgumentException if the file is of an unknown format or malformed.
+     */
+    public long load(ClassPathResource file, String collectionName) throws IOException {
+        Assert.notNull(file, "File must not be null!");
+        Assert.hasText(collectionName, "Collection name must not be null or empty!");
+
+        String fileName = file.getName();
+        MongoCollection<RawBsonDocument> collection =
+                mongoClient.getDatabase(dbName).getCollection(collectionName, RawBsonDocument.class);
+        long count;
+        if (fileName.endsWith(BSON_SUFFIX)) {
+            count = loadBson(file, collection);
+        } else if (!fileName.endsWith(JSON_LINES_SUFFIX) && !fileName.endsWith(JSON_SUFFIX)
+                && !fileName.endsWith(CSV_SUFFIX)) {
+            throw new IllegalArgumentException("Unknown fixture file format: " + fileName);
+        } else {
+            List<ByteBuffer> cached = (encodedCache == null) ? null : encodedCache.get(file);
+            if (cached != null) {
+                count = loadEncoded(file, cached, collection);
+            } else if (fileName.endsWith(CSV_SUFFIX)) {
+                count = loadCsv(file, collection);
+            } else {
+                count = loadJson(file, collection);
+            }
+        }
+
+        logger.debug(String.format("Loaded %d documents into %s.%s from %s", count, dbName, collectionName, file));
+        return count;
+    }
+
+    /**
+     * Inserts the documents of the given publisher into the given collection, asking for
+     * documents only as fast as bulk inserts of them are acknowledged, see
+     * {@link BulkInsertSubscriber}. Waits until the publisher completes.
+     *
+     * @return the number of inserted documents.
+     */
+    public long load(Publisher<? extends DBObject> source, String collectionName) {
+        Assert.notNull(source, "Source must not be null!");
+        Assert.hasText(collectionName, "Collection name must not be null or empty!");
+
+        BulkInsertSubscriber subscriber = new BulkInsertSubscriber(new RawBatches(
+                mongoClient.getDatabase(dbName).getCollection(collectionName, RawBsonDocument.class)), batchSize);
+        source.subscribe(subscriber);
+        long count = subscriber.await();
+        logger.debug(String.format("Loaded %d documents into %s.%s from %s", count, dbName, collectionName, source));
+        return count;
+    }
+
+    private long loadJson(ClassPathResource file, MongoCollection<RawBsonDocument> collection) throws IOException {
+        EncodedFixtureCache.Load load = (encodedCache == null) ? null : encodedCache.newLoad(file);
+        long count;
+        try (DocumentReader reader = new JsonDocumentReader(
+                new BufferedReader(new InputStreamReader(file.openStream(), UTF_8)))) {
+            count = insertAll(reader, collection, (load == null) ? null : load.newSegment());
+        }
+        if (load != null) {
+            encodedCache.put(load);
+        }
+        return count;
+    }
+
+    private long loadCsv(ClassPathResource file, final MongoCollection<RawBsonDocument> collection) throws IOException {
+        EncodedFixtureCache.Load load = (encodedCache == null) ? null : encodedCache.newLoad(file);
+        final ByteBuffer content = file.read();
+        int start = CsvChunks.startOf(content);
+        int headerEnd = CsvChunks.endOfRecord(content, start);
+        List<String> header = new CsvDocumentReader(new StringReader(decode(content, start, headerEnd)), null).nextRecord();
+        if (header == null) {
+            throw new IllegalArgumentException("CSV file has no header: " + file.getName());
+        }
+        final CsvSchema schema = CsvSchema.of(header);
+
+        List<int[]> chunks = CsvChunks.split(content, headerEnd, CSV_CHUNK_BYTES);
+        List<Callable<Long>> tasks = new ArrayList<>(chunks.size());
+        for (final int[] chunk : chunks) {
+            final EncodedFixtureCache.Segment segment = (load == null) ? null : load.newSegment();
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return loadCsvChunk(content, chunk, schema, collection, segment);
+                }
+            });
+        }
+
+        long count = runAll(tasks, file);
+        if (load != null) {
+            encodedCache.put(load);
+        }
+        return count;
+    }
+
+    private long loadCsvChunk(ByteBuffer content, int[] chunk, CsvSchema schema,
+                              MongoCollection<RawBsonDocument> collection, EncodedFixtureCache.Segment segment)
+            throws IOException {
+        try (DocumentReader reader = new CsvDocumentReader(new StringReader(decode(content, chunk[0], chunk[1])), schema)) {
+            return insertAll(reader, collection, segment);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format(
+                    "%s, counting from the chunk at byte %d", e.getMessage(), chunk[0]), e);
+        }
+    }
+
+    /**
+     * Sends the documents a fixture file was encoded into by an earlier load, a segment per
+     * thread.
+     */
+    private long loadEncoded(ClassPathResource file, List<ByteBuffer> segments,
+                             final MongoCollection<RawBsonDocument> collection) throws IOException {
+        List<Callable<Long>> tasks = new ArrayList<>(segments.size());
+        for (final ByteBuffer segment : segments) {
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return insertRaw(new BsonDumpReader(segment), Long.MAX_VALUE, collection);
+                }
+            });
+        }
+        return runAll(tasks, file);
+    }
+
+    /**
+     * Runs the given tasks, in the calling thread if there is only one, and sums up their
+     * results.
+     */
+    private long runAll(List<Callable<Long>> tasks, ClassPathResource file) throws IOException {
+        if (tasks.size() <= 1) {
+            try {
+                return tasks.isEmpty() ? 0 : tasks.get(0).call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Could not load " + file.getName(), e);
+            }
+        }
+
+        List<Future<Long>> futures = new ArrayList<>(tasks.size());
+        for (Callable<Long> task : tasks) {
+            futures.add(chunkLoaders.submit(task));
+        }
+
+        long count = 0;
+        try {
+            for (Future<Long> future : futures) {
+                count += future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading " + file.getName(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Could not load " + file.getName(), cause);
+        } finally {
+            for (Future<Long> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Encodes the documents of the reader once and inserts them as raw documents, appending
+     * them to the given segment, if any, for later loads.
+     */
+    private long insertAll(DocumentReader reader, MongoCollection<RawBsonDocument> collection,
+                           EncodedFixtureCache.Segment segment) throws IOException {
+        DefaultDBEncoder encoder = new DefaultDBEncoder();
+        RawBatches batches = new RawBatches(collection);
+        DBObject document;
+        while ((document = reader.next()) != null) {
+            byte[] bytes = encoder.encode(document);
+            if (segment != null) {
+                segment.append(bytes);
+            }
+            batches.add(new RawBsonDocument(bytes));
+        }
+        return batches.finish();
+    }
+
+    private static String decode(ByteBuffer content, int start, int end) {
+        ByteBuffer range = content.duplicate();
+        range.limit(end);
+        range.position(start);
+        return UTF_8.decode(range).toString();
+    }
+
+    private long loadBson(ClassPathResource file, MongoCollection<RawBsonDocument> collection) throws IOException {
+        return insertRaw(new BsonDumpReader(file.read()), Long.MAX_VALUE, collection);
+    }
+
+    /**
+     * Inserts the given number of raw documents from the reader, or all of them, in batches
+     * bounded by count and size.
+     *
+     * @return the number of inserted documents.
+     */
+    long insertRaw(BsonDumpReader reader, long limit, MongoCollection<RawBsonDocument> collection) {
+        RawBatches batches = new RawBatches(collection);
+        RawBsonDocument document;
+        while (batches.count() < limit && (document = reader.next()) != null) {
+            batches.add(document);
+        }
+        return batches.finish();
+    }
+
+    /**
+     * Unordered inserts of raw documents in batches of at most the batch size and
+     * {@link #MAX_BATCH_BYTES}.
+     */
+    final class RawBatches {
+
+        private final InsertManyOptions options = new InsertManyOptions().ordered(false);
+        private final MongoCollection<RawBsonDocument> collection;
+        private List<RawBsonDocument> batch = new ArrayList<>();
+        private int batchBytes;
+        private long insertedCount;
+
+        RawBatches(MongoCollection<RawBsonDocument> collection) {
+            this.collection = collection;
+        }
+
+        void add(RawBsonDocument document) {
+            int documentBytes = document.getByteBuffer().remaining();
+            if (!batch.isEmpty() && (batch.size() == batchSize || batchBytes + documentBytes > MAX_BATCH_BYTES)) {
+                flush();
+            }
+            batch.add(document);
+            batchBytes += documentBytes;
+        }
+
+        private long count() {
+            return insertedCount + batch.size();
+        }
+
+        /**
+         * Inserts the documents added so far.
+         *
+         * @return the number of inserted documents.
+         */
+        long finish() {
+            flush();
+            return insertedCount;
+        }
+
+        void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            collection.insertMany(batch, options);
+            insertedCount += batch.size();
+            batch = new ArrayList<>();
+            batchBytes = 0;
+        }
+    }
+}
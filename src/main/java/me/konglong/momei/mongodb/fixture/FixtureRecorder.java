@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.util.JSON;
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+import me.konglong.momei.mongodb.script.MongoScriptReader;
+import me.konglong.momei.mongodb.script.NamedMongoScript;
+import me.konglong.momei.util.Assert;
+import org.bson.BasicBSONEncoder;
+import org.bson.RawBsonDocument;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Records the documents a prepare function leaves in the collections it touches, and replays
+ * them by bulk inserts instead of running the function again.
+ *
+ * <p>A recording is keyed by the SHA-1 hash of the code of the function, of the helper
+ * functions it calls and of its arguments, so it is made again once any of them changes. It is
+ * a file of raw BSON documents: for each collection, a marker document with the name of the
+ * collection and the number of its documents, followed by the documents. Only functions that
+ * touch collections named literally are recorded, see {@link ScriptFootprint}, and only if
+ * their collections are empty before they run; likewise a recording is only replayed into
+ * empty collections. Values a function computes anew on each run, such as the current date,
+ * are replayed as recorded.
+ *
+ * @author chenlong
+ */
+public final class FixtureRecorder {
+
+    private static final Logger logger = Loggers.getLogger(FixtureRecorder.class);
+
+    /**
+     * System property naming the directory of recordings; recording is disabled if not set.
+     */
+    public static final String RECORD_DIR_PROPERTY = "momei.fixture.recordDir";
+
+    private static final String RECORDING_SUFFIX = ".bson";
+    private static final String COLLECTION_KEY = "momeiCollection";
+    private static final String COUNT_KEY = "count";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File recordDir;
+    private final MongoDatabase database;
+    private final FixtureLoader loader;
+
+    public FixtureRecorder(File recordDir, MongoDatabase database, FixtureLoader loader) {
+        Assert.notNull(recordDir, "Record directory must not be null!");
+        Assert.notNull(database, "Database must not be null!");
+        Assert.notNull(loader, "Loader must not be null!");
+        this.recordDir = recordDir;
+        this.database = database;
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the recorder configured by the system property {@value #RECORD_DIR_PROPERTY},
+     * or {@literal null} if it is not set.
+     */
+    public static FixtureRecorder fromSystemProperty(MongoDatabase database, FixtureLoader loader) {
+        String recordDir = System.getProperty(RECORD_DIR_PROPERTY);
+        if (recordDir == null || recordDir.trim().isEmpty()) {
+            return null;
+        }
+        return new FixtureRecorder(new File(recordDir.trim()), database, loader);
+    }
+
+    /**
+     * Returns the recording of the given script called with the given arguments.
+     *
+     * @param helpers helper functions the script may call.
+     * @return {@literal null} if the script is not recordable.
+     */
+    public Recording recordingOf(NamedMongoScript script, Collection<NamedMongoScript> helpers, List<Object> args) {
+        Assert.notNull(script, "Script must not be null!");
+        StringBuilder footprint = new StringBuilder(ScriptFootprint.withCalledHelpers(script.getCode(), helpers));
+        Set<String> collectionNames = ScriptFootprint.collectionsOf(footprint.toString());
+        if (collectionNames == null || collectionNames.isEmpty()) {
+            return null;
+        }
+
+        footprint.append('\n').append(JSON.serialize(args));
+        String key = MongoScriptReader.contentHashOf(ByteBuffer.wrap(footprint.toString().getBytes(UTF_8)));
+        return new Recording(script.getName(), key, collectionNames);
+    }
+
+    /**
+     * Inserts the recorded documents if there is a recording and its collections are empty.
+     *
+     * @return whether the recording was replayed.
+     */
+    public boolean replay(Recording recording) {
+        File file = fileOf(recording);
+        if (!file.isFile() || !collectionsEmpty(recording)) {
+            return false;
+        }
+
+        long count = 0;
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            FileChannel channel = inputStream.getChannel();
+            BsonDumpReader reader = new BsonDumpReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            RawBsonDocument marker;
+            while ((marker = reader.next()) != null) {
+                String collectionName = marker.getString(COLLECTION_KEY).getValue();
+                long collectionCount = marker.getInt64(COUNT_KEY).getValue();
+                count += loader.insertRaw(reader, collectionCount,
+                        database.getCollection(collectionName, RawBsonDocument.class));
+            }
+        } catch (IOException e) {
+            logger.warn(String.format("Could not read recording %s", file), e);
+            return false;
+        }
+
+        logger.info("Replayed %s recorded documents of script %s", count, recording.getScriptName());
+        return true;
+    }
+
+    /**
+     * Whether the collections of the given recording are empty, so that the script may be
+     * recorded.
+     */
+    public boolean collectionsEmpty(Recording recording) {
+        for (String collectionName : recording.getCollectionNames()) {
+            if (database.getCollection(collectionName).count() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the documents in the collections of the given recording. Failures are logged
+     * and ignored.
+     */
+    public void record(Recording recording) {
+        File file = fileOf(recording);
+        File tempFile = null;
+
+        try {
+            if (!recordDir.isDirectory() && !recordDir.mkdirs() && !recordDir.isDirectory()) {
+                throw new IOException("Could not create directory " + recordDir);
+            }
+            tempFile = File.createTempFile(recording.getKey(), ".tmp", recordDir);
+            long count = writeRecording(tempFile, recording);
+            moveAtomically(tempFile, file);
+            tempFile = null;
+            logger.info("Recorded %s documents of script %s", count, recording.getScriptName());
+        } catch (IOException e) {
+            logger.warn(String.format("Could not write recording %s", file), e);
+        } finally {
+            if (tempFile != null && !tempFile.delete()) {
+                tempFile.deleteOnExit();
+            }
+        }
+    }
+
+    private long writeRecording(File file, Recording recording) throws IOException {
+        BasicBSONEncoder encoder = new BasicBSONEncoder();
+        long total = 0;
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (String collectionName : recording.getCollectionNames()) {
+                MongoCollection<RawBsonDocument> collection = database.getCollection(collectionName, RawBsonDocument.class);
+                long count = collection.count();
+                out.write(encoder.encode(new BasicDBObject(COLLECTION_KEY, collectionName).append(COUNT_KEY, count)));
+
+                long written = 0;
+                try (MongoCursor<RawBsonDocument> cursor = collection.find().iterator()) {
+                    while (cursor.hasNext()) {
+                        ByteBuffer bytes = cursor.next().getByteBuffer().asNIO();
+                        out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                        written++;
+                    }
+                }
+                if (written != count) {
+                    throw new IOException(String.format("Collection %s changed while being recorded", collectionName));
+                }
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    private File fileOf(Recording recording) {
+        return new File(recordDir, recording.getKey() + RECORDING_SUFFIX);
+    }
+
+    private static void moveAtomically(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * What a recording of a script is keyed by and holds.
+     */
+    public static final class Recording {
+
+        private final String scriptName;
+        private final String key;
+        private final Set<String> collectionNames;
+
+        private Recording(String scriptName, String key, Set<String> collectionNames) {
+            this.scriptName = scriptName;
+            this.key = key;
+            this.collectionNames = Collections.unmodifiableSet(collectionNames);
+        }
+
+        public String getScriptName() {
+            return scriptName;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Set<String> getCollectionNames() {
+            return collectionNames;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import com.mongodb.util.JSONParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streaming reader of documents in extended JSON, such as {@code {"_id": {"$oid": "..."}}}.
+ * The documents are either one per line as in JSON Lines, or elements of a top-level array,
+ * or simply follow each other.
+ *
+ * <p>The reader only finds where each top-level document ends, keeping track of strings and
+ * nesting, and leaves parsing the document to {@link JSON#parse(String)}.
+ *
+ * @author chenlong
+ */
+final class JsonDocumentReader implements DocumentReader {
+
+    private static final int EOF = -1;
+
+    private final Reader reader;
+    private final StringBuilder document = new StringBuilder();
+    private int line = 1;
+
+    /**
+     * @param reader should be buffered, as it is read a char at a time.
+     */
+    JsonDocumentReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    @Override
+    public DBObject next() throws IOException {
+        int c = skipSeparators();
+        if (c == EOF) {
+            return null;
+        }
+        if (c != '{') {
+            throw new IllegalArgumentException(String.format("Expected a document at line %d but got '%c'", line, (char) c));
+        }
+
+        int documentLine = line;
+        document.setLength(0);
+        readDocument(c);
+        try {
+            return (DBObject) JSON.parse(document.toString());
+        } catch (JSONParseException e) {
+            throw new IllegalArgumentException(String.format("Malformed document at line %d", documentLine), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    // Whitespace, commas and the brackets of a top-level array
+    private int skipSeparators() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c != EOF && (Character.isWhitespace(c) || c == ',' || c == '[' || c == ']'));
+        return c;
+    }
+
+    private void readDocument(int first) throws IOException {
+        int depth = 0;
+        int quote = 0;
+        boolean escaped = false;
+        int c = first;
+
+        while (true) {
+            if (c == EOF) {
+                throw new IllegalArgumentException(String.format("Unterminated document at line %d", line));
+            }
+            document.append((char) c);
+
+            if (quote != 0) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return;
+            }
+            c = read();
+        }
+    }
+
+    private int read() throws IOException {
+        int c = reader.read();
+        if (c == '\n') {
+            line++;
+        }
+        return c;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import me.konglong.momei.mongodb.script.NamedMongoScript;
+import me.konglong.momei.util.Assert;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tells from the code of a script which collections it touches, as far as that can be told
+ * without running it: collections named literally as {@code db.books} or
+ * {@code db.getCollection('books')}. A script is not recordable if it may reach collections or
+ * state that the documents of those collections do not capture, such as collections named by
+ * an expression or in brackets, {@code db} used as a value, other databases, or indexes.
+ *
+ * @author chenlong
+ */
+public final class ScriptFootprint {
+
+    private static final Pattern DB_CHAIN = Pattern.compile("(?<![\\w$])db(?![\\w$])((?:\\s*\\.\\s*[A-Za-z_$][\\w$]*)*)\\s*([(\\[])?");
+    private static final Pattern LITERAL_COLLECTION = Pattern.compile("^\\s*(['\"])([^'\"]+)\\1\\s*\\)");
+    private static final String GET_COLLECTION = "getCollection";
+
+    // Methods of collections whose effects are captured by the documents of the collection
+    private static final Set<String> COLLECTION_METHODS = new HashSet<>(Arrays.asList(
+            "insert", "insertOne", "insertMany", "save", "update", "updateOne", "updateMany", "replaceOne",
+            "remove", "deleteOne", "deleteMany", "findAndModify", "findOneAndUpdate", "findOneAndReplace",
+            "findOneAndDelete", "find", "findOne", "count", "distinct", "drop", "getName", "getFullName",
+            "initializeOrderedBulkOp", "initializeUnorderedBulkOp", "bulkWrite"));
+    // Methods of db that touch no collection
+    private static final Set<String> HARMLESS_DB_METHODS = new HashSet<>(Arrays.asList(
+            "getName", "version", "stats", "serverStatus", "hostInfo", "isMaster", "getLastError", "getLastErrorObj"));
+
+    private ScriptFootprint() {
+    }
+
+    /**
+     * Returns the names of the collections the given script touches, directly or through the
+     * given helper functions it calls.
+     *
+     * @return {@literal null} if that cannot be told, see {@link ScriptFootprint}.
+     */
+    public static Set<String> collectionsOf(NamedMongoScript script, Collection<NamedMongoScript> helpers) {
+        Assert.notNull(script, "Script must not be null!");
+        Assert.notNull(helpers, "Helpers must not be null!");
+        return collectionsOf(withCalledHelpers(script.getCode(), helpers));
+    }
+
+    /**
+     * Returns the given code followed by the definitions of the given helper functions it
+     * calls, directly or through other helpers, in the order of their names.
+     */
+    static String withCalledHelpers(String code, Collection<NamedMongoScript> helpers) {
+        Map<String, String> nameToCode = new HashMap<>();
+        for (NamedMongoScript helper : helpers) {
+            nameToCode.put(helper.getName(), helper.getCode());
+        }
+
+        StringBuilder footprint = new StringBuilder(code);
+        for (String name : functionsCalledBy(code, nameToCode)) {
+            footprint.append('\n').append(name).append(" = ").append(nameToCode.get(name));
+        }
+        return footprint.toString();
+    }
+
+    /**
+     * Returns the names of the collections the given code touches.
+     *
+     * @return {@literal null} if the code is not recordable.
+     */
+    static Set<String> collectionsOf(String code) {
+        Set<String> collectionNames = new TreeSet<>();
+        Matcher matcher = DB_CHAIN.matcher(code);
+        while (matcher.find()) {
+            // db['books'], db.books['archive'], or db assigned or passed as a value
+            if (matcher.group(1).isEmpty() || "[".equals(matcher.group(2))) {
+                return null;
+            }
+            String[] segments = matcher.group(1).replaceAll("\\s", "").substring(1).split("\\.");
+            boolean called = "(".equals(matcher.group(2));
+
+            if (segments[0].equals(GET_COLLECTION)) {
+                Matcher literal = LITERAL_COLLECTION.matcher(code.substring(matcher.end()));
+                if (segments.length > 1 || !called || !literal.find()) {
+                    return null;
+                }
+                collectionNames.add(literal.group(2));
+                continue;
+            }
+            if (segments.length == 1 && called) {
+                if (!HARMLESS_DB_METHODS.contains(segments[0])) {
+                    return null;
+                }
+                continue;
+            }
+
+            int end = segments.length;
+            for (int i = 1; i < segments.length; i++) {
+                if (COLLECTION_METHODS.contains(segments[i])) {
+                    end = i;
+                    break;
+                }
+            }
+            // An unknown method of a collection, such as createIndex
+            if (end == segments.length && called) {
+                return null;
+            }
+            collectionNames.add(join(segments, end));
+        }
+        return collectionNames;
+    }
+
+    /**
+     * Returns the names of the functions called by the given code, directly or through other
+     * functions among the given ones.
+     */
+    static Set<String> functionsCalledBy(String code, Map<String, String> nameToCode) {
+        Set<String> called = new TreeSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(code);
+        while (!pending.isEmpty()) {
+            String current = pending.pop();
+            for (Map.Entry<String, String> function : nameToCode.entrySet()) {
+                if (!called.contains(function.getKey()) && mentions(current, function.getKey())) {
+                    called.add(function.getKey());
+                    pending.push(function.getValue());
+                }
+            }
+        }
+        return called;
+    }
+
+    private static boolean mentions(String code, String name) {
+        return Pattern.compile("(?<![\\w$.])" + Pattern.quote(name) + "(?![\\w$])").matcher(code).find();
+    }
+
+    private static String join(String[] segments, int end) {
+        StringBuilder name = new StringBuilder(segments[0]);
+        for (int i = 1; i < end; i++) {
+            name.append('.').append(segments[i]);
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.script;
+
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+import me.konglong.momei.util.Assert;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps parsed script files on disk so that forked test JVMs parse every script file once.
+ *
+ * <p>A cache file is named after the SHA-1 hash of the script content and holds the
+ * function table in a compact binary form, read back through a memory mapping. Cache files
+ * are written to a temporary file first and then renamed atomically, so concurrent writers
+ * never expose a partial file. Any problem with the cache only costs a reparse.
+ *
+ * @author chenlong
+ */
+final class DiskScriptCache {
+
+    private static final Logger logger = Loggers.getLogger(DiskScriptCache.class);
+
+    /**
+     * System property naming the cache directory; the disk cache is disabled if not set.
+     */
+    static final String CACHE_DIR_PROPERTY = "momei.script.cacheDir";
+
+    private static final int MAGIC = 0x4d4f4d45;
+    // Bump whenever the file layout or the code produced by JsScanner changes
+    private static final int FORMAT_VERSION = 2;
+    private static final String CACHE_FILE_SUFFIX = ".fnt";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File cacheDir;
+
+    DiskScriptCache(File cacheDir) {
+        Assert.notNull(cacheDir, "Cache directory must not be null!");
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Returns the cache configured by the system property {@value #CACHE_DIR_PROPERTY},
+     * or {@literal null} if it is not set.
+     */
+    static DiskScriptCache fromSystemProperty() {
+        String cacheDir = System.getProperty(CACHE_DIR_PROPERTY);
+        if (cacheDir == null || cacheDir.trim().isEmpty()) {
+            return null;
+        }
+        return new DiskScriptCache(new File(cacheDir.trim()));
+    }
+
+    /**
+     * Returns the hex-encoded SHA-1 hash of the given script content.
+     */
+    static String hashOf(ByteBuffer content) {
+        MessageDigest digest = newDigest();
+        digest.update(content.duplicate());
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns the scripts cached under the given content hash, or {@literal null} if there
+     * are none or the cache file is unreadable.
+     */
+    List<NamedMongoScript> get(String contentHash) {
+        File cacheFile = cacheFileOf(contentHash);
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+
+        try {
+            return readCacheFile(cacheFile);
+        } catch (IOException | RuntimeException e) {
+            logger.warn(String.format("Ignored unreadable script cache file %s", cacheFile), e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the scripts under the given content hash. Failures are logged and ignored.
+     */
+    void put(String contentHash, List<NamedMongoScript> scripts) {
+        File cacheFile = cacheFileOf(contentHash);
+        File tempFile = null;
+
+        try {
+            if (!cacheDir.isDirectory() && !cacheDir.mkdirs() && !cacheDir.isDirectory()) {
+                throw new IOException("Could not create directory " + cacheDir);
+            }
+            tempFile = File.createTempFile(contentHash, ".tmp", cacheDir);
+            writeCacheFile(tempFile, scripts);
+            moveAtomically(tempFile, cacheFile);
+            tempFile = null;
+        } catch (IOException e) {
+            logger.warn(String.format("Could not write script cache file %s", cacheFile), e);
+        } finally {
+            if (tempFile != null && !tempFile.delete()) {
+                tempFile.deleteOnExit();
+            }
+        }
+    }
+
+    private File cacheFileOf(String contentHash) {
+        return new File(cacheDir, contentHash + CACHE_FILE_SUFFIX);
+    }
+
+    private static List<NamedMongoScript> readCacheFile(File cacheFile) throws IOException {
+        FileInputStream inputStream = new FileInputStream(cacheFile);
+
+        try {
+            FileChannel channel = inputStream.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown format of script cache file " + cacheFile);
+            }
+
+            int count = buffer.getInt();
+            List<NamedMongoScript> scripts = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                scripts.add(new NamedMongoScript(readString(buffer), readString(buffer)));
+            }
+            return Collections.unmodifiableList(scripts);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated script cache file " + cacheFile, e);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static void writeCacheFile(File file, List<NamedMongoScript> scripts) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(scripts.size());
+            for (NamedMongoScript script : scripts) {
+                writeString(out, script.getName());
+                writeString(out, script.getCode());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        ByteBuffer bytes = buffer.slice();
+        bytes.limit(length);
+        buffer.position(buffer.position() + length);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void moveAtomically(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported by this JVM", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.script;
+
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+import me.konglong.momei.util.ClassPathResource;
+import me.konglong.momei.util.ClassPathResources;
+
+import java.io.IOException;
+
+/**
+ * Finds the {@link ScriptTableProvider} generated for a test class. A generated table is only
+ * used while the script file still has the content it was generated from.
+ *
+ * @author chenlong
+ */
+final class GeneratedScriptTables {
+
+    private static final Logger logger = Loggers.getLogger(GeneratedScriptTables.class);
+
+    private GeneratedScriptTables() {
+    }
+
+    /**
+     * Returns the generated table of the given class.
+     *
+     * @return {@literal null} if none is generated or the script file has changed since.
+     */
+    static ScriptTable find(Class<?> clazz) {
+        ScriptTableProvider provider = providerOf(clazz);
+        if (provider == null) {
+            return null;
+        }
+
+        ClassPathResource scriptFile = ClassPathResources.resourceInSameDirWith(
+                clazz, clazz.getSimpleName() + MongoScriptReader.SCRIPT_PREFIX);
+        try {
+            if (scriptFile.exists() && provider.contentHash().equals(DiskScriptCache.hashOf(scriptFile.read()))) {
+                return provider.scriptTable();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        logger.info(String.format("Script file %s has changed since compilation, reading it again", scriptFile));
+        return null;
+    }
+
+    private static ScriptTableProvider providerOf(Class<?> clazz) {
+        String providerName = clazz.getName().replace('$', '_') + ScriptTableProvider.CLASS_NAME_SUFFIX;
+        try {
+            Class<?> providerClass = Class.forName(providerName, true, clazz.getClassLoader());
+            return (ScriptTableProvider) providerClass.getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            logger.warn(String.format("Ignored unusable generated script table %s", providerName), e);
+            return null;
+        }
+    }
+}
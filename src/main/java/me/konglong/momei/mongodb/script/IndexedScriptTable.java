@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.script;
+
+import me.konglong.momei.util.ClassPathResource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A {@link ScriptTable} that only knows where each function lies in the script file and
+ * reads and scans a function when it is asked for.
+ *
+ * @author chenlong
+ */
+final class IndexedScriptTable extends ScriptTable {
+
+    private final ClassPathResource scriptFile;
+    private final long lastModified;
+    private final long length;
+    private final Map<String, JsScanner.Span> spans;
+
+    IndexedScriptTable(ClassPathResource scriptFile, long lastModified, long length, List<JsScanner.Span> spans) {
+        this.scriptFile = scriptFile;
+        this.lastModified = lastModified;
+        this.length = length;
+
+        Map<String, JsScanner.Span> spansMap = new HashMap<>(spans.size() * 2);
+        for (JsScanner.Span span : spans) {
+            spansMap.put(span.getName(), span);
+        }
+        this.spans = Collections.unmodifiableMap(spansMap);
+    }
+
+    @Override
+    public NamedMongoScript get(String name) {
+        JsScanner.Span span = spans.get(name);
+        if (span == null) {
+            return null;
+        }
+
+        if (scriptFile.lastModified() != lastModified || scriptFile.contentLength() != length) {
+            throw new IllegalStateException(
+                    String.format("Script file %s changed since it was indexed", scriptFile.getName()));
+        }
+
+        CharBuffer chars;
+        try {
+            chars = StandardCharsets.UTF_8.newDecoder().decode(readSpan(span));
+        } catch (IOException e) {
+            throw new RuntimeException("Error while reading script file: " + scriptFile.getName(), e);
+        }
+
+        JsScanner scanner = new JsScanner();
+        scanner.feed(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+        List<NamedMongoScript> scripts = scanner.finish();
+        if (scripts.size() != 1 || !name.equals(scripts.get(0).getName())) {
+            throw new IllegalStateException(
+                    String.format("Index of script file %s is out of date", scriptFile.getName()));
+        }
+        return scripts.get(0);
+    }
+
+    @Override
+    public Set<String> names() {
+        return spans.keySet();
+    }
+
+    private ByteBuffer readSpan(JsScanner.Span span) throws IOException {
+        // A mapped file is only paged in where the span lies
+        ByteBuffer bytes = scriptFile.read().duplicate();
+        bytes.position((int) span.getOffset());
+        bytes.limit((int) (span.getOffset() + span.getLength()));
+        return bytes.slice();
+    }
+}
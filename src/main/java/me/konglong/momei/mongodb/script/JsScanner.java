@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.script;
+
+import me.konglong.momei.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single-pass scanner that extracts the {@code prepare4_*} and {@code cleanup4_*} functions,
+ * and the helper functions they call, from a {@literal JavaScript} file.
+ *
+ * <p>A function is assigned to its name at the start of a line outside any other function, as
+ * in {@code prepare4_findBooks = function() { ... }}. A helper function may take parameters;
+ * any other top level code is skipped.
+ *
+ * <p>The scanner walks the source once, char by char, and knows about strings, regular
+ * expression literals and comments, so a {@code //} or a brace inside a literal never cuts
+ * a function short. Input may be fed in chunks of any size; all state lives in the scanner.
+ *
+ * <p>The code of a function is normalized the same way it always has been: comments are
+ * dropped, every line is trimmed and the lines are joined without separator. In index-only
+ * mode no code is built at all; the scanner just records where each function lies in the
+ * UTF-8 encoded source, see {@link Span}.
+ *
+ * <p>Instances are not thread-safe and are meant to scan a single file.
+ *
+ * @author chenlong
+ */
+final class JsScanner {
+
+    private static final String FUNCTION_KEYWORD = "function";
+
+    private static final String[] REGEX_PRECEDING_KEYWORDS = {
+            "return", "typeof", "instanceof", "in", "new", "delete",
+            "void", "throw", "case", "do", "else"
+    };
+
+    private enum State {
+        CODE, SLASH, LINE_COMMENT, BLOCK_COMMENT, STRING, REGEX, HEADER
+    }
+
+    private final boolean indexOnly;
+    private final List<NamedMongoScript> scripts = new ArrayList<>();
+    private final List<Span> spans = new ArrayList<>();
+
+    // Code of the function being scanned, reused for every function of the file
+    private final StringBuilder code = new StringBuilder(1024);
+    // Identifier being scanned
+    private final StringBuilder word = new StringBuilder(64);
+    // Parameters of the function whose header is being scanned
+    private final StringBuilder params = new StringBuilder(64);
+
+    private State state = State.CODE;
+
+    private char quote;
+    private boolean escaped;
+    private boolean inCharClass;
+    private boolean starSeen;
+    private boolean regexAllowed = true;
+
+    private boolean atLineStart = true;
+    private boolean wordAtLineStart;
+    private int lineStart;
+
+    // Byte offsets in the UTF-8 encoded source
+    private long position;
+    private long wordPosition;
+    private long funcPosition;
+
+    private String funcName;
+    private boolean isHelper;
+    private boolean inFunction;
+    private int depth;
+    private int headerStep;
+    private int keywordIndex;
+
+    JsScanner() {
+        this(false);
+    }
+
+    /**
+     * @param indexOnly whether to record the {@link Span}s of functions rather than their code.
+     */
+    JsScanner(boolean indexOnly) {
+        this.indexOnly = indexOnly;
+    }
+
+    /**
+     * Scans the given chars, continuing from where the previous chunk stopped.
+     */
+    void feed(char[] chars, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            char c = chars[i];
+            accept(c);
+            position += utf8Length(c);
+        }
+    }
+
+    /**
+     * Signals the end of input and returns the functions found, in declaration order.
+     *
+     * @throws IllegalStateException if the input ends inside a function.
+     */
+    List<NamedMongoScript> finish() {
+        Assert.state(!indexOnly, "Scanner is index-only");
+        endInput();
+        return scripts;
+    }
+
+    /**
+     * Signals the end of input and returns where the functions found lie, in declaration order.
+     *
+     * @throws IllegalStateException if the input ends inside a function.
+     */
+    List<Span> finishIndex() {
+        Assert.state(indexOnly, "Scanner is not index-only");
+        endInput();
+        return spans;
+    }
+
+    private void endInput() {
+        if (state == State.SLASH) {
+            state = State.CODE;
+            emit('/');
+        }
+        if (state == State.CODE && word.length() > 0) {
+            endWord();
+        }
+        if (inFunction || (state == State.HEADER && !isHelper)) {
+            throw malformedFunction();
+        }
+    }
+
+    private void accept(char c) {
+        switch (state) {
+            case CODE:
+                onCode(c);
+                break;
+            case SLASH:
+                onSlash(c);
+                break;
+            case LINE_COMMENT:
+                if (c == '\n') {
+                    state = State.CODE;
+                    onCode(c);
+                }
+                break;
+            case BLOCK_COMMENT:
+                onBlockComment(c);
+                break;
+            case STRING:
+                onString(c);
+                break;
+            case REGEX:
+                onRegex(c);
+                break;
+            case HEADER:
+                onHeader(c);
+                break;
+            default:
+                throw new IllegalStateException("Unknown state: " + state);
+        }
+    }
+
+    private void onCode(char c) {
+        if (isIdentifierPart(c)) {
+            if (word.length() == 0) {
+                wordPosition = position;
+                wordAtLineStart = atLineStart;
+                atLineStart = false;
+            }
+            word.append(c);
+            emit(c);
+            return;
+        }
+
+        if (word.length() > 0 && endWord()) {
+            onHeader(c);
+            return;
+        }
+
+        if (c == '\n') {
+            endLine();
+            return;
+        }
+
+        if (Character.isWhitespace(c)) {
+            if (code.length() > lineStart) {
+                emit(c);
+            }
+            return;
+        }
+
+        atLineStart = false;
+        switch (c) {
+            case '/':
+                state = State.SLASH;
+                return;
+            case '"':
+            case '\'':
+            case '`':
+                quote = c;
+                escaped = false;
+                state = State.STRING;
+                emit(c);
+                return;
+            case '{':
+                emit(c);
+                if (inFunction) {
+                    depth++;
+                }
+                break;
+            case '}':
+                emit(c);
+                if (inFunction && depth > 0 && --depth == 0) {
+                    endFunction();
+                }
+                break;
+            default:
+                emit(c);
+                break;
+        }
+        regexAllowed = (c != ')' && c != ']');
+    }
+
+    private void onSlash(char c) {
+        state = State.CODE;
+        if (c == '/') {
+            state = State.LINE_COMMENT;
+            return;
+        }
+        if (c == '*') {
+            starSeen = false;
+            state = State.BLOCK_COMMENT;
+            return;
+        }
+
+        emit('/');
+        if (regexAllowed) {
+            escaped = false;
+            inCharClass = false;
+            state = State.REGEX;
+            onRegex(c);
+        } else {
+            regexAllowed = true;
+            onCode(c);
+        }
+    }
+
+    private void onBlockComment(char c) {
+        if (starSeen && c == '/') {
+            state = State.CODE;
+            // A comment separates tokens just like whitespace does
+            if (code.length() > lineStart && !Character.isWhitespace(code.charAt(code.length() - 1))) {
+                emit(' ');
+            }
+            return;
+        }
+        starSeen = (c == '*');
+        if (c == '\n') {
+            endLine();
+        }
+    }
+
+    private void onString(char c) {
+        emit(c);
+        if (escaped) {
+            escaped = false;
+        } else if (c == '\\') {
+            escaped = true;
+        } else if (c == quote) {
+            state = State.CODE;
+            regexAllowed = false;
+        }
+    }
+
+    private void onRegex(char c) {
+        if (c == '\n') {
+            // Not a regex after all, recover at the line break
+            state = State.CODE;
+            onCode(c);
+            return;
+        }
+
+        emit(c);
+        if (escaped) {
+            escaped = false;
+        } else if (c == '\\') {
+            escaped = true;
+        } else if (inCharClass) {
+            inCharClass = (c != ']');
+        } else if (c == '[') {
+            inCharClass = true;
+        } else if (c == '/') {
+            state = State.CODE;
+            regexAllowed = false;
+        }
+    }
+
+    /**
+     * Matches {@code = function ( params )} following a function name.
+     */
+    private void onHeader(char c) {
+        if (headerStep != 2 && Character.isWhitespace(c)) {
+            return;
+        }
+
+        switch (headerStep) {
+            case 0:
+                if (c != '=') {
+                    mismatchHeader(c);
+                    return;
+                }
+                headerStep = 1;
+                break;
+            case 1:
+                keywordIndex = 0;
+                headerStep = 2;
+                onHeader(c);
+                break;
+            case 2:
+                if (c != FUNCTION_KEYWORD.charAt(keywordIndex)) {
+                    mismatchHeader(c);
+                    return;
+                }
+                if (++keywordIndex == FUNCTION_KEYWORD.length()) {
+                    headerStep = 3;
+                }
+                break;
+            case 3:
+                if (c != '(') {
+                    mismatchHeader(c);
+                    return;
+                }
+                params.setLength(0);
+                headerStep = 4;
+                break;
+            case 4:
+                if (c == ')') {
+                    beginFunction();
+                } else if (isIdentifierPart(c) || c == ',') {
+                    params.append(c);
+                } else {
+                    mismatchHeader(c);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown header step: " + headerStep);
+        }
+    }
+
+    /**
+     * A {@code prepare4_*} or {@code cleanup4_*} name must be followed by a function, while
+     * any other name may just start a top level statement, which is skipped as code.
+     */
+    private void mismatchHeader(char c) {
+        if (!isHelper) {
+            throw malformedFunction();
+        }
+        if (headerStep > 0) {
+            // Right after the "=" an expression starts, so a slash begins a regex
+            regexAllowed = (headerStep == 2 && keywordIndex == 0);
+        }
+        state = State.CODE;
+        onCode(c);
+    }
+
+    /**
+     * Ends the current identifier.
+     *
+     * @return {@code true} if the identifier may name a function to extract.
+     */
+    private boolean endWord() {
+        regexAllowed = isRegexPrecedingKeyword(word);
+        boolean isFunctionName = (!inFunction && wordAtLineStart);
+        if (isFunctionName) {
+            funcName = word.toString();
+            isHelper = !ScriptConstants.isFixtureFunctionName(funcName);
+            funcPosition = wordPosition;
+            headerStep = 0;
+            state = State.HEADER;
+        }
+        word.setLength(0);
+        return isFunctionName;
+    }
+
+    private void endLine() {
+        int length = code.length();
+        while (length > lineStart && Character.isWhitespace(code.charAt(length - 1))) {
+            length--;
+        }
+        code.setLength(length);
+        lineStart = length;
+        atLineStart = true;
+    }
+
+    private void beginFunction() {
+        code.setLength(0);
+        code.append(FUNCTION_KEYWORD).append('(').append(params).append(')');
+        lineStart = 0;
+        depth = 0;
+        inFunction = true;
+        regexAllowed = false;
+        state = State.CODE;
+    }
+
+    private void endFunction() {
+        if (indexOnly) {
+            // The closing brace being accepted is not counted yet
+            spans.add(new Span(funcName, funcPosition, position + 1 - funcPosition));
+        } else {
+            scripts.add(new NamedMongoScript(funcName, code.toString()));
+        }
+        code.setLength(0);
+        lineStart = 0;
+        inFunction = false;
+    }
+
+    private void emit(char c) {
+        if (inFunction && !indexOnly) {
+            code.append(c);
+        }
+    }
+
+    private IllegalStateException malformedFunction() {
+        return new IllegalStateException(String.format("Malformed js function: %s", funcName));
+    }
+
+    private static int utf8Length(char c) {
+        if (c < 0x80) {
+            return 1;
+        }
+        // A surrogate pair takes four bytes in all
+        if (c < 0x800 || Character.isSurrogate(c)) {
+            return 2;
+        }
+        return 3;
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isJavaIdentifierPart(c) && !Character.isIdentifierIgnorable(c);
+    }
+
+    private static boolean isRegexPrecedingKeyword(CharSequence word) {
+        for (String keyword : REGEX_PRECEDING_KEYWORDS) {
+            if (keyword.length() == word.length() && startsWith(word, keyword)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(CharSequence chars, String prefix) {
+        if (chars.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (chars.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Where a function, from the first char of its name to its closing brace,
+     * lies in the UTF-8 encoded source.
+     */
+    static final class Span {
+
+        private final String name;
+        private final long offset;
+        private final long length;
+
+        Span(String name, long offset, long length) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        long getLength() {
+            return length;
+        }
+    }
+}
@@ -18,9 +18,21 @@ package me.konglong.momei.mongodb.script;
 
 import me.konglong.momei.diagnostics.logging.Logger;
 import me.konglong.momei.diagnostics.logging.Loggers;
+import me.konglong.momei.util.Assert;
+import me.konglong.momei.util.ClassPathResource;
 import me.konglong.momei.util.ClassPathResources;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -32,45 +44,392 @@ public class MongoScriptReader {
 
     private static final Logger logger = Loggers.getLogger(MongoScriptReader.class);
 
-    private static final String SCRIPT_PREFIX = ".js";
+    /**
+     * System property that makes {@link #readScriptTableWith(Class)} index script files
+     * instead of reading them whole.
+     */
+    public static final String INDEXED_PROPERTY = "momei.script.indexed";
 
+    /**
+     * System property that makes {@link #readScriptWith(Class)} parse all script files of the
+     * test class's class path root in the background the first time it is called.
+     */
+    public static final String PRELOAD_PROPERTY = "momei.script.preload";
+
+    /**
+     * System property that makes {@link #readScriptTableWith(Class)} watch script files for
+     * changes and reload them in the background, for test JVMs that run the same test classes
+     * over and over.
+     */
+    public static final String WATCH_PROPERTY = "momei.script.watch";
+
+    static final String SCRIPT_PREFIX = ".js";
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Files in a directory of this size or larger are read with {@link ReadMode#MAPPED} by default.
+     */
+    private static final long MAPPED_READ_THRESHOLD = 1024 * 1024;
+    private static final long MAPPED_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int SCRIPT_CACHE_CAPACITY = 256;
+
+    private static final ScriptCache SCRIPT_CACHE = new ScriptCache(SCRIPT_CACHE_CAPACITY);
+    private static final DiskScriptCache DISK_CACHE = DiskScriptCache.fromSystemProperty();
+    private static final ScriptPreloader PRELOADER = Boolean.getBoolean(PRELOAD_PROPERTY) ? new ScriptPreloader() : null;
+    private static final ScriptReloader RELOADER = Boolean.getBoolean(WATCH_PROPERTY) ? new ScriptReloader() : null;
+
+    /**
+     * How a script file is brought into memory.
+     */
+    public enum ReadMode {
+
+        /**
+         * Reads the file through an {@link InputStreamReader}.
+         */
+        STREAMED,
+
+        /**
+         * Maps the file window by window with {@link FileChannel#map} and decodes it incrementally
+         * into a reusable {@link CharBuffer}, so heap usage stays bounded whatever the file size.
+         * A resource that is not a file in a directory, such as a jar entry, is read
+         * {@linkplain #STREAMED streamed} instead.
+         */
+        MAPPED
+    }
+
+    /**
+     * Returns the scripts of the test class, reading the script file only if it is not cached
+     * or has changed since it was last read.
+     *
+     * @return an unmodifiable list, shared by every caller.
+     */
     public static List<NamedMongoScript> readScriptWith(Class<?> clazz) {
         String scriptName = clazz.getSimpleName() + SCRIPT_PREFIX;
+        ClassPathResource scriptFile = ClassPathResources.resourceInSameDirWith(clazz, scriptName);
+
+        if (PRELOADER != null) {
+            PRELOADER.preloadRootOf(clazz);
+            List<NamedMongoScript> scripts = PRELOADER.awaitPreloaded(scriptFile);
+            if (scripts != null) {
+                return scripts;
+            }
+        }
+
+        List<NamedMongoScript> scripts = SCRIPT_CACHE.get(scriptFile);
+        if (scripts != null) {
+            logger.debug(String.format("Found cached script file %s for test class %s",
+                    scriptName, clazz.getSimpleName()));
+            return scripts;
+        }
 
         try {
-            return read(scriptName, clazz);
+            return readAndCache(scriptFile);
         } finally {
             logger.info(String.format("Read script file %s for test class %s", scriptName, clazz.getSimpleName()));
         }
     }
 
-    public static List<NamedMongoScript> read(String scriptName, Class<?> withClass) {
-        BufferedReader reader = null;
-        JsReadingContext readingCtx = new JsReadingContext();
+    /**
+     * Returns the scripts of the given file from the cache, reading and caching them if needed.
+     */
+    static List<NamedMongoScript> readCached(ClassPathResource scriptFile) {
+        List<NamedMongoScript> scripts = SCRIPT_CACHE.get(scriptFile);
+        if (scripts == null) {
+            scripts = readAndCache(scriptFile);
+        }
+        return scripts;
+    }
+
+    /**
+     * Reads the scripts of the given file regardless of the cache, and caches them.
+     */
+    static List<NamedMongoScript> readFresh(ClassPathResource scriptFile) {
+        return readAndCache(scriptFile);
+    }
+
+    /**
+     * Reads the scripts of the given file and caches them under the modification time and
+     * length the file had before it was read, so that a change while reading is noticed.
+     */
+    private static List<NamedMongoScript> readAndCache(ClassPathResource scriptFile) {
+        long lastModified = scriptFile.lastModified();
+        long length = scriptFile.contentLength();
+        List<NamedMongoScript> scripts = readThroughDiskCache(scriptFile);
+        SCRIPT_CACHE.put(scriptFile, lastModified, length, scripts);
+        return scripts;
+    }
+
+    /**
+     * Returns the scripts of the test class as a {@link ScriptTable}.
+     *
+     * <p>If the system property {@value #WATCH_PROPERTY} is {@literal true}, the table of a script
+     * file in a directory is kept and updated whenever the file changes.
+     *
+     * <p>Otherwise a table generated at compile time by {@literal TestDataProcessor} is used as long as the
+     * script file is unchanged. Otherwise the script file is read whole through
+     * {@link #readScriptWith(Class)} unless the system property {@value #INDEXED_PROPERTY} is
+     * {@literal true}, in which case it is only indexed through {@link #indexScriptWith(Class)}.
+     */
+    public static ScriptTable readScriptTableWith(Class<?> clazz) {
+        if (RELOADER != null) {
+            ScriptTable watched = RELOADER.tableOf(
+                    ClassPathResources.resourceInSameDirWith(clazz, clazz.getSimpleName() + SCRIPT_PREFIX));
+            if (watched != null) {
+                return watched;
+            }
+        }
+
+        ScriptTable generated = GeneratedScriptTables.find(clazz);
+        if (generated != null) {
+            return generated;
+        }
+        if (Boolean.getBoolean(INDEXED_PROPERTY)) {
+            return indexScriptWith(clazz);
+        }
+        return ScriptTable.of(readScriptWith(clazz));
+    }
+
+    /**
+     * Scans the script file of the test class for the name, byte offset and length of each
+     * function without building its code. The code of a function is read and scanned when it is
+     * looked up in the returned table, so unused functions of a large file cost next to nothing.
+     */
+    public static ScriptTable indexScriptWith(Class<?> clazz) {
+        String scriptName = clazz.getSimpleName() + SCRIPT_PREFIX;
+        ClassPathResource scriptFile = ClassPathResources.resourceInSameDirWith(clazz, scriptName);
 
         try {
-            File scriptFile = ClassPathResources.resourceInSameDirWith(withClass, scriptName);
-            reader = new BufferedReader(new InputStreamReader(new FileInputStream(scriptFile), "UTF-8"));
-            String jsCodeLine = "";
+            return index(scriptFile);
+        } finally {
+            logger.info(String.format("Indexed script file %s for test class %s", scriptName, clazz.getSimpleName()));
+        }
+    }
+
+    /**
+     * Returns the helper functions of a shared script file, resolved as described for
+     * {@link me.konglong.momei.TestData#include()}.
+     */
+    public static List<NamedMongoScript> readLibraryWith(Class<?> clazz, String libraryName) {
+        Assert.hasText(libraryName, "Library name must not be null or empty!");
+        ClassPathResource libraryFile = ClassPathResources.resourceInSameDirWith(clazz, libraryName);
+        Assert.state(libraryFile.exists(), "Script library %s of test class %s is not found",
+                libraryName, clazz.getSimpleName());
+        return ScriptTable.of(readCached(libraryFile)).helpers();
+    }
+
+    /**
+     * Returns the cache behind {@link #readScriptWith(Class)}.
+     */
+    public static ScriptCache scriptCache() {
+        return SCRIPT_CACHE;
+    }
+
+    /**
+     * Reads the script, mapping it into memory if it is a large file in a directory.
+     */
+    public static List<NamedMongoScript> read(String scriptName, Class<?> withClass) {
+        ClassPathResource scriptFile = ClassPathResources.resourceInSameDirWith(withClass, scriptName);
+        return read(scriptFile, defaultReadMode(scriptFile));
+    }
+
+    public static List<NamedMongoScript> read(String scriptName, Class<?> withClass, ReadMode mode) {
+        return read(ClassPathResources.resourceInSameDirWith(withClass, scriptName), mode);
+    }
+
+    /**
+     * Parses the given script source.
+     */
+    public static List<NamedMongoScript> parse(CharSequence source) {
+        Assert.notNull(source, "Source must not be null!");
+        JsScanner scanner = new JsScanner();
+        char[] buffer = new char[BUFFER_SIZE];
 
-            while (jsCodeLine != null) {
-                readingCtx.append(jsCodeLine);
-                jsCodeLine = reader.readLine();
+        for (int start = 0; start < source.length(); start += buffer.length) {
+            int end = Math.min(start + buffer.length, source.length());
+            for (int i = start; i < end; i++) {
+                buffer[i - start] = source.charAt(i);
             }
+            scanner.feed(buffer, 0, end - start);
+        }
+        return scanner.finish();
+    }
 
-            readingCtx.onReadingFinished();
+    /**
+     * Returns the hex-encoded SHA-1 hash of the given script content, as used to tell whether
+     * a script file has changed.
+     */
+    public static String contentHashOf(ByteBuffer content) {
+        Assert.notNull(content, "Content must not be null!");
+        return DiskScriptCache.hashOf(content);
+    }
+
+    /**
+     * Reads the parsed scripts from the disk cache if one is configured, parsing the script
+     * file and filling the disk cache otherwise.
+     */
+    private static List<NamedMongoScript> readThroughDiskCache(ClassPathResource scriptFile) {
+        if (DISK_CACHE == null) {
+            return Collections.unmodifiableList(read(scriptFile, defaultReadMode(scriptFile)));
+        }
+
+        ByteBuffer content;
+        try {
+            content = scriptFile.read();
         } catch (IOException e) {
-            throw new RuntimeException("Error while reading script file: " + scriptName, e);
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    //logger.error("Error while closing file: " + jsonFile, e);
-                }
+            throw new RuntimeException("Error while reading script file: " + scriptFile.getName(), e);
+        }
+
+        String contentHash = DiskScriptCache.hashOf(content);
+        List<NamedMongoScript> scripts = DISK_CACHE.get(contentHash);
+        if (scripts == null) {
+            scripts = Collections.unmodifiableList(scan(content, scriptFile, new JsScanner()).finish());
+            DISK_CACHE.put(contentHash, scripts);
+        }
+        return scripts;
+    }
+
+    private static ReadMode defaultReadMode(ClassPathResource scriptFile) {
+        return (scriptFile.asFile().isPresent() && scriptFile.contentLength() >= MAPPED_READ_THRESHOLD)
+                ? ReadMode.MAPPED : ReadMode.STREAMED;
+    }
+
+    private static ScriptTable index(ClassPathResource scriptFile) {
+        long lastModified = scriptFile.lastModified();
+        long length = scriptFile.contentLength();
+        JsScanner scanner = new JsScanner(true);
+
+        try {
+            // Decoding errors must not go unnoticed here as they would shift the offsets
+            scan(scriptFile.read(), scriptFile, scanner);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while reading script file: " + scriptFile.getName(), e);
+        }
+
+        return new IndexedScriptTable(scriptFile, lastModified, length, scanner.finishIndex());
+    }
+
+    private static List<NamedMongoScript> read(ClassPathResource scriptFile, ReadMode mode) {
+        Assert.notNull(mode, "ReadMode must not be null!");
+        JsScanner scanner = new JsScanner();
+
+        try {
+            if (mode == ReadMode.MAPPED && scriptFile.asFile().isPresent()) {
+                scanMapped(scriptFile.asFile().get(), scanner);
+            } else {
+                scanStreamed(scriptFile, scanner);
             }
+        } catch (IOException e) {
+            throw new RuntimeException("Error while reading script file: " + scriptFile.getName(), e);
         }
 
-        return readingCtx.getNamedMongoScripts();
+        return scanner.finish();
+    }
+
+    private static void scanStreamed(ClassPathResource scriptFile, JsScanner scanner) throws IOException {
+        Reader reader = null;
+
+        try {
+            reader = new InputStreamReader(scriptFile.openStream(), "UTF-8");
+            char[] buffer = new char[BUFFER_SIZE];
+            int length;
+
+            while ((length = reader.read(buffer)) != -1) {
+                scanner.feed(buffer, 0, length);
+            }
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private static void scanMapped(File scriptFile, JsScanner scanner) throws IOException {
+        FileInputStream inputStream = null;
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+        try {
+            inputStream = new FileInputStream(scriptFile);
+            FileChannel channel = inputStream.getChannel();
+            long size = channel.size();
+            long position = 0;
+            boolean endOfInput;
+
+            do {
+                long windowSize = Math.min(MAPPED_WINDOW_SIZE, size - position);
+                endOfInput = (position + windowSize == size);
+                MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                decode(decoder, bytes, chars, endOfInput, scanner);
+                // Bytes of a char split by the window edge are left over and mapped again
+                position += bytes.position();
+            } while (!endOfInput);
+
+            flush(decoder, chars, scanner);
+        } finally {
+            closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * Decodes the UTF-8 content chunk by chunk into one reusable {@link CharBuffer} and
+     * feeds the chunks to the scanner.
+     */
+    private static JsScanner scan(ByteBuffer content, ClassPathResource scriptFile, JsScanner scanner) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer bytes = content.duplicate();
+
+        try {
+            decode(decoder, bytes, chars, true, scanner);
+            flush(decoder, chars, scanner);
+        } catch (CharacterCodingException e) {
+            throw new RuntimeException("Error while decoding script file: " + scriptFile.getName(), e);
+        }
+
+        return scanner;
+    }
+
+    private static void decode(CharsetDecoder decoder, ByteBuffer bytes, CharBuffer chars,
+                               boolean endOfInput, JsScanner scanner) throws CharacterCodingException {
+        CoderResult result;
+        do {
+            result = decoder.decode(bytes, chars, endOfInput);
+            checkResult(result);
+            drain(chars, scanner);
+        } while (result.isOverflow());
+    }
+
+    private static void flush(CharsetDecoder decoder, CharBuffer chars, JsScanner scanner)
+            throws CharacterCodingException {
+        CoderResult result;
+        do {
+            result = decoder.flush(chars);
+            checkResult(result);
+            drain(chars, scanner);
+        } while (result.isOverflow());
+    }
+
+    private static void checkResult(CoderResult result) throws CharacterCodingException {
+        if (result.isError()) {
+            result.throwException();
+        }
+    }
+
+    private static void drain(CharBuffer chars, JsScanner scanner) {
+        chars.flip();
+        scanner.feed(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+        chars.clear();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                //logger.error("Error while closing file: " + jsonFile, e);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.script;
+
+import me.konglong.momei.util.Assert;
+import me.konglong.momei.util.ClassPathResource;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe LRU cache of parsed script files.
+ *
+ * <p>Entries are keyed by the location of the script file and are only served while the
+ * file's modification time and length are unchanged, so an edited file is parsed again.
+ *
+ * @author chenlong
+ */
+public final class ScriptCache {
+
+    private final int capacity;
+    private final Map<String, CacheEntry> entries;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates new {@link ScriptCache}.
+     *
+     * @param capacity the maximum number of script files kept, must be positive.
+     */
+    public ScriptCache(final int capacity) {
+        Assert.isTrue(capacity > 0, "Capacity must be positive!");
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > ScriptCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the scripts parsed from the given file, or {@literal null} if they are not
+     * cached or the file has changed since.
+     */
+    public List<NamedMongoScript> get(ClassPathResource scriptFile) {
+        Assert.notNull(scriptFile, "Script file must not be null!");
+        CacheEntry entry;
+        synchronized (entries) {
+            entry = entries.get(keyOf(scriptFile));
+        }
+
+        if (entry != null && entry.isFreshFor(scriptFile)) {
+            hitCount.incrementAndGet();
+            return entry.scripts;
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the scripts parsed from the given file.
+     *
+     * @param lastModified the modification time of the file taken before it was read.
+     * @param length the length of the file taken before it was read.
+     * @param scripts must not be {@literal null}, should be immutable as it is shared.
+     */
+    public void put(ClassPathResource scriptFile, long lastModified, long length, List<NamedMongoScript> scripts) {
+        Assert.notNull(scriptFile, "Script file must not be null!");
+        Assert.notNull(scripts, "Scripts must not be null!");
+        CacheEntry entry = new CacheEntry(lastModified, length, scripts);
+        synchronized (entries) {
+            entries.put(keyOf(scriptFile), entry);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long hitCount() {
+        return hitCount.get();
+    }
+
+    public long missCount() {
+        return missCount.get();
+    }
+
+    private static String keyOf(ClassPathResource scriptFile) {
+        return scriptFile.getDescription();
+    }
+
+    private static final class CacheEntry {
+
+        private final long lastModified;
+        private final long length;
+        private final List<NamedMongoScript> scripts;
+
+        private CacheEntry(long lastModified, long length, List<NamedMongoScript> scripts) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.scripts = scripts;
+        }
+
+        private boolean isFreshFor(ClassPathResource scriptFile) {
+            return (lastModified == scriptFile.lastModified() && length == scriptFile.contentLength());
+        }
+    }
+}
@@ -24,4 +24,12 @@ public abstract class ScriptConstants {
     public static final String PREPARE_FUNC_NAME_PREFIX = "prepare4_";
     public static final String CLEANUP_FUNC_NAME_PREFIX = "cleanup4_";
 
+    /**
+     * Returns whether the given function name is that of a {@code prepare4_*} or
+     * {@code cleanup4_*} function rather than of a helper function.
+     */
+    public static boolean isFixtureFunctionName(String name) {
+        return name.startsWith(PREPARE_FUNC_NAME_PREFIX) || name.startsWith(CLEANUP_FUNC_NAME_PREFIX);
+    }
+
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.script;
+
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+import me.konglong.momei.util.ClassPathResource;
+import me.konglong.momei.util.ClassPathResources;
+
+import java.security.CodeSource;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Parses all script files of a class path root in the background on a {@link ForkJoinPool},
+ * so that test classes find their scripts parsed by the time they start.
+ *
+ * <p>Each result is held until its test class asks for it, or is found in the cache of
+ * {@link MongoScriptReader}; a test class whose script is still being parsed waits for it
+ * instead of parsing it again.
+ *
+ * @author chenlong
+ */
+final class ScriptPreloader {
+
+    private static final Logger logger = Loggers.getLogger(ScriptPreloader.class);
+
+    private final ForkJoinPool pool = new ForkJoinPool();
+    private final ConcurrentMap<String, Boolean> preloadedRoots = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Future<List<NamedMongoScript>>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Starts parsing all scripts in the class path root of the given class, unless that has
+     * been done before.
+     */
+    void preloadRootOf(Class<?> clazz) {
+        CodeSource codeSource = clazz.getProtectionDomain().getCodeSource();
+        String rootKey = (codeSource == null) ? clazz.getName() : String.valueOf(codeSource.getLocation());
+        if (preloadedRoots.putIfAbsent(rootKey, Boolean.TRUE) != null) {
+            return;
+        }
+
+        Collection<ClassPathResource> scriptFiles = ClassPathResources.scriptsInRootOf(clazz);
+        for (final ClassPathResource scriptFile : scriptFiles) {
+            Future<List<NamedMongoScript>> future = pool.submit(new Callable<List<NamedMongoScript>>() {
+                @Override
+                public List<NamedMongoScript> call() throws Exception {
+                    return MongoScriptReader.readCached(scriptFile);
+                }
+            });
+            pending.put(scriptFile.getDescription(), future);
+        }
+        logger.info(String.format("Preloading %d script files of %s", scriptFiles.size(), rootKey));
+    }
+
+    /**
+     * Waits until the given script file is parsed if it is being preloaded.
+     *
+     * @return {@literal null} if the script file is not being preloaded or preloading it failed.
+     */
+    List<NamedMongoScript> awaitPreloaded(ClassPathResource scriptFile) {
+        Future<List<NamedMongoScript>> future = pending.remove(scriptFile.getDescription());
+        if (future == null) {
+            return null;
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // The caller parses the script itself and reports the failure
+            logger.debug(String.format("Failed to preload script file %s", scriptFile), e.getCause());
+            return null;
+        }
+    }
+}
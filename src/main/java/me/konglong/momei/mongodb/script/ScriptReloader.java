@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.script;
+
+import me.konglong.momei.base.Optional;
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+import me.konglong.momei.util.ClassPathResource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps the script tables of script files in directories up to date while the JVM runs.
+ * The directories of the script files are watched by a {@link WatchService}, and a changed file
+ * is parsed again on a background thread and swapped into its table at once.
+ *
+ * <p>A table keeps the {@link NamedMongoScript} of each function whose code did not change,
+ * so only the changed functions are replaced.
+ *
+ * @author chenlong
+ */
+final class ScriptReloader {
+
+    private static final Logger logger = Loggers.getLogger(ScriptReloader.class);
+
+    private final WatchService watchService;
+    private final ConcurrentMap<Path, ReloadingScriptTable> fileToTable = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Path, Boolean> watchedDirs = new ConcurrentHashMap<>();
+
+    ScriptReloader() {
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        Thread watcher = new Thread("momei-script-reloader") {
+            @Override
+            public void run() {
+                watch();
+            }
+        };
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Returns the table of the given script file, reading the file if it has no table yet.
+     *
+     * @return {@literal null} if the script file does not live in a directory and so cannot
+     * be watched.
+     */
+    ScriptTable tableOf(ClassPathResource scriptFile) {
+        Optional<File> file = scriptFile.asFile();
+        if (!file.isPresent()) {
+            return null;
+        }
+
+        Path path = file.get().toPath().toAbsolutePath();
+        ReloadingScriptTable table = fileToTable.get(path);
+        if (table != null) {
+            return table;
+        }
+
+        table = new ReloadingScriptTable(scriptFile, MongoScriptReader.readCached(scriptFile));
+        ReloadingScriptTable existing = fileToTable.putIfAbsent(path, table);
+        if (existing != null) {
+            return existing;
+        }
+        register(path.getParent());
+        return table;
+    }
+
+    /**
+     * Stops watching, the tables keep the scripts they have.
+     */
+    void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("Could not close the watch service of script files", e);
+        }
+    }
+
+    private void register(Path dir) {
+        if (watchedDirs.putIfAbsent(dir, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        } catch (IOException e) {
+            watchedDirs.remove(dir);
+            logger.warn(String.format("Could not watch script directory %s", dir), e);
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            List<WatchEvent<?>> events = key.pollEvents();
+            key.reset();
+            reloadChanged((Path) key.watchable(), events);
+        }
+    }
+
+    /**
+     * Reloads the script files of the given directory that the given events tell have changed.
+     */
+    void reloadChanged(Path dir, List<WatchEvent<?>> events) {
+        Set<Path> changed = new LinkedHashSet<>();
+        for (WatchEvent<?> event : events) {
+            if (event.kind() == OVERFLOW) {
+                // Events are lost, so every script file in the directory may have changed
+                for (Path file : fileToTable.keySet()) {
+                    if (dir.equals(file.getParent())) {
+                        changed.add(file);
+                    }
+                }
+            } else {
+                changed.add(dir.resolve((Path) event.context()));
+            }
+        }
+
+        for (Path file : changed) {
+            ReloadingScriptTable table = fileToTable.get(file);
+            if (table != null) {
+                table.reload();
+            }
+        }
+    }
+
+    private static final class ReloadingScriptTable extends ScriptTable {
+
+        private final ClassPathResource scriptFile;
+        private volatile Map<String, NamedMongoScript> scriptsMap;
+
+        private ReloadingScriptTable(ClassPathResource scriptFile, List<NamedMongoScript> scripts) {
+            this.scriptFile = scriptFile;
+            this.scriptsMap = toMap(scripts, Collections.<String, NamedMongoScript>emptyMap());
+        }
+
+        @Override
+        public NamedMongoScript get(String name) {
+            return scriptsMap.get(name);
+        }
+
+        @Override
+        public Set<String> names() {
+            return scriptsMap.keySet();
+        }
+
+        private synchronized void reload() {
+            List<NamedMongoScript> scripts;
+            try {
+                scripts = MongoScriptReader.readFresh(scriptFile);
+            } catch (RuntimeException e) {
+                // Possibly caught halfway through being saved, the next event reloads it again
+                logger.warn(String.format("Could not reload script file %s", scriptFile), e);
+                return;
+            }
+
+            Map<String, NamedMongoScript> previous = scriptsMap;
+            Map<String, NamedMongoScript> current = toMap(scripts, previous);
+            int changedCount = 0;
+            for (NamedMongoScript script : current.values()) {
+                if (previous.get(script.getName()) != script) {
+                    changedCount++;
+                }
+            }
+
+            scriptsMap = current;
+            logger.info(String.format("Reloaded script file %s, %d of %d functions changed",
+                    scriptFile, changedCount, current.size()));
+        }
+
+        /**
+         * Maps the scripts by name, reusing the previous script of a name if its code is the same.
+         */
+        private static Map<String, NamedMongoScript> toMap(List<NamedMongoScript> scripts,
+                                                           Map<String, NamedMongoScript> previous) {
+            Map<String, NamedMongoScript> scriptsMap = new HashMap<>(scripts.size() * 2);
+            for (NamedMongoScript script : scripts) {
+                NamedMongoScript previousScript = previous.get(script.getName());
+                if (previousScript != null && previousScript.getCode().equals(script.getCode())) {
+                    script = previousScript;
+                }
+                scriptsMap.put(script.getName(), script);
+            }
+            return Collections.unmodifiableMap(scriptsMap);
+        }
+    }
+}
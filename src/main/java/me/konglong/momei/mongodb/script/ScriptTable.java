@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.script;
+
+import me.konglong.momei.util.Assert;
+
+import java.util.*;
+
+/**
+ * The functions of a script file, looked up by name.
+ *
+ * @author chenlong
+ */
+public abstract class ScriptTable {
+
+    ScriptTable() {
+    }
+
+    /**
+     * Returns a table holding the given scripts.
+     *
+     * @param scripts must not be {@literal null}.
+     */
+    public static ScriptTable of(List<NamedMongoScript> scripts) {
+        Assert.notNull(scripts, "Scripts must not be null!");
+        Map<String, NamedMongoScript> scriptsMap = new HashMap<>(scripts.size() * 2);
+        for (NamedMongoScript script : scripts) {
+            scriptsMap.put(script.getName(), script);
+        }
+        return new MaterializedScriptTable(Collections.unmodifiableMap(scriptsMap));
+    }
+
+    /**
+     * Returns the script of the given name.
+     *
+     * @return {@literal null} if the table has no such script.
+     */
+    public abstract NamedMongoScript get(String name);
+
+    /**
+     * Returns the names of all scripts in the table.
+     */
+    public abstract Set<String> names();
+
+    /**
+     * Returns the helper functions of the table, i.e. all functions but the
+     * {@code prepare4_*} and {@code cleanup4_*} ones.
+     */
+    public List<NamedMongoScript> helpers() {
+        List<NamedMongoScript> helpers = new ArrayList<>();
+        for (String name : names()) {
+            if (!ScriptConstants.isFixtureFunctionName(name)) {
+                helpers.add(get(name));
+            }
+        }
+        return helpers;
+    }
+
+    private static final class MaterializedScriptTable extends ScriptTable {
+
+        private final Map<String, NamedMongoScript> scriptsMap;
+
+        private MaterializedScriptTable(Map<String, NamedMongoScript> scriptsMap) {
+            this.scriptsMap = scriptsMap;
+        }
+
+        @Override
+        public NamedMongoScript get(String name) {
+            return scriptsMap.get(name);
+        }
+
+        @Override
+        public Set<String> names() {
+            return scriptsMap.keySet();
+        }
+    }
+}
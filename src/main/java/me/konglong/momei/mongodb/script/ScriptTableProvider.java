@@ -16,23 +16,22 @@
 
 package me.konglong.momei.mongodb.script;
 
-import me.konglong.momei.util.Assert;
-
 /**
+ * Provides the scripts of a test class that were split into functions at compile time.
+ * Implementations are generated by {@literal me.konglong.momei.processor.TestDataProcessor}
+ * and named after the test class with the suffix {@value #CLASS_NAME_SUFFIX}.
+ *
  * @author chenlong
  */
-class JsSingleLineComment extends JsPartial {
+public interface ScriptTableProvider {
+
+    String CLASS_NAME_SUFFIX = "_TestDataScripts";
 
-    private static final String STARTING_CHARS = "//";
+    /**
+     * Returns the hex-encoded SHA-1 hash of the script file the table was generated from.
+     */
+    String contentHash();
 
-    JsSingleLineComment(String startingLine) {
-        Assert.isTrue(isStartingLine(startingLine),
-                "Line '%s' is not a starting line of single-line comment!", startingLine);
-        this.append(startingLine);
-        this.setToBeComplete();
-    }
+    ScriptTable scriptTable();
 
-    static boolean isStartingLine(String line) {
-        return line.startsWith(STARTING_CHARS);
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.stream;
+
+import me.konglong.momei.util.Assert;
+
+import java.util.Iterator;
+
+/**
+ * A publisher of the elements of an {@link Iterable}, pulled one at a time as they are
+ * requested, so that a lazily generated dataset is never held in memory as a whole. Elements
+ * are emitted on the thread that subscribes or requests them; a request made from within
+ * {@link Subscriber#onNext(Object)} only adds to the demand and does not recurse.
+ *
+ * <p>Each subscriber gets its own iterator.
+ *
+ * @author chenlong
+ */
+public final class IterablePublisher<T> implements Publisher<T> {
+
+    private final Iterable<? extends T> elements;
+
+    private IterablePublisher(Iterable<? extends T> elements) {
+        this.elements = elements;
+    }
+
+    public static <T> IterablePublisher<T> of(Iterable<? extends T> elements) {
+        Assert.notNull(elements, "Elements must not be null!");
+        return new IterablePublisher<>(elements);
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        Assert.notNull(subscriber, "Subscriber must not be null!");
+        IteratorSubscription<T> subscription;
+        try {
+            subscription = new IteratorSubscription<>(elements.iterator(), subscriber);
+        } catch (RuntimeException e) {
+            subscriber.onSubscribe(CancelledSubscription.INSTANCE);
+            subscriber.onError(e);
+            return;
+        }
+        subscriber.onSubscribe(subscription);
+    }
+
+    private static final class IteratorSubscription<T> implements Subscription {
+
+        private final Iterator<? extends T> iterator;
+        private final Subscriber<? super T> subscriber;
+
+        private long demand;
+        private boolean emitting;
+        private boolean cancelled;
+        private Throwable pendingError;
+
+        private IteratorSubscription(Iterator<? extends T> iterator, Subscriber<? super T> subscriber) {
+            this.iterator = iterator;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                if (n <= 0) {
+                    cancelled = true;
+                    pendingError = new IllegalArgumentException("Requested a non-positive number of elements: " + n);
+                } else {
+                    demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n;
+                }
+                // Within onNext, the emitting loop picks up the demand
+                if (emitting) {
+                    return;
+                }
+                emitting = true;
+            }
+            emit();
+        }
+
+        @Override
+        public synchronized void cancel() {
+            cancelled = true;
+        }
+
+        private void emit() {
+            while (true) {
+                Throwable error;
+                synchronized (this) {
+                    error = pendingError;
+                    pendingError = null;
+                    if (error == null && (cancelled || demand == 0)) {
+                        emitting = false;
+                        return;
+                    }
+                    if (error == null && demand != Long.MAX_VALUE) {
+                        demand--;
+                    }
+                }
+                if (error != null) {
+                    subscriber.onError(error);
+                    return;
+                }
+
+                T element;
+                try {
+                    if (!iterator.hasNext()) {
+                        cancel();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    element = iterator.next();
+                } catch (RuntimeException e) {
+                    cancel();
+                    subscriber.onError(e);
+                    return;
+                }
+                subscriber.onNext(element);
+            }
+        }
+    }
+
+    private enum CancelledSubscription implements Subscription {
+        INSTANCE;
+
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.stream;
+
+/**
+ * A source of a possibly unbounded number of elements, emitted to a {@link Subscriber} only as
+ * far as it has requested them. Mirrors {@code org.reactivestreams.Publisher}, so that a
+ * publisher of a reactive library is adapted by a method reference or a one-line wrapper.
+ *
+ * @author chenlong
+ */
+public interface Publisher<T> {
+
+    /**
+     * Starts emitting elements to the given subscriber once it requests them, see
+     * {@link Subscriber#onSubscribe(Subscription)}.
+     */
+    void subscribe(Subscriber<? super T> subscriber);
+}
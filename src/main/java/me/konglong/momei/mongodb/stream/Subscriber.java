@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.stream;
+
+/**
+ * Receives the elements of a {@link Publisher}. Signals are never concurrent, and after
+ * {@link #onError(Throwable)} or {@link #onComplete()} there are no more. Mirrors
+ * {@code org.reactivestreams.Subscriber}.
+ *
+ * @author chenlong
+ */
+public interface Subscriber<T> {
+
+    /**
+     * Called once, before any other signal. No elements are emitted until requested through
+     * the given subscription.
+     */
+    void onSubscribe(Subscription subscription);
+
+    /**
+     * Called with each element, at most as many times as requested.
+     */
+    void onNext(T element);
+
+    void onError(Throwable t);
+
+    void onComplete();
+}
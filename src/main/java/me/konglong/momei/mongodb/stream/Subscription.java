@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.stream;
+
+/**
+ * The link between a {@link Publisher} and one of its {@link Subscriber}s, through which the
+ * subscriber asks for elements. Mirrors {@code org.reactivestreams.Subscription}.
+ *
+ * @author chenlong
+ */
+public interface Subscription {
+
+    /**
+     * Asks for up to the given number of further elements. Demand adds up, and may be signalled
+     * from within {@link Subscriber#onNext(Object)}.
+     *
+     * @param n must be positive, otherwise the subscription fails with an
+     *          {@link IllegalArgumentException}.
+     */
+    void request(long n);
+
+    /**
+     * Asks the publisher to stop emitting; elements already on their way may still arrive.
+     */
+    void cancel();
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.processor;
+
+import me.konglong.momei.TestData;
+import me.konglong.momei.mongodb.fixture.FixtureLoader;
+import me.konglong.momei.mongodb.script.MongoScriptReader;
+import me.konglong.momei.mongodb.script.NamedMongoScript;
+import me.konglong.momei.mongodb.script.ScriptTableProvider;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Checks at compile time that the script file of each test class annotated with {@link TestData}
+ * defines the {@literal prepare4_} and {@literal cleanup4_} functions its test methods need,
+ * and generates a {@link ScriptTableProvider} holding the functions already split out, so that
+ * the script file is not parsed when the tests run.
+ *
+ * <p>Generating the providers can be turned off with the processor option
+ * {@literal -A}{@value #GENERATE_OPTION}{@literal =false}; the script files are then only checked.
+ *
+ * @author chenlong
+ */
+@SupportedAnnotationTypes("me.konglong.momei.TestData")
+@SupportedOptions(TestDataProcessor.GENERATE_OPTION)
+public class TestDataProcessor extends AbstractProcessor {
+
+    static final String GENERATE_OPTION = "momei.generateScriptTables";
+
+    private static final String SCRIPT_SUFFIX = ".js";
+    private static final String PREPARE_PREFIX = "prepare4_";
+    private static final String CLEANUP_PREFIX = "cleanup4_";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SCRIPT_LIST_TYPE = "java.util.List<me.konglong.momei.mongodb.script.NamedMongoScript>";
+
+    /**
+     * Scripts longer than this are left to be parsed at runtime, as their string literals
+     * would make the generated class too large.
+     */
+    private static final int MAX_GENERATED_CODE_LENGTH = 4 * 1024 * 1024;
+
+    /**
+     * Number of scripts and literals added per generated method, which keeps each method well
+     * below the 64 KB limit of the code of a method.
+     */
+    private static final int STATEMENTS_PER_METHOD = 500;
+
+    /**
+     * Length of the string literals a script is split into. Even when every char takes 3 bytes
+     * in the class file, a literal stays below the 65535 bytes limit of the constant pool.
+     */
+    private static final int LITERAL_LENGTH = 16 * 1024;
+
+    private final Set<String> processedTypes = new HashSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Map<TypeElement, List<ExecutableElement>> typeToMethods = new LinkedHashMap<>();
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(TestData.class)) {
+            if (element.getKind() == ElementKind.METHOD) {
+                TypeElement type = (TypeElement) element.getEnclosingElement();
+                methodsOf(typeToMethods, type).add((ExecutableElement) element);
+            } else if (element.getKind() == ElementKind.CLASS) {
+                methodsOf(typeToMethods, (TypeElement) element);
+            }
+        }
+
+        for (Map.Entry<TypeElement, List<ExecutableElement>> entry : typeToMethods.entrySet()) {
+            if (processedTypes.add(entry.getKey().getQualifiedName().toString())) {
+                processTestClass(entry.getKey(), entry.getValue());
+            }
+        }
+        return false;
+    }
+
+    private static List<ExecutableElement> methodsOf(Map<TypeElement, List<ExecutableElement>> typeToMethods,
+                                                     TypeElement type) {
+        List<ExecutableElement> methods = typeToMethods.get(type);
+        if (methods == null) {
+            methods = new ArrayList<>();
+            typeToMethods.put(type, methods);
+        }
+        return methods;
+    }
+
+    private void processTestClass(TypeElement testClass, List<ExecutableElement> testMethods) {
+        Messager messager = processingEnv.getMessager();
+        TestData classAnn = testClass.getAnnotation(TestData.class);
+
+        if (classAnn == null || !classAnn.prepare()) {
+            // Test methods that only load documents need no script file
+            for (ExecutableElement testMethod : testMethods) {
+                TestData methodAnn = testMethod.getAnnotation(TestData.class);
+                if (methodAnn.prepare() || methodAnn.cleanup()) {
+                    messager.printMessage(Diagnostic.Kind.ERROR, String.format(
+                            "Test class %s must be annotated with @TestData for its test methods to get test data",
+                            testClass.getQualifiedName()), testMethod);
+                    return;
+                }
+            }
+            for (ExecutableElement testMethod : testMethods) {
+                checkFixtureFiles(testClass, testMethod, testMethod.getAnnotation(TestData.class).documents());
+            }
+            return;
+        }
+
+        String scriptName = testClass.getSimpleName() + SCRIPT_SUFFIX;
+        byte[] content = readScriptFile(testClass, scriptName);
+        if (content == null) {
+            // An abstract base class may leave its scripts to its subclasses
+            if (!testClass.getModifiers().contains(Modifier.ABSTRACT)) {
+                messager.printMessage(Diagnostic.Kind.ERROR,
+                        String.format("Script file %s is not found", scriptName), testClass);
+            }
+            return;
+        }
+
+        for (String libraryName : classAnn.include()) {
+            if (readScriptFile(testClass, libraryName) == null) {
+                messager.printMessage(Diagnostic.Kind.ERROR,
+                        String.format("Script library %s is not found", libraryName), testClass);
+            }
+        }
+
+        List<NamedMongoScript> scripts;
+        try {
+            scripts = MongoScriptReader.parse(UTF_8.newDecoder().decode(ByteBuffer.wrap(content)));
+        } catch (IOException | RuntimeException e) {
+            messager.printMessage(Diagnostic.Kind.ERROR,
+                    String.format("Script file %s is malformed: %s", scriptName, e.getMessage()), testClass);
+            return;
+        }
+
+        Set<String> names = new HashSet<>();
+        for (NamedMongoScript script : scripts) {
+            names.add(script.getName());
+        }
+        boolean valid = true;
+        for (ExecutableElement testMethod : testMethods) {
+            TestData methodAnn = testMethod.getAnnotation(TestData.class);
+            valid &= checkFunction(names, scriptName, testMethod, methodAnn.prepare(), PREPARE_PREFIX);
+            valid &= checkFunction(names, scriptName, testMethod, methodAnn.cleanup(), CLEANUP_PREFIX);
+            valid &= checkFixtureFiles(testClass, testMethod, methodAnn.documents());
+        }
+
+        if (valid && isGenerating()) {
+            generateProvider(testClass, content, scripts);
+        }
+    }
+
+    private boolean checkFunction(Set<String> names, String scriptName, ExecutableElement testMethod,
+                                  boolean required, String prefix) {
+        String functionName = prefix + testMethod.getSimpleName();
+        if (required && !names.contains(functionName)) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, String.format(
+                    "Function %s is not found in script file %s", functionName, scriptName), testMethod);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean checkFixtureFiles(TypeElement testClass, ExecutableElement testMethod, String[] collectionNames) {
+        boolean valid = true;
+        for (String collectionName : collectionNames) {
+            if (!hasFixtureFile(testClass, testClass.getSimpleName() + "." + collectionName)) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, String.format(
+                        "Fixture file of collection %s is not found", collectionName), testMethod);
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    private boolean hasFixtureFile(TypeElement testClass, String baseName) {
+        for (String suffix : FixtureLoader.suffixes()) {
+            if (findResource(testClass, baseName + suffix) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isGenerating() {
+        return !"false".equalsIgnoreCase(processingEnv.getOptions().get(GENERATE_OPTION));
+    }
+
+    /**
+     * Reads the script file from the source path, or from the class output and class path
+     * where build tools copy resources to. A name starting with {@literal /} is resolved
+     * against the root rather than the package of the test class.
+     *
+     * @return {@literal null} if the script file is not found.
+     */
+    private byte[] readScriptFile(TypeElement testClass, String scriptName) {
+        FileObject scriptFile = findResource(testClass, scriptName);
+        if (scriptFile == null) {
+            return null;
+        }
+        try {
+            return readFully(scriptFile);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the resource where {@link #readScriptFile(TypeElement, String)} reads script files
+     * from, without reading it.
+     *
+     * @return {@literal null} if the resource is not found.
+     */
+    private FileObject findResource(TypeElement testClass, String resourceName) {
+        Filer filer = processingEnv.getFiler();
+        String packageName = packageOf(testClass).getQualifiedName().toString();
+        if (resourceName.startsWith("/")) {
+            packageName = "";
+            resourceName = resourceName.substring(1);
+        }
+        StandardLocation[] locations = {
+                StandardLocation.SOURCE_PATH, StandardLocation.CLASS_OUTPUT, StandardLocation.CLASS_PATH };
+
+        for (StandardLocation location : locations) {
+            try {
+                FileObject resource = filer.getResource(location, packageName, resourceName);
+                resource.openInputStream().close();
+                return resource;
+            } catch (IOException | IllegalArgumentException e) {
+                // Not in this location, or the location is not set
+            }
+        }
+        return null;
+    }
+
+    private static byte[] readFully(FileObject fileObject) throws IOException {
+        InputStream inputStream = fileObject.openInputStream();
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void generateProvider(TypeElement testClass, byte[] content, List<NamedMongoScript> scripts) {
+        long codeLength = 0;
+        for (NamedMongoScript script : scripts) {
+            codeLength += script.getCode().length();
+        }
+        if (codeLength > MAX_GENERATED_CODE_LENGTH) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, String.format(
+                    "Script file of %s is too large to be compiled in, it is parsed at runtime",
+                    testClass.getQualifiedName()), testClass);
+            return;
+        }
+
+        String packageName = packageOf(testClass).getQualifiedName().toString();
+        String providerName = binaryNameOf(testClass).replace('$', '_') + ScriptTableProvider.CLASS_NAME_SUFFIX;
+        String simpleName = providerName.substring(providerName.lastIndexOf('.') + 1);
+
+        try {
+            JavaFileObject sourceFile = processingEnv.getFiler().createSourceFile(providerName, testClass);
+            Writer writer = sourceFile.openWriter();
+            try {
+                writeProvider(writer, packageName, simpleName, testClass, content, scripts);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    String.format("Could not generate %s: %s", providerName, e.getMessage()), testClass);
+        }
+    }
+
+    private static void writeProvider(Writer writer, String packageName, String simpleName, TypeElement testClass,
+                                      byte[] content, List<NamedMongoScript> scripts) throws IOException {
+        if (!packageName.isEmpty()) {
+            writer.write("package " + packageName + ";\n\n");
+        }
+        writer.write("/**\n * Scripts of {@link " + testClass.getQualifiedName()
+                + "}, generated by " + TestDataProcessor.class.getName() + ".\n */\n");
+        writer.write("public final class " + simpleName
+                + " implements me.konglong.momei.mongodb.script.ScriptTableProvider {\n\n");
+
+        writer.write("    @Override\n    public String contentHash() {\n");
+        writer.write("        return \"" + MongoScriptReader.contentHashOf(ByteBuffer.wrap(content)) + "\";\n");
+        writer.write("    }\n\n");
+
+        // The scripts are added by as many methods as needed to keep each of them small
+        List<StringBuilder> methodBodies = new ArrayList<>();
+        int statements = STATEMENTS_PER_METHOD;
+        for (NamedMongoScript script : scripts) {
+            if (statements >= STATEMENTS_PER_METHOD) {
+                methodBodies.add(new StringBuilder());
+                statements = 0;
+            }
+            methodBodies.get(methodBodies.size() - 1)
+                    .append("        scripts.add(new me.konglong.momei.mongodb.script.NamedMongoScript(\"")
+                    .append(script.getName()).append("\", ").append(toExpression(script.getCode())).append("));\n");
+            statements += 1 + script.getCode().length() / LITERAL_LENGTH;
+        }
+
+        writer.write("    @Override\n    public me.konglong.momei.mongodb.script.ScriptTable scriptTable() {\n");
+        writer.write("        " + SCRIPT_LIST_TYPE + " scripts = new java.util.ArrayList"
+                + "<me.konglong.momei.mongodb.script.NamedMongoScript>(" + scripts.size() + ");\n");
+        for (int i = 0; i < methodBodies.size(); i++) {
+            writer.write("        addScripts" + i + "(scripts);\n");
+        }
+        writer.write("        return me.konglong.momei.mongodb.script.ScriptTable.of(scripts);\n");
+        writer.write("    }\n");
+
+        for (int i = 0; i < methodBodies.size(); i++) {
+            writer.write("\n    private static void addScripts" + i + "(" + SCRIPT_LIST_TYPE + " scripts) {\n");
+            writer.write(methodBodies.get(i).toString());
+            writer.write("    }\n");
+        }
+        writer.write("}\n");
+    }
+
+    /**
+     * Returns a Java expression of the given code. Long code is appended literal by literal
+     * at runtime, as the compiler would fold concatenated literals into a single constant.
+     */
+    private static String toExpression(String code) {
+        if (code.length() <= LITERAL_LENGTH) {
+            return toLiteral(code);
+        }
+
+        StringBuilder expression = new StringBuilder("new StringBuilder(").append(code.length()).append(')');
+        for (int start = 0; start < code.length(); start += LITERAL_LENGTH) {
+            int end = Math.min(start + LITERAL_LENGTH, code.length());
+            expression.append("\n                .append(").append(toLiteral(code.substring(start, end))).append(')');
+        }
+        return expression.append(".toString()").toString();
+    }
+
+    private static String toLiteral(String value) {
+        StringBuilder literal = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    literal.append("\\\"");
+                    break;
+                case '\\':
+                    literal.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        // A unicode escape of a line terminator would end the literal
+                        literal.append(String.format("\\%03o", (int) c));
+                    } else if (c < 0x7f) {
+                        literal.append(c);
+                    } else {
+                        literal.append(String.format("\\u%04x", (int) c));
+                    }
+            }
+        }
+        return literal.append('"').toString();
+    }
+
+    private static PackageElement packageOf(Element element) {
+        while (element.getKind() != ElementKind.PACKAGE) {
+            element = element.getEnclosingElement();
+        }
+        return (PackageElement) element;
+    }
+
+    private String binaryNameOf(TypeElement type) {
+        Elements elements = processingEnv.getElementUtils();
+        return elements.getBinaryName(type).toString();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.util;
+
+import me.konglong.momei.base.Optional;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+/**
+ * A class path resource that lives either in a directory or in a jar.
+ *
+ * @author chenlong
+ */
+public abstract class ClassPathResource {
+
+    ClassPathResource() {
+    }
+
+    static ClassPathResource inDirectory(File file) {
+        return new FileResource(file);
+    }
+
+    static ClassPathResource inJar(File jarFile, String entryName, long size) {
+        return new JarEntryResource(jarFile, entryName, size);
+    }
+
+    /**
+     * Returns the file name of the resource.
+     */
+    public abstract String getName();
+
+    /**
+     * Returns a description that identifies the resource within the JVM.
+     */
+    public abstract String getDescription();
+
+    public abstract boolean exists();
+
+    /**
+     * Returns the modification time of the resource, or of the jar holding it.
+     */
+    public abstract long lastModified();
+
+    /**
+     * Returns the length of the resource in bytes.
+     */
+    public abstract long contentLength();
+
+    public abstract InputStream openStream() throws IOException;
+
+    /**
+     * Returns the content of the resource. A file is mapped into memory, a jar entry
+     * is read straight from the jar without being extracted to disk.
+     */
+    public abstract ByteBuffer read() throws IOException;
+
+    /**
+     * Returns the file of the resource if it lives in a directory.
+     */
+    public abstract Optional<File> asFile();
+
+    @Override
+    public String toString() {
+        return getDescription();
+    }
+
+    private static final class FileResource extends ClassPathResource {
+
+        private final File file;
+
+        private FileResource(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public String getName() {
+            return file.getName();
+        }
+
+        @Override
+        public String getDescription() {
+            return file.getAbsolutePath();
+        }
+
+        @Override
+        public boolean exists() {
+            return file.isFile();
+        }
+
+        @Override
+        public long lastModified() {
+            return file.lastModified();
+        }
+
+        @Override
+        public long contentLength() {
+            return file.length();
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        @Override
+        public ByteBuffer read() throws IOException {
+            FileInputStream inputStream = new FileInputStream(file);
+            try {
+                FileChannel channel = inputStream.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                inputStream.close();
+            }
+        }
+
+        @Override
+        public Optional<File> asFile() {
+            return Optional.of(file);
+        }
+    }
+
+    private static final class JarEntryResource extends ClassPathResource {
+
+        private final File jarFile;
+        private final String entryName;
+        private final long size;
+
+        private JarEntryResource(File jarFile, String entryName, long size) {
+            this.jarFile = jarFile;
+            this.entryName = entryName;
+            this.size = size;
+        }
+
+        @Override
+        public String getName() {
+            return entryName.substring(entryName.lastIndexOf('/') + 1);
+        }
+
+        @Override
+        public String getDescription() {
+            return jarFile.getAbsolutePath() + "!/" + entryName;
+        }
+
+        @Override
+        public boolean exists() {
+            return size >= 0;
+        }
+
+        @Override
+        public long lastModified() {
+            return jarFile.lastModified();
+        }
+
+        @Override
+        public long contentLength() {
+            return size;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            final JarFile jar = new JarFile(jarFile);
+            ZipEntry entry = jar.getEntry(entryName);
+            if (entry == null) {
+                jar.close();
+                throw new FileNotFoundException(getDescription());
+            }
+
+            return new FilterInputStream(jar.getInputStream(entry)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        jar.close();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public ByteBuffer read() throws IOException {
+            if (!exists()) {
+                throw new FileNotFoundException(getDescription());
+            }
+            Assert.state(size <= Integer.MAX_VALUE, "Jar entry %s is too large", entryName);
+            InputStream inputStream = openStream();
+
+            try {
+                byte[] bytes = new byte[(int) size];
+                int length = 0;
+                int read;
+                while (length < bytes.length && (read = inputStream.read(bytes, length, bytes.length - length)) != -1) {
+                    length += read;
+                }
+                return ByteBuffer.wrap(bytes, 0, length);
+            } finally {
+                inputStream.close();
+            }
+        }
+
+        @Override
+        public Optional<File> asFile() {
+            return Optional.absent();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.util;
+
+import me.konglong.momei.diagnostics.logging.Logger;
+import me.konglong.momei.diagnostics.logging.Loggers;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Index of the resources in the class path roots, i.e. directories and jars, that classes are
+ * loaded from. A root is scanned once, the first time a class loaded from it asks for a
+ * resource. All resources are indexed, those with a given suffix can also be listed.
+ *
+ * @author chenlong
+ */
+final class ClassPathResourceIndex {
+
+    private static final Logger logger = Loggers.getLogger(ClassPathResourceIndex.class);
+
+    private static final String JAR_SUFFIX = ".jar";
+    private static final String JAR_PREFIX = "jar:";
+    private static final String JAR_FILE_PREFIX = "jar:file:";
+    private static final String JAR_SEPARATOR = "!/";
+
+    private final String suffix;
+    private final ConcurrentMap<File, Map<String, ClassPathResource>> rootToResources = new ConcurrentHashMap<>();
+
+    ClassPathResourceIndex(String suffix) {
+        Assert.hasText(suffix, "Suffix must not be null or empty!");
+        this.suffix = suffix;
+    }
+
+    /**
+     * Returns the resource of the given name in the package of the given class, or in the
+     * class path root if the name starts with a {@literal /}. A resource missing from the root
+     * the class is loaded from is looked up by the class loader, so it may also come from
+     * another root, such as a separate resource output directory.
+     * The returned resource may not {@linkplain ClassPathResource#exists() exist}.
+     */
+    ClassPathResource resourceInSameDirWith(Class<?> clazz, String resourceName) {
+        String path = resourceName.startsWith("/")
+                ? resourceName.substring(1) : packagePathOf(clazz) + resourceName;
+        File root = rootOf(clazz);
+
+        if (root == null) {
+            ClassPathResource resource = resourceByClassLoader(clazz, resourceName, path);
+            if (resource == null) {
+                throw new IllegalStateException(String.format(
+                        "Resource %s of class %s is not found in a directory or jar", resourceName, clazz.getName()));
+            }
+            return resource;
+        }
+
+        ClassPathResource resource = resourceIn(root, path);
+        if (resource.exists()) {
+            return resource;
+        }
+        ClassPathResource elsewhere = resourceByClassLoader(clazz, resourceName, path);
+        return (elsewhere != null) ? elsewhere : resource;
+    }
+
+    /**
+     * Returns all indexed resources with the suffix of this index in the class path root the
+     * given class is loaded from.
+     */
+    Collection<ClassPathResource> resourcesInRootOf(Class<?> clazz) {
+        File root = rootOf(clazz);
+        if (root == null) {
+            return Collections.emptyList();
+        }
+
+        List<ClassPathResource> resources = new ArrayList<>();
+        for (Map.Entry<String, ClassPathResource> resource : resourcesIn(root).entrySet()) {
+            if (resource.getKey().endsWith(suffix)) {
+                resources.add(resource.getValue());
+            }
+        }
+        return resources;
+    }
+
+    private ClassPathResource resourceIn(File root, String path) {
+        ClassPathResource resource = resourcesIn(root).get(path);
+        if (resource != null) {
+            return resource;
+        }
+
+        // Resources added to a directory after it was indexed
+        if (root.isDirectory()) {
+            return ClassPathResource.inDirectory(new File(root, path));
+        }
+        return ClassPathResource.inJar(root, path, -1);
+    }
+
+    private Map<String, ClassPathResource> resourcesIn(File root) {
+        Map<String, ClassPathResource> resources = rootToResources.get(root);
+        if (resources == null) {
+            resources = index(root);
+            Map<String, ClassPathResource> existing = rootToResources.putIfAbsent(root, resources);
+            if (existing != null) {
+                resources = existing;
+            }
+        }
+        return resources;
+    }
+
+    private Map<String, ClassPathResource> index(File root) {
+        final Map<String, ClassPathResource> resources = new HashMap<>();
+
+        try {
+            if (root.isDirectory()) {
+                indexDirectory(root, resources);
+            } else if (root.isFile() && root.getName().endsWith(JAR_SUFFIX)) {
+                indexJar(root, resources);
+            }
+        } catch (IOException e) {
+            logger.warn(String.format("Could not index class path root %s", root), e);
+        }
+
+        logger.info(String.format("Indexed %d resources in %s", resources.size(), root));
+        return Collections.unmodifiableMap(resources);
+    }
+
+    private void indexDirectory(File root, final Map<String, ClassPathResource> resources) throws IOException {
+        final Path rootPath = root.toPath();
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    String path = rootPath.relativize(file).toString().replace(File.separatorChar, '/');
+                    resources.put(path, ClassPathResource.inDirectory(file.toFile()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void indexJar(File root, Map<String, ClassPathResource> resources) throws IOException {
+        JarFile jar = new JarFile(root);
+
+        try {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (!entry.isDirectory()) {
+                    resources.put(entry.getName(), ClassPathResource.inJar(root, entry.getName(), entry.getSize()));
+                }
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
+    /**
+     * Returns the resource of the given name as found by the class loader of the given class.
+     *
+     * @param path the path of the resource relative to a class path root.
+     * @return {@literal null} if it is not found in a directory or jar.
+     */
+    private ClassPathResource resourceByClassLoader(Class<?> clazz, String resourceName, String path) {
+        URL url = clazz.getResource(resourceName);
+        if (url == null) {
+            return null;
+        }
+        if ("file".equals(url.getProtocol())) {
+            return ClassPathResource.inDirectory(toFile(url));
+        }
+
+        // jar:file:/path/to/some.jar!/path/in/jar
+        String location = url.toString();
+        int separator = location.indexOf(JAR_SEPARATOR);
+        if ("jar".equals(url.getProtocol()) && separator != -1 && location.startsWith(JAR_FILE_PREFIX)) {
+            try {
+                File jarFile = toFile(new URL(location.substring(JAR_PREFIX.length(), separator)));
+                ClassPathResource resource = resourceIn(jarFile, path);
+                return resource.exists() ? resource : null;
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static File rootOf(Class<?> clazz) {
+        CodeSource codeSource = clazz.getProtectionDomain().getCodeSource();
+        if (codeSource == null || codeSource.getLocation() == null
+                || !"file".equals(codeSource.getLocation().getProtocol())) {
+            return null;
+        }
+        return toFile(codeSource.getLocation());
+    }
+
+    private static File toFile(URL url) {
+        try {
+            // Decodes escaped chars such as %20, unlike URL#getPath
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return new File(url.getPath());
+        }
+    }
+
+    private static String packagePathOf(Class<?> clazz) {
+        String className = clazz.getName();
+        int lastDot = className.lastIndexOf('.');
+        return (lastDot == -1) ? "" : className.substring(0, lastDot).replace('.', '/') + '/';
+    }
+}
@@ -18,6 +18,7 @@ package me.konglong.momei.util;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -28,24 +29,38 @@ import java.util.List;
  */
 public class ClassPathResources {
 
+    private static final String SCRIPT_SUFFIX = ".js";
+
+    private static final ClassPathResourceIndex resourceIndex = new ClassPathResourceIndex(SCRIPT_SUFFIX);
+
     public static File resourceInClassPathRoot(String resourceName) {
         return new File(resourcePath(resourceName));
     }
 
-    public static File resourceInSameDirWith(Class<?> clazz, String resourceName) {
-        String path = clazz.getResource("").getPath();
-        if (!path.endsWith("/")) {
-            path += "/";
-        }
-        return new File(path + resourceName);
+    /**
+     * Returns the resource of the given name in the same package as the given class, or in the
+     * class path root if the name starts with a {@literal /}, whether the class is loaded from
+     * a directory or a jar. Resources are looked up in an index built once per class path root,
+     * then by the class loader.
+     */
+    public static ClassPathResource resourceInSameDirWith(Class<?> clazz, String resourceName) {
+        return resourceIndex.resourceInSameDirWith(clazz, resourceName);
     }
 
-    public static List<File> resourcesInSameDirWith(Class<?> clazz, String[] resourceNames) {
+    /**
+     * Returns all scripts in the class path root, i.e. directory or jar, the given class
+     * is loaded from.
+     */
+    public static Collection<ClassPathResource> scriptsInRootOf(Class<?> clazz) {
+        return resourceIndex.resourcesInRootOf(clazz);
+    }
+
+    public static List<ClassPathResource> resourcesInSameDirWith(Class<?> clazz, String[] resourceNames) {
         if (ObjectUtils.isEmpty(resourceNames)) {
             return Collections.emptyList();
         }
 
-        List<File> resources = new ArrayList<>(resourceNames.length);
+        List<ClassPathResource> resources = new ArrayList<>(resourceNames.length);
         for (String resourceName : resourceNames) {
             resources.add(resourceInSameDirWith(clazz, resourceName));
         }
@@ -57,4 +72,3 @@ public class ClassPathResources {
         return ClassPathResources.class.getClassLoader().getResource(resourceName).getPath();
     }
 }
-
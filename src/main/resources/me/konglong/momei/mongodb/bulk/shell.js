@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * The mongo shell helpers and the db object seen by scripts run by EmbeddedScriptRunner.
+ * Values cross to Java as extended JSON strings through the __momei bridge, see ShellBridge.
+ *
+ * @author chenlong
+ */
+
+function ObjectId(hex) {
+    if (!(this instanceof ObjectId)) {
+        return new ObjectId(hex);
+    }
+    this.str = (hex === undefined) ? String(__momei.newObjectId()) : String(hex);
+}
+ObjectId.prototype.toString = function () { return 'ObjectId("' + this.str + '")'; };
+ObjectId.prototype.toJSON = function () { return { $oid: this.str }; };
+ObjectId.prototype.valueOf = function () { return this.str; };
+ObjectId.prototype.equals = function (other) { return (other instanceof ObjectId) && other.str === this.str; };
+ObjectId.prototype.getTimestamp = function () { return new Date(parseInt(this.str.substring(0, 8), 16) * 1000); };
+
+function ISODate(value) {
+    return (value === undefined) ? new Date() : new Date(__momei.parseDate(String(value)));
+}
+Date.prototype.toJSON = function () { return { $date: this.getTime() }; };
+
+RegExp.prototype.toJSON = function () {
+    return { $regex: this.source, $options: (this.ignoreCase ? 'i' : '') + (this.multiline ? 'm' : '') };
+};
+
+// Numbers are doubles as in the shell, unless wrapped
+function NumberInt(value) {
+    if (!(this instanceof NumberInt)) {
+        return new NumberInt(value);
+    }
+    this.value = Number(value) | 0;
+}
+NumberInt.prototype.toString = function () { return 'NumberInt(' + this.value + ')'; };
+NumberInt.prototype.toJSON = function () { return { $momeiInt: this.value }; };
+NumberInt.prototype.valueOf = function () { return this.value; };
+
+function NumberLong(value) {
+    if (!(this instanceof NumberLong)) {
+        return new NumberLong(value);
+    }
+    value = Number(value);
+    this.value = String(value < 0 ? Math.ceil(value) : Math.floor(value));
+}
+NumberLong.prototype.toString = function () { return 'NumberLong(' + this.value + ')'; };
+NumberLong.prototype.toJSON = function () { return { $momeiLong: this.value }; };
+NumberLong.prototype.valueOf = function () { return Number(this.value); };
+
+function __momeiRevive(key, value) {
+    if (value !== null && typeof value === 'object') {
+        if (typeof value.$oid === 'string') {
+            return new ObjectId(value.$oid);
+        }
+        if (value.$date !== undefined) {
+            return new Date(typeof value.$date === 'number' ? value.$date : __momei.parseDate(String(value.$date)));
+        }
+        if (typeof value.$regex === 'string') {
+            return new RegExp(value.$regex, String(value.$options || '').replace(/[^im]/g, ''));
+        }
+    }
+    return value;
+}
+
+function __momeiJson(value) {
+    return JSON.stringify(value === undefined ? {} : value);
+}
+
+function print() {
+    __momei.print(Array.prototype.join.call(arguments, ' '));
+}
+
+function printjson(value) {
+    print(JSON.stringify(value));
+}
+
+function DBCollection(name) {
+    this._name = name;
+}
+DBCollection.prototype.getName = function () { return this._name; };
+DBCollection.prototype.toString = function () { return String(__momei.dbName()) + '.' + this._name; };
+
+DBCollection.prototype.insert = function (docs) {
+    docs = (docs instanceof Array) ? docs : [docs];
+    for (var i = 0; i < docs.length; i++) {
+        // The shell assigns _id on the client, so scripts can read it afterwards
+        if (docs[i]._id === undefined) {
+            docs[i]._id = new ObjectId();
+        }
+        __momei.insert(this._name, JSON.stringify(docs[i]));
+    }
+    return { nInserted: docs.length };
+};
+DBCollection.prototype.insertOne = function (doc) {
+    this.insert(doc);
+    return { acknowledged: true, insertedId: doc._id };
+};
+DBCollection.prototype.insertMany = function (docs) {
+    this.insert(docs);
+    return { acknowledged: true, insertedIds: docs.map(function (doc) { return doc._id; }) };
+};
+
+DBCollection.prototype.remove = function (query, justOne) {
+    var one = (justOne !== null && typeof justOne === 'object') ? !!justOne.justOne : !!justOne;
+    __momei.remove(this._name, __momeiJson(query), one);
+};
+DBCollection.prototype.deleteOne = function (query) { this.remove(query, true); };
+DBCollection.prototype.deleteMany = function (query) { this.remove(query, false); };
+
+DBCollection.prototype.update = function (query, update, upsert, multi) {
+    if (upsert !== null && typeof upsert === 'object') {
+        multi = upsert.multi;
+        upsert = upsert.upsert;
+    }
+    __momei.update(this._name, __momeiJson(query), __momeiJson(update), !!upsert, !!multi);
+};
+DBCollection.prototype.updateOne = function (query, update, options) {
+    this.update(query, update, { upsert: !!(options && options.upsert), multi: false });
+};
+DBCollection.prototype.updateMany = function (query, update, options) {
+    this.update(query, update, { upsert: !!(options && options.upsert), multi: true });
+};
+DBCollection.prototype.replaceOne = DBCollection.prototype.updateOne;
+
+DBCollection.prototype.save = function (doc) {
+    if (doc._id === undefined) {
+        this.insert(doc);
+    } else {
+        this.update({ _id: doc._id }, doc, true, false);
+    }
+};
+
+// Reads see the writes made before them, their collection is flushed first
+DBCollection.prototype.count = function (query) {
+    return __momei.count(this._name, __momeiJson(query));
+};
+DBCollection.prototype.findOne = function (query) {
+    var json = __momei.findOne(this._name, __momeiJson(query));
+    return (json === null || json === undefined) ? null : JSON.parse(String(json), __momeiRevive);
+};
+DBCollection.prototype.find = function (query, projection) {
+    return new DBQuery(this._name, query, projection);
+};
+DBCollection.prototype.drop = function () {
+    __momei.drop(this._name);
+    return true;
+};
+
+// The cursor of find, fetching all its documents once it is first read
+function DBQuery(name, query, projection) {
+    this._name = name;
+    this._query = query;
+    this._projection = projection;
+    this._sort = null;
+    this._skip = 0;
+    this._limit = 0;
+    this._docs = null;
+    this._position = 0;
+}
+DBQuery.prototype._checkNotFetched = function () {
+    if (this._docs !== null) {
+        throw new Error('query already executed');
+    }
+};
+DBQuery.prototype.sort = function (sort) { this._checkNotFetched(); this._sort = sort; return this; };
+DBQuery.prototype.skip = function (skip) { this._checkNotFetched(); this._skip = skip; return this; };
+DBQuery.prototype.limit = function (limit) { this._checkNotFetched(); this._limit = limit; return this; };
+DBQuery.prototype._fetch = function () {
+    if (this._docs === null) {
+        var json = __momei.find(this._name, __momeiJson(this._query),
+            (this._projection === undefined || this._projection === null) ? null : JSON.stringify(this._projection),
+            (this._sort === null) ? null : JSON.stringify(this._sort), this._skip | 0, this._limit | 0);
+        this._docs = JSON.parse(String(json), __momeiRevive);
+    }
+    return this._docs;
+};
+DBQuery.prototype.hasNext = function () { return this._position < this._fetch().length; };
+DBQuery.prototype.next = function () {
+    if (!this.hasNext()) {
+        throw new Error('no more documents');
+    }
+    return this._docs[this._position++];
+};
+DBQuery.prototype.toArray = function () { return this._fetch().slice(0); };
+DBQuery.prototype.forEach = function (fn) {
+    while (this.hasNext()) {
+        fn(this.next());
+    }
+};
+DBQuery.prototype.map = function (fn) {
+    var mapped = [];
+    this.forEach(function (doc) { mapped.push(fn(doc)); });
+    return mapped;
+};
+DBQuery.prototype.size = function () { return this._fetch().length; };
+DBQuery.prototype.itcount = function () {
+    var count = 0;
+    while (this.hasNext()) {
+        this.next();
+        count++;
+    }
+    return count;
+};
+// As in the shell, ignores skip and limit
+DBQuery.prototype.count = function () {
+    return __momei.count(this._name, __momeiJson(this._query));
+};
+DBQuery.prototype.length = DBQuery.prototype.size;
+
+var db = {
+    getName: function () { return String(__momei.dbName()); },
+    getCollection: function (name) { return new DBCollection(String(name)); }
+};
+
+// Defines db.a.b for each collection path a.b the script refers to
+function __momeiDefineCollections(paths) {
+    for (var i = 0; i < paths.length; i++) {
+        var parts = paths[i].split('.'), owner = db, name = '';
+        for (var j = 0; j < parts.length; j++) {
+            if ((parts[j] in owner) && !(owner[parts[j]] instanceof DBCollection)) {
+                break;
+            }
+            name = name ? name + '.' + parts[j] : parts[j];
+            if (!(parts[j] in owner)) {
+                owner[parts[j]] = new DBCollection(name);
+            }
+            owner = owner[parts[j]];
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.konglong.momei.junit.mongoext;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class BackgroundCleanupsTest {
+
+    private final BackgroundCleanups cleanups = new BackgroundCleanups(null);
+
+    @Test
+    public void fencesOnlyOverlappingCleanups() {
+        StubFuture books = new StubFuture(null);
+        StubFuture authors = new StubFuture(null);
+        cleanups.add("cleanup4_a", "a", namesOf("books", "orders"), books);
+        cleanups.add("cleanup4_b", "b", namesOf("authors"), authors);
+
+        cleanups.fence(namesOf("orders", "stores"));
+
+        assertTrue(books.awaited);
+        assertFalse(authors.awaited);
+        assertFalse(cleanups.isEmpty());
+
+        cleanups.fence(namesOf("stores"));
+
+        assertFalse(authors.awaited);
+        cleanups.fence(namesOf("authors"));
+        assertTrue(authors.awaited);
+        assertTrue(cleanups.isEmpty());
+    }
+
+    @Test
+    public void fencesEverythingWithUnknownCollections() {
+        StubFuture unknown = new StubFuture(null);
+        StubFuture books = new StubFuture(null);
+        StubFuture authors = new StubFuture(null);
+        cleanups.add("cleanup4_a", "a", null, unknown);
+        cleanups.add("cleanup4_b", "b", namesOf("books"), books);
+
+        cleanups.fence(namesOf("stores"));
+
+        assertTrue(unknown.awaited);
+        assertFalse(books.awaited);
+
+        cleanups.add("cleanup4_c", "c", namesOf("authors"), authors);
+        cleanups.fence(null);
+
+        assertTrue(books.awaited);
+        assertTrue(authors.awaited);
+        assertTrue(cleanups.isEmpty());
+    }
+
+    @Test
+    public void rethrowsFirstFailureAfterAwaitingAll() {
+        RuntimeException firstCause = new RuntimeException("first");
+        StubFuture first = new StubFuture(firstCause);
+        StubFuture second = new StubFuture(new RuntimeException("second"));
+        StubFuture third = new StubFuture(null);
+        cleanups.add("cleanup4_a", "a", namesOf("books"), first);
+        cleanups.add("cleanup4_b", "b", namesOf("books"), second);
+        cleanups.add("cleanup4_c", "c", null, third);
+
+        try {
+            cleanups.drain();
+            fail("Expected the failure of the first cleanup");
+        } catch (IllegalStateException e) {
+            assertEquals("Failed to execute cleaning-up script cleanup4_a for test method a", e.getMessage());
+            assertSame(firstCause, e.getCause());
+        }
+
+        // The later failure is only logged, and nothing is left to wait for
+        assertTrue(second.awaited);
+        assertTrue(third.awaited);
+        assertTrue(cleanups.isEmpty());
+    }
+
+    private static Set<String> namesOf(String... collectionNames) {
+        return new TreeSet<>(Arrays.asList(collectionNames));
+    }
+
+    /**
+     * A cleanup already done, failing with the given cause if any, that records being waited for.
+     */
+    private static final class StubFuture implements Future<Object> {
+
+        private final Throwable failure;
+        private boolean awaited;
+
+        private StubFuture(Throwable failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public Object get() throws ExecutionException {
+            awaited = true;
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws ExecutionException {
+            return get();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.bulk;
+
+import me.konglong.momei.mongodb.script.NamedMongoScript;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class BulkScriptCompilerTest {
+
+    private final BulkScriptCompiler compiler = new BulkScriptCompiler(16);
+
+    @Test
+    public void compilesInsertLoopsAndRemoves() {
+        String code = "function() {var n = 10;for (var i = 1; i <= n * 10; i++) {"
+                + "db.books.insert({ _id: ObjectId(), name: (\"Thinking in Java \"+i), tags: ['a', 'b'] });}"
+                + "db.getCollection('books').remove({ name: { $regex: /Thinking in Java/i } });"
+                + "db.books.update({ n: -1.5 }, { $set: { at: ISODate('2015-10-01T00:00:00Z') } }, { upsert: true });}";
+
+        assertNotNull(compiler.compile(new NamedMongoScript("prepare4_a", code)));
+        assertEquals(102, plan(code).pendingCount("books"));
+    }
+
+    @Test
+    public void leavesOtherScriptsToEval() {
+        assertNull(compiler.compile(new NamedMongoScript("a", "function() {print('x');}")));
+        assertNull(compiler.compile(new NamedMongoScript("b", "function() {db.books.find({}).forEach(printjson);}")));
+        assertNull(compiler.compile(new NamedMongoScript("c", "function() {if (true) {db.books.remove({});}}")));
+        assertNull(compiler.compile(new NamedMongoScript("d", "function() {db.books.insert({ n: helper() });}")));
+        assertNull(compiler.compile(new NamedMongoScript("e", "function(n) {db.books.insert({ n: n });}")));
+    }
+
+    @Test
+    public void leavesUnsupportedValuesToEval() {
+        CompiledScript script = compiler.compile(new NamedMongoScript("f", "function() {db.books.insert({ _id: ObjectId(1) });}"));
+
+        assertNotNull(script);
+        // Nothing is written, so no engine is needed
+        assertFalse(script.tryExecute(null).isPresent());
+    }
+
+    @Test
+    public void evaluatesLikeJavaScript() {
+        assertEquals("Java 1", JsValues.add("Java ", 1.0));
+        assertEquals("Java 1.5", JsValues.add("Java ", 1.5));
+        assertEquals(3.0, JsValues.add(1.0, 2.0));
+        assertTrue(JsValues.compare("<=", 2.0, 2.0));
+    }
+
+    private static WritePlan plan(String code) {
+        List<Statement> statements = JsParser.parse(code);
+        WritePlan plan = new WritePlan();
+        Scope scope = new Scope();
+        for (Statement statement : statements) {
+            statement.execute(scope, plan);
+        }
+        return plan;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.bulk;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import me.konglong.momei.mongodb.script.NamedMongoScript;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNoException;
+
+/**
+ * Runs only if a {@literal JavaScript} engine is on the class path.
+ *
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class EmbeddedScriptRunnerTest {
+
+    private EmbeddedScriptRunner runner;
+
+    @Before
+    public void setUp() {
+        try {
+            runner = EmbeddedScriptRunner.create(10);
+        } catch (IllegalStateException e) {
+            assumeNoException(e);
+        }
+    }
+
+    @Test
+    public void convertsShellValues() {
+        NamedMongoScript script = new NamedMongoScript("prepare4_a", "function(id, at) {"
+                + "return { _id: ObjectId(id), n: 1, i: NumberInt(2), l: NumberLong(3),"
+                + " d: ISODate('2015-10-01T00:00:00Z'), at: at, r: /a\\/b/i, list: [book('x')] }; }");
+        NamedMongoScript helper = new NamedMongoScript("book", "function(name) { return { name: name }; }");
+        ObjectId id = new ObjectId();
+        Date at = new Date(1443657600000L);
+
+        DBObject result = (DBObject) runner.run(script, Collections.singletonList(helper),
+                Arrays.<Object>asList(id.toHexString(), at), null);
+
+        assertEquals(id, result.get("_id"));
+        assertEquals(1.0, result.get("n"));
+        assertEquals(2, result.get("i"));
+        assertEquals(3L, result.get("l"));
+        assertEquals(at, result.get("d"));
+        assertEquals(at, result.get("at"));
+        assertEquals("a\\/b", ((Pattern) result.get("r")).pattern());
+        assertEquals(Pattern.CASE_INSENSITIVE, ((Pattern) result.get("r")).flags());
+        assertEquals(new BasicDBObject("name", "x"), ((List<?>) result.get("list")).get(0));
+    }
+
+    @Test
+    public void resolvesCollectionsOfDb() {
+        Object names = runner.run(new NamedMongoScript("a", "function() {"
+                        + "return [db.books.getName(), db.books.archive.getName(), db.getCollection('x').getName()]; }"),
+                Collections.<NamedMongoScript>emptyList(), Collections.emptyList(), null);
+
+        assertEquals(Arrays.asList("books", "books.archive", "x"), names);
+    }
+
+    @Test
+    public void findsWithTheWritesMadeBefore() {
+        StubEngine engine = new StubEngine();
+        Object names = runner.run(new NamedMongoScript("a", "function() {"
+                        + "db.books.insert([{ name: 'a', n: 1 }, { name: 'b', n: 2 }, { name: 'c', n: 3 }]);"
+                        + "var cursor = db.books.find({ n: { $gt: 1 } }, { name: 1 }).sort({ n: -1 }).limit(5);"
+                        + "var names = [];"
+                        + "cursor.forEach(function(book) { names.push(book.name); });"
+                        + "return names.concat(db.books.find().toArray().length, cursor.hasNext()); }"),
+                Collections.<NamedMongoScript>emptyList(), Collections.emptyList(), engine);
+
+        assertEquals(Arrays.<Object>asList("a", "b", "c", 3.0, false), names);
+        assertEquals(new BasicDBObject("n", new BasicDBObject("$gt", 1.0)), engine.queries.get(0));
+        assertEquals(new BasicDBObject("name", 1.0), engine.projections.get(0));
+        assertEquals(new BasicDBObject("n", -1.0), engine.sorts.get(0));
+        assertEquals(Arrays.asList(5, 0), engine.limits);
+    }
+
+    @Test
+    public void returnsNullForUndefined() {
+        assertNull(runner.run(new NamedMongoScript("a", "function() { var x = 1; }"),
+                Collections.<NamedMongoScript>emptyList(), Collections.emptyList(), null));
+    }
+
+    /**
+     * Keeps inserted documents in memory and answers every find with all of them, recording
+     * what it was asked.
+     */
+    private static final class StubEngine extends WriteEngine {
+
+        private final List<DBObject> documents = new ArrayList<>();
+        private final List<DBObject> queries = new ArrayList<>();
+        private final List<DBObject> projections = new ArrayList<>();
+        private final List<DBObject> sorts = new ArrayList<>();
+        private final List<Integer> limits = new ArrayList<>();
+
+        @Override
+        public String getName() {
+            return "stub";
+        }
+
+        @Override
+        String getDatabaseName() {
+            return "test";
+        }
+
+        @Override
+        void execute(String collectionName, WritePlan.Run run, WritePlan.Totals totals) {
+            for (WritePlan.Write write : run.writes) {
+                documents.add(write.document);
+            }
+            totals.add(run.writes.size(), 0, 0, 0);
+        }
+
+        @Override
+        long count(String collectionName, DBObject query) {
+            return documents.size();
+        }
+
+        @Override
+        DBObject findOne(String collectionName, DBObject query) {
+            return documents.isEmpty() ? null : documents.get(0);
+        }
+
+        @Override
+        List<DBObject> find(String collectionName, DBObject query, DBObject projection, DBObject sort,
+                            int skip, int limit) {
+            queries.add(query);
+            projections.add(projection);
+            sorts.add(sort);
+            limits.add(limit);
+
+            return new ArrayList<>(documents);
+        }
+
+        @Override
+        void drop(String collectionName) {
+            documents.clear();
+        }
+    }
+}
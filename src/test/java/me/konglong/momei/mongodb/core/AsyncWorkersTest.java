@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.core;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class AsyncWorkersTest {
+
+    private final AsyncWorkers workers = new AsyncWorkers(2);
+
+    @After
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    @Test
+    public void failsRunningTaskPastItsTimeout() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Future<Object> future = workers.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return "late";
+            }
+        }, 50);
+
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertEquals("on time", workers.submit(constant("on time"), 5000).get());
+    }
+
+    @Test
+    public void groupRethrowsFirstFailureAndCancelsTheRest() {
+        final CountDownLatch never = new CountDownLatch(1);
+        ExecutionGroup group = new ExecutionGroup();
+        group.add(workers.submit(constant("a"), 0));
+        group.add(workers.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                throw new IllegalArgumentException("bad fixture");
+            }
+        }, 0));
+        Future<Object> blocked = group.add(workers.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return never.await(10, TimeUnit.SECONDS);
+            }
+        }, 0));
+
+        try {
+            group.await(5, TimeUnit.SECONDS);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("bad fixture", e.getMessage());
+        }
+        assertTrue(blocked.isCancelled());
+        assertEquals(0, group.size());
+    }
+
+    @Test
+    public void cancelsQueuedAndLaterTasksOnShutdown() throws Exception {
+        AsyncWorkers single = new AsyncWorkers(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        Future<Object> running = single.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                started.countDown();
+                Thread.sleep(10000);
+                return "slept";
+            }
+        }, 0);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<Object> queued = single.submit(constant("queued"), 0);
+
+        single.shutdown();
+
+        assertTrue(queued.isCancelled());
+        assertTrue(single.submit(constant("late"), 0).isCancelled());
+        assertTrue(single.submit(constant("late"), 1000).isCancelled());
+        try {
+            running.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+    }
+
+    private static Callable<Object> constant(final Object value) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return value;
+            }
+        };
+    }
+}
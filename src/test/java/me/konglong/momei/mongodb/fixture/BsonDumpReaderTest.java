@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import com.mongodb.BasicDBObject;
+import org.bson.BasicBSONEncoder;
+import org.bson.RawBsonDocument;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class BsonDumpReaderTest {
+
+    @Test
+    public void slicesConcatenatedDocuments() throws Exception {
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        BasicBSONEncoder encoder = new BasicBSONEncoder();
+        dump.write(encoder.encode(new BasicDBObject("_id", 1).append("name", "a")));
+        dump.write(encoder.encode(new BasicDBObject("_id", 2).append("tags", Arrays.asList("x", "y"))));
+
+        BsonDumpReader reader = new BsonDumpReader(ByteBuffer.wrap(dump.toByteArray()));
+        RawBsonDocument first = reader.next();
+        RawBsonDocument second = reader.next();
+
+        assertEquals("a", first.getString("name").getValue());
+        assertEquals(2, second.getInt32("_id").getValue());
+        assertEquals(2, second.getArray("tags").size());
+        assertNull(reader.next());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedDocument() {
+        byte[] document = new BasicBSONEncoder().encode(new BasicDBObject("name", "a"));
+
+        new BsonDumpReader(ByteBuffer.wrap(document, 0, document.length - 1)).next();
+    }
+}
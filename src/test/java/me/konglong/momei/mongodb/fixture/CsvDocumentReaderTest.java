@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class CsvDocumentReaderTest {
+
+    private static final CsvSchema SCHEMA = CsvSchema.of(Arrays.asList(
+            "_id:objectId", "name", "price:double", "address.city", "address.zip:int", "at:date"));
+
+    @Test
+    public void mapsTypedColumns() throws IOException {
+        CsvDocumentReader reader = new CsvDocumentReader(new StringReader(
+                "56012a3e1f5e5f8a3c6a9b01,\"Thinking, in \"\"Java\"\"\",9.5,Beijing,100000,2015-10-01\r\n"
+                        + "\n"
+                        + "56012a3e1f5e5f8a3c6a9b02,\"two\nlines\",,\"\"\n"), SCHEMA);
+
+        DBObject first = reader.next();
+        assertEquals(new ObjectId("56012a3e1f5e5f8a3c6a9b01"), first.get("_id"));
+        assertEquals("Thinking, in \"Java\"", first.get("name"));
+        assertEquals(9.5, first.get("price"));
+        assertEquals(new BasicDBObject("city", "Beijing").append("zip", 100000), first.get("address"));
+        assertEquals(new Date(1443657600000L), first.get("at"));
+
+        DBObject second = reader.next();
+        assertEquals("two\nlines", second.get("name"));
+        assertFalse(second.containsField("price"));
+        assertEquals(new BasicDBObject("city", ""), second.get("address"));
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void splitsBetweenRecords() throws IOException {
+        String csv = "name\n\"a\nb\"\nc\n\"d\"\"\ne\"\n";
+        ByteBuffer content = ByteBuffer.wrap(csv.getBytes("UTF-8"));
+        int headerEnd = CsvChunks.endOfRecord(content, CsvChunks.startOf(content));
+        List<int[]> chunks = CsvChunks.split(content, headerEnd, 1);
+
+        assertEquals(5, headerEnd);
+        assertEquals(3, chunks.size());
+        assertEquals("\"a\nb\"\n", csv.substring(chunks.get(0)[0], chunks.get(0)[1]));
+        assertEquals("\"d\"\"\ne\"\n", csv.substring(chunks.get(2)[0], chunks.get(2)[1]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsValueNotOfColumnType() throws IOException {
+        new CsvDocumentReader(new StringReader("56012a3e1f5e5f8a3c6a9b01,a,cheap\n"), SCHEMA).next();
+    }
+}
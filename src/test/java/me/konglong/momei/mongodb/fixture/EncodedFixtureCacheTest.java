@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import com.mongodb.BasicDBObject;
+import me.konglong.momei.util.ClassPathResource;
+import me.konglong.momei.util.ClassPathResources;
+import org.bson.BasicBSONEncoder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class EncodedFixtureCacheTest {
+
+    private static final ClassPathResource FILE_A =
+            ClassPathResources.resourceInSameDirWith(EncodedFixtureCacheTest.class, "/mongo.properties");
+    private static final ClassPathResource FILE_B =
+            ClassPathResources.resourceInSameDirWith(EncodedFixtureCacheTest.class, "EncodedFixtureCacheTest.class");
+    private static final ClassPathResource FILE_C =
+            ClassPathResources.resourceInSameDirWith(EncodedFixtureCacheTest.class, "BsonDumpReaderTest.class");
+
+    @Test
+    public void servesEncodedDocumentsFromDirectBuffers() {
+        EncodedFixtureCache cache = new EncodedFixtureCache(1024 * 1024);
+        EncodedFixtureCache.Load load = cache.newLoad(FILE_A);
+        append(load.newSegment(), 1, 2);
+        append(load.newSegment(), 3);
+        cache.put(load);
+
+        List<ByteBuffer> segments = cache.get(FILE_A);
+        assertEquals(2, segments.size());
+        assertTrue(segments.get(0).isDirect());
+        BsonDumpReader reader = new BsonDumpReader(segments.get(0));
+        assertEquals(1, reader.next().getInt32("i").getValue());
+        assertEquals(2, reader.next().getInt32("i").getValue());
+        assertNull(reader.next());
+        assertEquals(3, new BsonDumpReader(segments.get(1)).next().getInt32("i").getValue());
+
+        // Each load reads its own view
+        assertEquals(1, new BsonDumpReader(cache.get(FILE_A).get(0)).next().getInt32("i").getValue());
+        assertNull(cache.get(FILE_B));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBeyondCapacity() {
+        int documentBytes = encode(0).length;
+        EncodedFixtureCache cache = new EncodedFixtureCache(2 * documentBytes);
+        cache.put(loadOf(cache, FILE_A, 1));
+        cache.put(loadOf(cache, FILE_B, 2));
+        assertNotNull(cache.get(FILE_A));
+
+        cache.put(loadOf(cache, FILE_C, 3));
+
+        assertNotNull(cache.get(FILE_A));
+        assertNull(cache.get(FILE_B));
+        assertNotNull(cache.get(FILE_C));
+    }
+
+    @Test
+    public void skipsFilesLargerThanCapacity() {
+        EncodedFixtureCache cache = new EncodedFixtureCache(encode(0).length + 1);
+        cache.put(loadOf(cache, FILE_A, 1, 2));
+
+        assertNull(cache.get(FILE_A));
+    }
+
+    @Test
+    public void sharesCapacityAmongSegmentsOfALoad() {
+        EncodedFixtureCache cache = new EncodedFixtureCache(encode(0).length + 1);
+        EncodedFixtureCache.Load load = cache.newLoad(FILE_B);
+        EncodedFixtureCache.Segment first = load.newSegment();
+        EncodedFixtureCache.Segment second = load.newSegment();
+
+        append(first, 1);
+        assertFalse(load.gaveUp());
+        append(second, 2);
+        assertTrue(load.gaveUp());
+        cache.put(load);
+
+        assertNull(cache.get(FILE_B));
+    }
+
+    private static EncodedFixtureCache.Load loadOf(EncodedFixtureCache cache, ClassPathResource file, int... values) {
+        EncodedFixtureCache.Load load = cache.newLoad(file);
+        append(load.newSegment(), values);
+        return load;
+    }
+
+    private static void append(EncodedFixtureCache.Segment segment, int... values) {
+        for (int value : values) {
+            segment.append(encode(value));
+        }
+    }
+
+    private static byte[] encode(int value) {
+        return new BasicBSONEncoder().encode(new BasicDBObject("i", value));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class JsonDocumentReaderTest {
+
+    @Test
+    public void readsJsonLines() throws IOException {
+        JsonDocumentReader reader = new JsonDocumentReader(new StringReader(
+                "{\"_id\": {\"$oid\": \"56012a3e1f5e5f8a3c6a9b01\"}, \"name\": \"a } \\\" {\"}\n"
+                        + "\n"
+                        + "{\"at\": {\"$date\": 1443657600000}, \"tags\": [{\"n\": 1}]}\n"));
+
+        DBObject first = reader.next();
+        assertEquals(new ObjectId("56012a3e1f5e5f8a3c6a9b01"), first.get("_id"));
+        assertEquals("a } \" {", first.get("name"));
+        assertEquals(new Date(1443657600000L), reader.next().get("at"));
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void readsTopLevelArray() throws IOException {
+        JsonDocumentReader reader = new JsonDocumentReader(new StringReader("[\n  {\"n\": 1},\n  {\"n\": 2}\n]\n"));
+
+        assertEquals(1, reader.next().get("n"));
+        assertEquals(2, reader.next().get("n"));
+        assertNull(reader.next());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnterminatedDocument() throws IOException {
+        JsonDocumentReader reader = new JsonDocumentReader(new StringReader("{\"n\": 1}\n{\"n\": 2\n"));
+
+        assertNotNull(reader.next());
+        reader.next();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.fixture;
+
+import me.konglong.momei.mongodb.script.NamedMongoScript;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class ScriptFootprintTest {
+
+    @Test
+    public void findsLiterallyNamedCollections() {
+        Set<String> collectionNames = ScriptFootprint.collectionsOf("function() {"
+                + "for (var i = 0; i < 10; i++) { db.books.insert({ i: i }); }"
+                + "db.books.archive.update({}, { $set: { n: db.books.count() } });"
+                + "db.getCollection(\"authors\").remove({}); db.getName(); }");
+
+        assertEquals(new TreeSet<>(Arrays.asList("authors", "books", "books.archive")), collectionNames);
+    }
+
+    @Test
+    public void rejectsWhatDocumentsDoNotCapture() {
+        assertNull(ScriptFootprint.collectionsOf("function(name) { db.getCollection(name).insert({}); }"));
+        assertNull(ScriptFootprint.collectionsOf("function() { db.books.createIndex({ name: 1 }); }"));
+        assertNull(ScriptFootprint.collectionsOf("function() { db.getSiblingDB('other').books.insert({}); }"));
+    }
+
+    @Test
+    public void rejectsCollectionsNotNamedLiterally() {
+        assertNull(ScriptFootprint.collectionsOf("function() { db.authors.insert({}); db['books'].insert({}); }"));
+        assertNull(ScriptFootprint.collectionsOf("function() { db.books['archive'].insert({}); }"));
+        assertNull(ScriptFootprint.collectionsOf("function() { var d = db; d.books.insert({}); }"));
+        assertNull(ScriptFootprint.collectionsOf("function() { fill(db, 'books'); }"));
+    }
+
+    @Test
+    public void followsCalledFunctions() {
+        Map<String, String> nameToCode = new HashMap<>();
+        nameToCode.put("book", "function(i) { return { i: i, author: author(i) }; }");
+        nameToCode.put("author", "function(i) { return 'a' + i; }");
+        nameToCode.put("unused", "function() {}");
+
+        assertEquals(new TreeSet<>(Arrays.asList("author", "book")),
+                ScriptFootprint.functionsCalledBy("function() { db.books.insert(book(1)); }", nameToCode));
+    }
+
+    @Test
+    public void addsCollectionsOfCalledHelpers() {
+        List<NamedMongoScript> helpers = Arrays.asList(
+                new NamedMongoScript("archive", "function(q) { db.books.archive.insert(q); }"),
+                new NamedMongoScript("reindex", "function() { db.books.createIndex({ name: 1 }); }"));
+
+        assertEquals(new TreeSet<>(Arrays.asList("books", "books.archive")), ScriptFootprint.collectionsOf(
+                new NamedMongoScript("cleanup4_a", "function() { archive({}); db.books.remove({}); }"), helpers));
+        assertNull(ScriptFootprint.collectionsOf(
+                new NamedMongoScript("cleanup4_b", "function() { reindex(); }"), helpers));
+    }
+
+    @Test
+    public void cannotTellCleanupsReachingCollectionsInBrackets() {
+        List<NamedMongoScript> helpers = Collections.singletonList(
+                new NamedMongoScript("purge", "function(name) { db[name].remove({}); }"));
+
+        assertNull(ScriptFootprint.collectionsOf(
+                new NamedMongoScript("cleanup5_a", "function() { db['books'].remove({}); }"), helpers));
+        assertNull(ScriptFootprint.collectionsOf(
+                new NamedMongoScript("cleanup5_b", "function() { purge('books'); }"), helpers));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.script;
+
+import me.konglong.momei.util.ClassPathResource;
+import me.konglong.momei.util.ClassPathResources;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class DiskScriptCacheTest {
+
+    @Rule
+    public final TemporaryFolder cacheDir = new TemporaryFolder();
+
+    @Test
+    public void storesScriptsByContentHash() throws Exception {
+        ClassPathResource scriptFile = ClassPathResources.resourceInSameDirWith(
+                DiskScriptCacheTest.class, "MongoScriptReaderTest.js");
+        String contentHash = DiskScriptCache.hashOf(scriptFile.read());
+        List<NamedMongoScript> scripts = MongoScriptReader.read("MongoScriptReaderTest.js", DiskScriptCacheTest.class);
+
+        DiskScriptCache cache = new DiskScriptCache(cacheDir.getRoot());
+        assertNull(cache.get(contentHash));
+
+        cache.put(contentHash, scripts);
+        List<NamedMongoScript> cached = new DiskScriptCache(cacheDir.getRoot()).get(contentHash);
+
+        assertEquals(40, contentHash.length());
+        assertEquals(scripts.size(), cached.size());
+        for (int i = 0; i < scripts.size(); i++) {
+            assertEquals(scripts.get(i).getName(), cached.get(i).getName());
+            assertEquals(scripts.get(i).getCode(), cached.get(i).getCode());
+        }
+    }
+}
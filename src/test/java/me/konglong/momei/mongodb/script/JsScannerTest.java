@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.script;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class JsScannerTest {
+
+    @Test
+    public void keepsCommentMarkersInsideLiterals() {
+        List<NamedMongoScript> scripts = scan(
+                "prepare4_urls = function() {\n"
+                        + "    db.links.insert({ url: \"http://a/b\", s: '}/*' }); // trailing\n"
+                        + "    db.links.remove({ url: /^https?:\\/\\/[/]x/ });\n"
+                        + "};\n");
+
+        assertEquals(1, scripts.size());
+        assertEquals("prepare4_urls", scripts.get(0).getName());
+        assertEquals("function() {db.links.insert({ url: \"http://a/b\", s: '}/*' });"
+                + "db.links.remove({ url: /^https?:\\/\\/[/]x/ });}", scripts.get(0).getCode());
+    }
+
+    @Test
+    public void tellsDivisionFromRegex() {
+        List<NamedMongoScript> scripts = scan(
+                "cleanup4_ratio = function() { var r = a / b / 2; return /x{2}/.test(r); }");
+
+        assertEquals("function() { var r = a / b / 2; return /x{2}/.test(r); }", scripts.get(0).getCode());
+    }
+
+    @Test
+    public void skipsOtherTopLevelCode() {
+        List<NamedMongoScript> scripts = scan(
+                "var helper = function() { return '}'; };\n"
+                        + "prepare4_a = function ( ) {\n  helper();\n}\n"
+                        + "/* cleanup4_a = function() {} */\n"
+                        + "cleanup4_a = function() {}\n");
+
+        assertEquals(2, scripts.size());
+        assertEquals("function() {helper();}", scripts.get(0).getCode());
+        assertEquals("cleanup4_a", scripts.get(1).getName());
+        assertEquals("function() {}", scripts.get(1).getCode());
+    }
+
+    @Test
+    public void extractsHelperFunctions() {
+        List<NamedMongoScript> scripts = scan(
+                "limit = 10 / 2;\n"
+                        + "db.c.remove({ s: /x\\/y/ });\n"
+                        + "book = function(i, name) {\n  return { _id: i, name: name };\n};\n"
+                        + "prepare4_a = function() {\n  db.books.insert(book(1, 'a'));\n}\n");
+
+        assertEquals(2, scripts.size());
+        assertEquals("book", scripts.get(0).getName());
+        assertEquals("function(i,name) {return { _id: i, name: name };}", scripts.get(0).getCode());
+        assertEquals("prepare4_a", scripts.get(1).getName());
+        assertEquals(1, ScriptTable.of(scripts).helpers().size());
+    }
+
+    @Test
+    public void acceptsInputInChunks() {
+        String source = "prepare4_a = function() {\n  db.c.insert({ s: \"//\" }); /* c */ db.c.count();\n}";
+        JsScanner scanner = new JsScanner();
+        char[] chars = source.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            scanner.feed(chars, i, 1);
+        }
+
+        assertEquals("function() {db.c.insert({ s: \"//\" });  db.c.count();}", scanner.finish().get(0).getCode());
+    }
+
+    @Test
+    public void indexesFunctionsByUtf8Offset() throws Exception {
+        String source = "var s = '\u00e9\u20ac\ud834\udd1e';\nprepare4_a = function() { db.c.insert({ s: '\u00e9' }); };\n";
+        JsScanner scanner = new JsScanner(true);
+        char[] chars = source.toCharArray();
+        scanner.feed(chars, 0, chars.length);
+        List<JsScanner.Span> spans = scanner.finishIndex();
+
+        byte[] bytes = source.getBytes("UTF-8");
+        String function = "prepare4_a = function() { db.c.insert({ s: '\u00e9' }); }";
+        assertEquals(1, spans.size());
+        assertEquals("prepare4_a", spans.get(0).getName());
+        assertEquals(function, new String(bytes, (int) spans.get(0).getOffset(), (int) spans.get(0).getLength(), "UTF-8"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsUnterminatedFunction() {
+        scan("prepare4_a = function() {\n  db.c.insert({});\n");
+    }
+
+    private static List<NamedMongoScript> scan(String source) {
+        JsScanner scanner = new JsScanner();
+        char[] chars = source.toCharArray();
+        scanner.feed(chars, 0, chars.length);
+        return scanner.finish();
+    }
+}
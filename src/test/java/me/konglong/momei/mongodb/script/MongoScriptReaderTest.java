@@ -16,6 +16,7 @@
 
 package me.konglong.momei.mongodb.script;
 
+import me.konglong.momei.junit.mongoext.BooksRepoTest;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -45,4 +46,56 @@ public class MongoScriptReaderTest {
         assertEquals("cleanup4_findBooks", scripts.get(1).getName());
         assertEquals(expectedFunc2, scripts.get(1).getCode());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void readScriptMapped() throws Exception {
+        List<NamedMongoScript> streamed = MongoScriptReader.read(
+                "MongoScriptReaderTest.js", MongoScriptReaderTest.class, MongoScriptReader.ReadMode.STREAMED);
+        List<NamedMongoScript> mapped = MongoScriptReader.read(
+                "MongoScriptReaderTest.js", MongoScriptReaderTest.class, MongoScriptReader.ReadMode.MAPPED);
+
+        assertEquals(streamed.size(), mapped.size());
+        for (int i = 0; i < streamed.size(); i++) {
+            assertEquals(streamed.get(i).getName(), mapped.get(i).getName());
+            assertEquals(streamed.get(i).getCode(), mapped.get(i).getCode());
+        }
+    }
+
+    @Test
+    public void readScriptWithCache() throws Exception {
+        ScriptCache cache = MongoScriptReader.scriptCache();
+        List<NamedMongoScript> first = MongoScriptReader.readScriptWith(MongoScriptReaderTest.class);
+        long hitCount = cache.hitCount();
+
+        List<NamedMongoScript> second = MongoScriptReader.readScriptWith(MongoScriptReaderTest.class);
+
+        assertSame(first, second);
+        assertEquals(hitCount + 1, cache.hitCount());
+    }
+
+    @Test
+    public void indexScript() throws Exception {
+        ScriptTable index = MongoScriptReader.indexScriptWith(MongoScriptReaderTest.class);
+        List<NamedMongoScript> scripts = MongoScriptReader.read(
+                "MongoScriptReaderTest.js", MongoScriptReaderTest.class);
+
+        assertEquals(scripts.size(), index.names().size());
+        for (NamedMongoScript script : scripts) {
+            assertEquals(script.getCode(), index.get(script.getName()).getCode());
+        }
+        assertNull(index.get("prepare4_missing"));
+    }
+
+    @Test
+    public void readGeneratedScriptTable() throws Exception {
+        ScriptTable generated = GeneratedScriptTables.find(BooksRepoTest.class);
+        List<NamedMongoScript> scripts = MongoScriptReader.read("BooksRepoTest.js", BooksRepoTest.class);
+
+        assertNotNull(generated);
+        assertEquals(scripts.size(), generated.names().size());
+        for (NamedMongoScript script : scripts) {
+            assertEquals(script.getCode(), generated.get(script.getName()).getCode());
+        }
+        assertNull(GeneratedScriptTables.find(MongoScriptReaderTest.class));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.konglong.momei.mongodb.script;
+
+import me.konglong.momei.util.ClassPathResource;
+import me.konglong.momei.util.ClassPathResources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static org.junit.Assert.*;
+
+/**
+ * Drives the reloader with the events its watch service would deliver, so that the tests do
+ * not depend on how soon the platform reports changes.
+ *
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class ScriptReloaderTest {
+
+    private static final String SCRIPT_NAME = "Marker.js";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ScriptReloader reloader;
+    private Path scriptFile;
+    private ScriptTable table;
+
+    @Before
+    public void setUp() throws Exception {
+        // A class of its own in the temporary folder, so that its script file lives there too
+        File root = folder.newFolder("classes");
+        String markerEntry = Marker.class.getName().replace('.', '/') + ".class";
+        File markerFile = new File(root, markerEntry);
+        assertTrue(markerFile.getParentFile().mkdirs());
+        try (InputStream marker = Marker.class.getResourceAsStream("/" + markerEntry)) {
+            Files.copy(marker, markerFile.toPath());
+        }
+        scriptFile = new File(markerFile.getParentFile(), SCRIPT_NAME).toPath().toAbsolutePath();
+        write("one", "two");
+
+        Class<?> markerClass = new URLClassLoader(new URL[]{root.toURI().toURL()}, null)
+                .loadClass(Marker.class.getName());
+        ClassPathResource resource = ClassPathResources.resourceInSameDirWith(markerClass, SCRIPT_NAME);
+        reloader = new ScriptReloader();
+        table = reloader.tableOf(resource);
+        assertNotNull(table);
+    }
+
+    @After
+    public void tearDown() {
+        reloader.close();
+    }
+
+    @Test
+    public void replacesOnlyChangedFunctions() throws Exception {
+        NamedMongoScript prepare = table.get("prepare4_a");
+        NamedMongoScript cleanup = table.get("cleanup4_a");
+
+        write("one", "three");
+        reloader.reloadChanged(scriptFile.getParent(), Collections.<WatchEvent<?>>singletonList(
+                eventOf(ENTRY_MODIFY, scriptFile.getFileName())));
+
+        assertSame(prepare, table.get("prepare4_a"));
+        assertNotSame(cleanup, table.get("cleanup4_a"));
+        assertTrue(table.get("cleanup4_a").getCode().contains("three"));
+    }
+
+    @Test
+    public void reloadsEveryFileOfTheDirectoryOnOverflow() throws Exception {
+        NamedMongoScript cleanup = table.get("cleanup4_a");
+
+        write("four", "two");
+        reloader.reloadChanged(scriptFile.getParent(), Collections.<WatchEvent<?>>singletonList(
+                eventOf(OVERFLOW, null)));
+
+        assertTrue(table.get("prepare4_a").getCode().contains("four"));
+        assertSame(cleanup, table.get("cleanup4_a"));
+    }
+
+    @Test
+    public void ignoresFilesWithoutTable() throws Exception {
+        NamedMongoScript prepare = table.get("prepare4_a");
+
+        write("five", "two");
+        List<WatchEvent<?>> events = Collections.<WatchEvent<?>>singletonList(
+                eventOf(ENTRY_MODIFY, scriptFile.getFileName().resolveSibling("Other.js")));
+        reloader.reloadChanged(folder.getRoot().toPath(), events);
+
+        assertSame(prepare, table.get("prepare4_a"));
+    }
+
+    // Writes to a temporary file first, so that the watcher thread never reads half a file
+    private void write(String prepareName, String cleanupName) throws Exception {
+        String source = "prepare4_a = function() {\n    db.books.insert({ name: '" + prepareName + "' });\n};\n"
+                + "cleanup4_a = function() {\n    db.books.remove({ name: '" + cleanupName + "' });\n};\n";
+        Path tmp = Files.createTempFile(folder.getRoot().toPath(), "script", ".tmp");
+        Files.write(tmp, source.getBytes(Charset.forName("UTF-8")));
+        Files.move(tmp, scriptFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static <T> WatchEvent<T> eventOf(final WatchEvent.Kind<T> kind, final T context) {
+        return new WatchEvent<T>() {
+            @Override
+            public Kind<T> kind() {
+                return kind;
+            }
+
+            @Override
+            public int count() {
+                return 1;
+            }
+
+            @Override
+            public T context() {
+                return context;
+            }
+        };
+    }
+
+    public static class Marker {
+    }
+}
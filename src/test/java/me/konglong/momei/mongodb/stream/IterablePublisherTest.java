@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.konglong.momei.mongodb.stream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class IterablePublisherTest {
+
+    @Test
+    public void emitsOnlyWhatIsRequested() {
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        IterablePublisher.of(Arrays.asList(1, 2, 3)).subscribe(subscriber);
+        assertTrue(subscriber.elements.isEmpty());
+
+        subscriber.subscription.request(2);
+        assertEquals(Arrays.asList(1, 2), subscriber.elements);
+        assertFalse(subscriber.completed);
+
+        subscriber.subscription.request(5);
+        assertEquals(Arrays.asList(1, 2, 3), subscriber.elements);
+        assertTrue(subscriber.completed);
+    }
+
+    @Test
+    public void requestsWithinOnNextDoNotRecurse() {
+        final int count = 100000;
+        RecordingSubscriber subscriber = new RecordingSubscriber(1);
+        IterablePublisher.of(new Iterable<Integer>() {
+            @Override
+            public Iterator<Integer> iterator() {
+                return new Iterator<Integer>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < count;
+                    }
+
+                    @Override
+                    public Integer next() {
+                        return next++;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        }).subscribe(subscriber);
+
+        assertEquals(count, subscriber.elements.size());
+        assertTrue(subscriber.completed);
+    }
+
+    @Test
+    public void failsNonPositiveRequest() {
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        IterablePublisher.of(Arrays.asList(1)).subscribe(subscriber);
+        subscriber.subscription.request(0);
+
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        subscriber.subscription.request(1);
+        assertTrue(subscriber.elements.isEmpty());
+    }
+
+    /**
+     * Requests the given number of elements up front and one more with each element.
+     */
+    private static final class RecordingSubscriber implements Subscriber<Integer> {
+
+        private final long initialRequest;
+        private final List<Integer> elements = new ArrayList<>();
+        private Subscription subscription;
+        private Throwable error;
+        private boolean completed;
+
+        private RecordingSubscriber(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(Integer element) {
+            elements.add(element);
+            if (initialRequest > 0) {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.konglong.momei.processor;
+
+import me.konglong.momei.mongodb.script.ScriptTableProvider;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.tools.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNotNull;
+
+/**
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class TestDataProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+
+    @Test
+    public void acceptsMethodsOnlyLoadingDocumentsWithoutScriptFile() throws Exception {
+        write("sample/DocsTest.books.json", "[{ \"name\": \"a\" }]");
+        write("sample/DocsTest.java", "package sample;\n"
+                + "public class DocsTest {\n"
+                + "    @me.konglong.momei.TestData(prepare = false, cleanup = false, documents = \"books\")\n"
+                + "    public void loadsBooks() {}\n"
+                + "}\n");
+
+        assertEquals(Arrays.<String>asList(), errorsOf(compile("sample/DocsTest.java")));
+    }
+
+    @Test
+    public void requiresClassAnnotationForPrepareAndCleanup() throws Exception {
+        write("sample/BareTest.java", "package sample;\n"
+                + "public class BareTest {\n"
+                + "    @me.konglong.momei.TestData(prepare = false, cleanup = false)\n"
+                + "    public void plain() {}\n"
+                + "    @me.konglong.momei.TestData\n"
+                + "    public void prepared() {}\n"
+                + "}\n");
+
+        List<String> errors = errorsOf(compile("sample/BareTest.java"));
+        assertEquals(errors.toString(), 1, errors.size());
+        assertTrue(errors.get(0).contains("must be annotated with @TestData"));
+    }
+
+    @Test
+    public void reportsMissingFunctionsAndFixtureFiles() throws Exception {
+        write("sample/BooksTest.js", "prepare4_a = function() { db.books.insert({}); };\n");
+        write("sample/BooksTest.java", "package sample;\n"
+                + "@me.konglong.momei.TestData\n"
+                + "public class BooksTest {\n"
+                + "    @me.konglong.momei.TestData(documents = \"authors\")\n"
+                + "    public void a() {}\n"
+                + "}\n");
+
+        List<String> errors = errorsOf(compile("sample/BooksTest.java"));
+        assertEquals(errors.toString(), 2, errors.size());
+        assertTrue(errors.get(0).contains("Function cleanup4_a is not found in script file BooksTest.js"));
+        assertTrue(errors.get(1).contains("Fixture file of collection authors is not found"));
+    }
+
+    @Test
+    public void generatesScriptTablesOfManyFunctions() throws Exception {
+        int functionCount = 5000;
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < functionCount; i++) {
+            script.append("helper").append(i).append(" = function() { return ").append(i).append("; };\n");
+        }
+        script.append("prepare4_a = function() { db.books.insert({ n: helper1() }); };\n");
+        script.append("cleanup4_a = function() { db.books.remove({}); };\n");
+        write("sample/ManyTest.js", script.toString());
+        write("sample/ManyTest.java", "package sample;\n"
+                + "@me.konglong.momei.TestData\n"
+                + "public class ManyTest {\n"
+                + "    @me.konglong.momei.TestData\n"
+                + "    public void a() {}\n"
+                + "}\n");
+
+        File classes = compile("sample/ManyTest.java");
+        assertEquals(Arrays.<String>asList(), errorsOf(classes));
+
+        ClassLoader loader = new URLClassLoader(new URL[]{classes.toURI().toURL()}, getClass().getClassLoader());
+        ScriptTableProvider provider = (ScriptTableProvider) loader
+                .loadClass("sample.ManyTest" + ScriptTableProvider.CLASS_NAME_SUFFIX)
+                .getDeclaredConstructor().newInstance();
+        assertEquals(functionCount + 2, provider.scriptTable().names().size());
+        assertEquals("function() { return 7; }", provider.scriptTable().get("helper7").getCode());
+    }
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(folder.getRoot(), "src/" + path);
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Compiles the given source file with the processor, the source directory also being
+     * where the processor finds scripts and fixture files.
+     *
+     * @return the directory of the compiled classes.
+     */
+    private File compile(String path) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assumeNotNull(compiler);
+        File sources = new File(folder.getRoot(), "src");
+        File classes = folder.newFolder("classes");
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        try {
+            List<String> options = new ArrayList<>(Arrays.asList(
+                    "-classpath", System.getProperty("java.class.path"),
+                    "-sourcepath", sources.getPath(),
+                    "-d", classes.getPath(),
+                    "-processor", TestDataProcessor.class.getName()));
+            compiler.getTask(null, fileManager, diagnostics, options, null,
+                    fileManager.getJavaFileObjects(new File(sources, path))).call();
+        } finally {
+            fileManager.close();
+        }
+        return classes;
+    }
+
+    private List<String> errorsOf(File classes) {
+        List<String> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(diagnostic.getMessage(null));
+            }
+        }
+        return errors;
+    }
+}
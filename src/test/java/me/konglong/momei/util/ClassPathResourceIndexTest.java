@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.konglong.momei.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author chenlong
+ */
+@RunWith(JUnit4.class)
+public class ClassPathResourceIndexTest {
+
+    private static final String MARKER_ENTRY = Marker.class.getName().replace('.', '/') + ".class";
+    private static final String PACKAGE_PATH = "me/konglong/momei/util/";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void findsResourcesOfAnySuffixInJar() throws Exception {
+        File jar = jarOf(PACKAGE_PATH + "books.json", PACKAGE_PATH + "books.js");
+        Class<?> clazz = loadMarkerFrom(jar);
+        ClassPathResourceIndex index = new ClassPathResourceIndex(".js");
+
+        ClassPathResource fixture = index.resourceInSameDirWith(clazz, "books.json");
+        assertTrue(fixture.exists());
+        assertEquals(PACKAGE_PATH + "books.json", new String(fixture.read().array(), Charset.forName("UTF-8")));
+        assertFalse(index.resourceInSameDirWith(clazz, "authors.json").exists());
+
+        Collection<ClassPathResource> scripts = index.resourcesInRootOf(clazz);
+        assertEquals(1, scripts.size());
+        assertEquals("books.js", scripts.iterator().next().getName());
+    }
+
+    @Test
+    public void findsResourcesOutsideTheRootOfTheClass() throws Exception {
+        File jar = jarOf();
+        File resources = folder.newFolder("resources");
+        File fixture = new File(resources, PACKAGE_PATH + "books.json");
+        assertTrue(fixture.getParentFile().mkdirs());
+        assertTrue(fixture.createNewFile());
+        Class<?> clazz = loadMarkerFrom(jar, resources);
+
+        ClassPathResource resource = new ClassPathResourceIndex(".js").resourceInSameDirWith(clazz, "books.json");
+        assertTrue(resource.exists());
+        assertEquals(fixture.getCanonicalFile(), resource.asFile().get().getCanonicalFile());
+    }
+
+    private File jarOf(String... entryNames) throws Exception {
+        File jar = folder.newFile("fixtures.jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new JarEntry(MARKER_ENTRY));
+            InputStream marker = Marker.class.getResourceAsStream("/" + MARKER_ENTRY);
+            try {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = marker.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                marker.close();
+            }
+            for (String entryName : entryNames) {
+                out.putNextEntry(new JarEntry(entryName));
+                out.write(entryName.getBytes(Charset.forName("UTF-8")));
+            }
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+
+    // Loads the marker class from the given roots only, not from the test classes
+    private static Class<?> loadMarkerFrom(File... roots) throws Exception {
+        URL[] urls = new URL[roots.length];
+        for (int i = 0; i < roots.length; i++) {
+            urls[i] = roots[i].toURI().toURL();
+        }
+        return new URLClassLoader(urls, null).loadClass(Marker.class.getName());
+    }
+
+    public static class Marker {
+    }
+}